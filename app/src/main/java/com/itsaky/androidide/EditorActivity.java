@@ -955,7 +955,7 @@ public class EditorActivity extends StudioActivity implements FileTreeFragment.F
     }
 
     @Override
-    public void onOpenSuccessful(File file, String text) {
+    public void onOpenSuccessful(File file) {
         // textDocument/didOpen is now handled by CodeEditor
     }
 
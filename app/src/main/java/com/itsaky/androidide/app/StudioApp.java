@@ -21,6 +21,7 @@ import com.google.firebase.messaging.FirebaseMessaging;
 import com.itsaky.androidide.language.xml.completion.XMLCompletionService;
 import com.itsaky.androidide.project.ProjectResourceFinder;
 import com.itsaky.androidide.services.MessagingService;
+import com.itsaky.androidide.utils.EditorStateCache;
 import com.itsaky.layoutinflater.ILayoutInflater;
 import com.itsaky.layoutinflater.IResourceFinder;
 import com.itsaky.layoutinflater.LayoutInflaterConfiguration;
@@ -61,6 +62,12 @@ public class StudioApp extends BaseApplication {
         
         initializeApiInformation();
 	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		EditorStateCache.getInstance().trimMemory(level);
+	}
     
 	private void handleLog(CharSequence seq) {
 		if(seq == null)
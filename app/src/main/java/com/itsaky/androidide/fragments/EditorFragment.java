@@ -21,8 +21,8 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import com.blankj.utilcode.util.FileIOUtils;
 import com.blankj.utilcode.util.SizeUtils;
+import com.itsaky.androidide.R;
 import com.itsaky.androidide.adapters.CompletionListAdapter;
 import com.itsaky.androidide.databinding.FragmentEditorBinding;
 import com.itsaky.androidide.fragments.preferences.EditorPreferences;
@@ -35,19 +35,26 @@ import com.itsaky.androidide.project.AndroidProject;
 import com.itsaky.androidide.models.ConstantsBridge;
 import com.itsaky.androidide.syntax.colorschemes.SchemeAndroidIDE;
 import com.itsaky.androidide.tasks.TaskExecutor;
-import com.itsaky.androidide.tasks.callables.ReadFileTask;
+import com.itsaky.androidide.tasks.callables.ReadContentTask;
+import com.itsaky.androidide.utils.EditorStateCache;
+import com.itsaky.androidide.utils.HighlightCache;
 import com.itsaky.androidide.utils.LSPUtils;
 import com.itsaky.androidide.utils.TypefaceUtils;
 import io.github.rosemoe.editor.interfaces.EditorEventListener;
 import io.github.rosemoe.editor.langs.EmptyLanguage;
+import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.text.ContentCharStream;
 import io.github.rosemoe.editor.widget.CodeEditor;
+import io.github.rosemoe.editor.widget.RetainedState;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.StringReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.Token;
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.Position;
@@ -60,6 +67,9 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 	private boolean isRead = false;
 	private boolean isModified = false;
 	private boolean isFirstCreate = false;
+	// Hash of the text in editor, valid until the text is edited, see HighlightCache.hash()
+	private long mTextHash;
+	private boolean isHashValid = false;
 	
     private ModificationStateListener mModificationStateListener;
     private FileOpenListener mOpenListener;
@@ -80,6 +90,9 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 	public static final String EXT_KOTLIN = ".kt";
 	public static final String EXT_JSON = ".json";
     
+    // Files exceeding a threshold of large files by this many times are opened in huge file mode
+    private static final float HUGE_FILE_RATIO = 4;
+    
     public EditorFragment setModificationStateListener(ModificationStateListener listener) {
         this.mModificationStateListener = listener;
         return this;
@@ -162,9 +175,36 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 		configureEditorIfNeeded();
 		
         final Range range = fromArgs(getArguments());
-		new TaskExecutor().executeAsync(new ReadFileTask(mFile), result -> {
-			mBinding.editor.setText(result);
+		final PreferenceManager prefs = getStudioActivity().getApp().getPrefManager();
+		final int maxLines = prefs.getLargeFileLineCount();
+		final int maxSize = prefs.getLargeFileSize();
+		final int maxLineLength = prefs.getLargeFileLineLength();
+		// Lines are built on the background thread, the editor only attaches the result
+		// The state kept when this tab went to background is looked up there as well. Without it,
+		// highlights of the last session are read from disk, and shown until the text is analyzed
+		final RetainedState[] retained = new RetainedState[1];
+		final HighlightCache.Entry[] cached = new HighlightCache.Entry[1];
+		final CodeEditor.PerformanceMode[] mode = new CodeEditor.PerformanceMode[1];
+		final long[] hash = new long[1];
+		new TaskExecutor().executeAsync(() -> {
+			final Content content = new ReadContentTask(mFile, mBinding.editor).call();
+			mode[0] = choosePerformanceMode(content, maxLines, maxSize, maxLineLength);
+			hash[0] = HighlightCache.hash(content);
+			retained[0] = EditorStateCache.getInstance().take(mFile, hash[0]);
+			if(retained[0] == null) {
+				cached[0] = HighlightCache.getInstance().load(mFile, hash[0]);
+			}
+			return content;
+		}, result -> {
+			mBinding.editor.setPerformanceMode(mode[0]);
+			mBinding.editor.restoreState(retained[0]);
+			mBinding.editor.setText(result, true);
+			mTextHash = hash[0];
+			isHashValid = true;
 			postRead();
+			if(cached[0] != null) {
+				cached[0].apply(mBinding.editor);
+			}
             mBinding.editor.post(() -> {
                 if(LSPUtils.isEqual(range.getStart(), range.getEnd())) {
                     getEditor().setSelection(range.getStart().getLine(), range.getStart().getCharacter());
@@ -175,6 +215,22 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 		});
 	}
 
+    /**
+     * Choose performance mode by how far the file exceeds the thresholds of large files
+     */
+    private CodeEditor.PerformanceMode choosePerformanceMode(Content content, int maxLines, int maxSize, int maxLineLength) {
+        int longestLine = 0;
+        for(int i = 0; i < content.getLineCount(); i++) {
+            longestLine = Math.max(longestLine, content.getColumnCount(i));
+        }
+        final float ratio = Math.max(content.getLineCount() / (float) maxLines,
+            Math.max(mFile.length() / (float) maxSize, longestLine / (float) maxLineLength));
+        if(ratio <= 1) {
+            return CodeEditor.PerformanceMode.NORMAL;
+        }
+        return ratio <= HUGE_FILE_RATIO ? CodeEditor.PerformanceMode.LARGE : CodeEditor.PerformanceMode.HUGE;
+    }
+    
     private Range fromArgs(Bundle args) {
         if(!(args.containsKey(KEY_LINE_START)
          && args.containsKey(KEY_COLUMN_START)
@@ -193,26 +249,8 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
     }
     
 	public void setDiagnostics(List<Diagnostic> diags) {
-        if(diags == null && mBinding.editor != null) {
-            mBinding.editor.getEditorLanguage().getAnalyzer().updateDiagnostics(new HashMap<Integer, Map<Integer, Diagnostic>>());
-            return;
-        }
 		if(mBinding.editor != null) {
-            Map<Integer, Map<Integer, Diagnostic>> map = new HashMap<>();
-            for(int i=0;i<diags.size();i++) {
-                final Diagnostic d = diags.get(i);
-                if(d == null) continue;
-                final Range range = d.getRange();
-                final int line = range.getStart().getLine();
-                final int column = range.getStart().getCharacter();
-                Map<Integer, Diagnostic> mappedByColumn = map.get(line);
-                if(mappedByColumn == null) {
-                    mappedByColumn = new HashMap<>();
-                }
-                mappedByColumn.put(column, d);
-                map.put(line, mappedByColumn);
-            }
-            mBinding.editor.getEditorLanguage().getAnalyzer().updateDiagnostics(map);
+            mBinding.editor.setDiagnostics(diags);
         }
 	}
 	
@@ -251,6 +289,12 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 			ConstantsBridge.EDITORPREF_DRAW_HEX_CHANGED = false;
 		}
 		
+		if(isFirstCreate) {
+			// Only takes effect when text is set, which happens after this
+			mBinding.editor.setLineStorage(prefs.getBoolean(PreferenceManager.KEY_EDITOR_TREE_LINE_STORAGE, true)
+				? Content.LineStorage.TREE : Content.LineStorage.ARRAY);
+		}
+		
 		isFirstCreate = false;
 	}
     
@@ -294,11 +338,36 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 
 	public void save() {
         if(mFile == null || mBinding == null || mBinding.editor == null || mBinding.editor.getText() == null) return;
-        final String text = mBinding.editor.getText().toString();
-        final boolean wrote = FileIOUtils.writeFileFromString(mFile, text);
-		notifySaved(wrote, text);
+        boolean wrote;
+        // Write the lines directly instead of creating a String of the whole text
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile), StandardCharsets.UTF_8))) {
+            mBinding.editor.getText().writeTo(writer);
+            wrote = true;
+        } catch (IOException e) {
+            wrote = false;
+        }
+		notifySaved(wrote);
 		isModified = false;
+		if(wrote) {
+			storeHighlights();
+		}
 	}
+
+    /**
+     * Hash the saved text in background, then store its highlights if it is not edited meanwhile
+     */
+    private void storeHighlights() {
+        final Content text = mBinding.editor.getText();
+        final Content snapshot = text.createSnapshot();
+        new TaskExecutor().executeAsync(() -> HighlightCache.hash(snapshot), hash -> {
+            if(mBinding == null || mBinding.editor.getText() != text || text.getDocumentVersion() != snapshot.getDocumentVersion()) {
+                return;
+            }
+            mTextHash = hash;
+            isHashValid = true;
+            HighlightCache.getInstance().store(mFile, mBinding.editor, hash);
+        });
+    }
     
 	public File getFile() {
 		return mFile;
@@ -309,6 +378,27 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 		super.onResume();
 		configureEditorIfNeeded();
 	}
+
+	@Override
+	public void onDestroyView() {
+		// Keep the work of the editor for the next time this tab is shown, if the file has its text
+		if(isRead && isHashValid && mBinding != null) {
+			final RetainedState state = mBinding.editor.saveState();
+			if(state != null) {
+				EditorStateCache.getInstance().put(mFile, mTextHash, state);
+			}
+		}
+		super.onDestroyView();
+	}
+
+	@Override
+	public void onPause() {
+		super.onPause();
+		// The file is saved when modified, so only highlights of unmodified text are stored here
+		if(isRead && isHashValid && mBinding != null) {
+			HighlightCache.getInstance().store(mFile, mBinding.editor, mTextHash);
+		}
+	}
 	
 	private void postRead() {
 		if (mFile.isFile() && mFile.getName().endsWith(EXT_JAVA)) {
@@ -328,12 +418,12 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
         mBinding.editor.setColorScheme(new SchemeAndroidIDE());
 		isRead = true;
         if(mOpenListener != null)
-            mOpenListener.onOpenSuccessful(getFile(), getText());
+            mOpenListener.onOpenSuccessful(getFile());
 	}
 	
-	private void closeCurrentTag(String text, int line, int col) {
+	private void closeCurrentTag(Content text, int line, int col) {
         try {
-            XMLLexer lexer = new XMLLexer(CharStreams.fromReader(new StringReader(text)));
+            XMLLexer lexer = new XMLLexer(new ContentCharStream(text));
             Token token;
             boolean wasSlash = false, wasOpen = false;
             ArrayList<String> currentNames = new ArrayList<>();
@@ -390,17 +480,38 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
     @Override
     public void onSetSelection(int startLine, int startCol, int endLine, int endCol) {
         
+    }
+
+    @Override
+    public void onPerformanceModeChanged(CodeEditor editor) {
+        if(mBinding == null) return;
+        final int message;
+        switch(editor.getPerformanceMode()) {
+            case LARGE:
+                message = editor.isDeferredFeaturesRestored() ? R.string.msg_large_file_mode : R.string.msg_large_file_mode_pending;
+                break;
+            case HUGE:
+                message = R.string.msg_huge_file_mode;
+                break;
+            default:
+                mBinding.performanceModeText.setVisibility(View.GONE);
+                return;
+        }
+        mBinding.performanceModeText.setText(message);
+        mBinding.performanceModeText.setVisibility(View.VISIBLE);
     }
 
 	@Override
 	public void afterDelete(CodeEditor editor, CharSequence content, int startLine, int startColumn, int endLine, int endColumn, CharSequence deletedContent) {
 		isModified = true;
+		isHashValid = false;
         notifyModified();
 	}
     
 	@Override
 	public void afterInsert(CodeEditor editor, CharSequence content, int startLine, int startColumn, int endLine, int endColumn, CharSequence insertedContent) {
 		isModified = true;
+		isHashValid = false;
         
 		if(getFile() != null && getFile().getName().endsWith(EXT_XML)) {
             boolean isOpen = false;
@@ -408,7 +519,7 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
                 isOpen = editor.getText().charAt(editor.getCursor().getLeft() - 2) == '<';
             } catch (Throwable th) {}
             if(isOpen && insertedContent.toString().equals("/")) {
-                closeCurrentTag(editor.getText().toString(), endLine, endColumn);
+                closeCurrentTag(editor.getText(), endLine, endColumn);
             }
         }
         
@@ -419,7 +530,7 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
 	public void beforeReplace(CodeEditor editor, CharSequence content) {
 	}
     
-    private void notifySaved(boolean wrote, String text) {
+    private void notifySaved(boolean wrote) {
         mBinding.editor.didSave();
         
         if(mModificationStateListener != null)
@@ -432,7 +543,7 @@ public class EditorFragment extends BaseFragment implements EditorEventListener
     }
     
     public static interface FileOpenListener {
-        void onOpenSuccessful(File file, String text);
+        void onOpenSuccessful(File file);
     }
     
     public static interface ModificationStateListener {
@@ -43,6 +43,7 @@ public class EditorPreferences extends BasePreferenceFragment implements Prefere
 		final Preference nonPrintable = new Preference(getContext());
         final Preference tabSize = new Preference(getContext());
 		final SwitchPreference drawHex = new SwitchPreference(getContext());
+		final SwitchPreference treeStorage = new SwitchPreference(getContext());
         
 		fontSize.setIcon(R.drawable.ic_text_size);
 		fontSize.setKey(KEY_EDITOR_FONT_SIZE);
@@ -63,19 +64,27 @@ public class EditorPreferences extends BasePreferenceFragment implements Prefere
 		drawHex.setKey(KEY_EDITOR_DRAW_HEX);
 		drawHex.setTitle(R.string.idepref_editor_drawhexcolors_title);
 		drawHex.setSummary(R.string.idepref_editor_drawhexcolors_summary);
+		
+		treeStorage.setIcon(R.drawable.ic_tree);
+		treeStorage.setKey(KEY_EDITOR_TREE_LINE_STORAGE);
+		treeStorage.setTitle(R.string.idepref_editor_treelinestorage_title);
+		treeStorage.setSummary(R.string.idepref_editor_treelinestorage_summary);
 
 		screen.addPreference(fontSize);
 		screen.addPreference(nonPrintable);
         screen.addPreference(tabSize);
 		screen.addPreference(drawHex);
+		screen.addPreference(treeStorage);
 		setPreferenceScreen(screen);
 		
 		fontSize.setOnPreferenceClickListener(this);
 		nonPrintable.setOnPreferenceClickListener(this);
         tabSize.setOnPreferenceClickListener(this);
 		drawHex.setOnPreferenceChangeListener(this);
+		treeStorage.setOnPreferenceChangeListener(this);
 		
 		drawHex.setChecked(getPrefManager().getBoolean(KEY_EDITOR_DRAW_HEX, true));
+		treeStorage.setChecked(getPrefManager().getBoolean(KEY_EDITOR_TREE_LINE_STORAGE, true));
 	}
 
 	@Override
@@ -84,6 +93,8 @@ public class EditorPreferences extends BasePreferenceFragment implements Prefere
 			boolean drawHex = (Boolean) p2;
 			getPrefManager().putBoolean(KEY_EDITOR_DRAW_HEX, drawHex);
 			ConstantsBridge.EDITORPREF_DRAW_HEX_CHANGED = true;
+		} else if(p1.getKey().equals(KEY_EDITOR_TREE_LINE_STORAGE)) {
+			getPrefManager().putBoolean(KEY_EDITOR_TREE_LINE_STORAGE, (Boolean) p2);
 		}
 		return true;
 	}
@@ -43,4 +43,70 @@ public abstract class BaseLanguage extends AbstractEditorLanguage {
     public int getTabSize() {
         return StudioApp.getInstance().getPrefManager().getEditorTabSize();
     }
+    
+    /**
+     * Count the braces opened and not closed in the text, without braces in strings, character
+     * literals and comments. This is used on every newline, so the text is scanned without a lexer.
+     * The text is assumed to start outside of strings and comments.
+     *
+     * @return Count of opening braces minus count of closing braces
+     */
+    protected static int countUnclosedBraces(CharSequence text) {
+        final int length = text.length();
+        int depth = 0;
+        int i = 0;
+        while (i < length) {
+            final char ch = text.charAt(i);
+            final char next = i + 1 < length ? text.charAt(i + 1) : 0;
+            if (ch == '{') {
+                depth++;
+                i++;
+            } else if (ch == '}') {
+                depth--;
+                i++;
+            } else if (ch == '/' && next == '/') {
+                i = indexOf(text, "\n", i + 2);
+            } else if (ch == '/' && next == '*') {
+                i = indexOf(text, "*/", i + 2) + 2;
+            } else if ((ch == '"' || ch == '\'') && next == ch && i + 2 < length && text.charAt(i + 2) == ch) {
+                // Text block, or triple-quoted string of Groovy
+                i = indexOf(text, ch == '"' ? "\"\"\"" : "'''", i + 3) + 3;
+            } else if (ch == '"' || ch == '\'') {
+                i++;
+                while (i < length) {
+                    final char c = text.charAt(i);
+                    if (c == '\\') {
+                        i += 2;
+                    } else {
+                        i++;
+                        if (c == ch || c == '\n') {
+                            break;
+                        }
+                    }
+                }
+            } else {
+                i++;
+            }
+        }
+        return depth;
+    }
+    
+    /**
+     * Find the target in text from the given index
+     *
+     * @return Index of the target, or length of text if not found
+     */
+    private static int indexOf(CharSequence text, String target, int fromIndex) {
+        final int end = text.length() - target.length();
+        for (int i = fromIndex; i <= end; i++) {
+            int j = 0;
+            while (j < target.length() && text.charAt(i + j) == target.charAt(j)) {
+                j++;
+            }
+            if (j == target.length()) {
+                return i;
+            }
+        }
+        return text.length();
+    }
 }
@@ -20,48 +20,58 @@
 
 package com.itsaky.androidide.language.groovy;
 
-import androidx.annotation.NonNull;
 
+import com.itsaky.androidide.lexers.groovy.GroovyLexer;
 import com.itsaky.androidide.syntax.lexer.impls.groovy.GroovyLexerImpl;
 import com.itsaky.lsp.SemanticHighlight;
-import com.itsaky.lsp.services.IDELanguageServer;
 import io.github.rosemoe.editor.interfaces.EditorLanguage;
+import io.github.rosemoe.editor.struct.LexerCheckpoint;
 import io.github.rosemoe.editor.text.Content;
 import io.github.rosemoe.editor.text.TextAnalyzeResult;
-import io.github.rosemoe.editor.text.TextAnalyzer;
-import java.io.File;
 import java.util.Map;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
 import org.eclipse.lsp4j.Diagnostic;
-import java.io.IOException;
 
-public class GroovyAnalyzer extends io.github.rosemoe.editor.langs.AbstractCodeAnalyzer {
+public class GroovyAnalyzer extends io.github.rosemoe.editor.langs.IncrementalCodeAnalyzer {
     
     private final EditorLanguage language;
+    private GroovyLexerImpl lexer;
     
     public GroovyAnalyzer (EditorLanguage language) {
         this.language = language;
     }
     
-	@Override
-	public void analyze(IDELanguageServer server, File file, CharSequence content, TextAnalyzeResult colors, @NonNull TextAnalyzer.AnalyzeThread.Delegate delegate) throws IOException {
-		GroovyLexerImpl lexer = new GroovyLexerImpl(this.language, (Content) content, colors);
-        lexer.init();
-        
-        // Adding spans, hex colors, block lines and all is handled by GroovyLexerImpl
-        while (delegate.shouldAnalyze()) {
-            // null = EOF
-            if(lexer.nextToken() == null) {
-                break;
-            }
-        }
-        
-        if (lexer.stack.isEmpty() && lexer.currSwitch > lexer.maxSwitch) {
-            lexer.maxSwitch = lexer.currSwitch;
+
+    @Override
+    protected Lexer createLexer(CharStream input) {
+        return new GroovyLexer(input);
+    }
+
+    @Override
+    protected void onLexStart(Content content, TextAnalyzeResult colors, LexerCheckpoint checkpoint) {
+        lexer = new GroovyLexerImpl(this.language, content, colors);
+        if (checkpoint != null) {
+            lexer.restoreState(checkpoint.state);
         }
+    }
 
-        colors.determine(lexer.lastLine);
-        colors.setSuppressSwitch(lexer.maxSwitch + 10);
-	}
+    @Override
+    protected void onToken(Token token, TextAnalyzeResult colors) {
+        lexer.handleToken(token);
+    }
+
+    @Override
+    protected int getLexState() {
+        return lexer.getState();
+    }
+
+    @Override
+    protected void onLexEnd(TextAnalyzeResult colors) {
+        colors.computeBlocks();
+        lexer = null;
+    }
 
     @Override
     public void setSemanticHighlights(SemanticHighlight highlights) {
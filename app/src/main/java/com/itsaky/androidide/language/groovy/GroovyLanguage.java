@@ -18,7 +18,6 @@
 package com.itsaky.androidide.language.groovy;
 
 import com.itsaky.androidide.language.BaseLanguage;
-import com.itsaky.androidide.lexers.groovy.GroovyLexer;
 import com.itsaky.androidide.lsp.LSPProvider;
 import com.itsaky.androidide.utils.JavaCharacter;
 import com.itsaky.lsp.services.IDELanguageServer;
@@ -29,9 +28,6 @@ import io.github.rosemoe.editor.text.CharPosition;
 import io.github.rosemoe.editor.text.TextUtils;
 import io.github.rosemoe.editor.widget.SymbolPairMatch;
 import java.io.File;
-import java.io.StringReader;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.Token;
 
 public class GroovyLanguage extends BaseLanguage {
 	
@@ -74,30 +70,8 @@ public class GroovyLanguage extends BaseLanguage {
 	}
 	
 	@Override
-	public int getIndentAdvance(String p1)
-	{
-		try
-		{
-			GroovyLexer lexer = new GroovyLexer(CharStreams.fromReader(new StringReader(p1)));
-			Token token = null;
-			int advance = 0;
-			while (((token = lexer.nextToken()) != null && token.getType() != token.EOF))
-			{
-				switch (token.getType())
-				{
-					case GroovyLexer.LBRACE:
-						advance++;
-						break;
-					case GroovyLexer.RBRACE:
-						advance --;
-						break;
-				}
-			}
-			advance = Math.max(0, advance);
-			return advance * getTabSize();
-		} catch (Throwable e)
-		{}
-		return 0;
+	public int getIndentAdvance(String p1) {
+		return Math.max(0, countUnclosedBraces(p1)) * getTabSize();
 	}
 
 	@Override
@@ -18,8 +18,6 @@
 package com.itsaky.androidide.language.java;
 
 import com.itsaky.androidide.language.BaseLanguage;
-import com.itsaky.androidide.lexers.java.JavaLexer;
-import com.itsaky.androidide.lexers.java.JavaParser;
 import com.itsaky.androidide.lsp.LSPProvider;
 import com.itsaky.androidide.syntax.lexer.impls.java.JavaLexerImpl;
 import com.itsaky.androidide.utils.JavaCharacter;
@@ -31,9 +29,6 @@ import io.github.rosemoe.editor.text.CharPosition;
 import io.github.rosemoe.editor.text.TextUtils;
 import io.github.rosemoe.editor.widget.SymbolPairMatch;
 import java.io.File;
-import java.io.StringReader;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.Token;
 
 public class JavaLanguage extends BaseLanguage {
     
@@ -83,24 +78,7 @@ public class JavaLanguage extends BaseLanguage {
 
 	@Override
 	public int getIndentAdvance(String p1) {
-		try {
-			JavaLexer lexer = new JavaLexer(CharStreams.fromReader(new StringReader(p1)));
-			Token token = null;
-			int advance = 0;
-			while (((token = lexer.nextToken()) != null && token.getType() != token.EOF)) {
-				switch (token.getType()) {
-					case JavaLexer.LBRACE:
-						advance++;
-						break;
-					case JavaParser.RBRACE:
-						advance --;
-						break;
-				}
-			}
-			advance = Math.max(0, advance);
-			return advance * getTabSize();
-		} catch (Throwable e) {}
-		return 0;
+		return Math.max(0, countUnclosedBraces(p1)) * getTabSize();
 	}
 
 	@Override
@@ -23,90 +23,85 @@ package com.itsaky.androidide.language.xml;
 import android.graphics.Color;
 import com.itsaky.androidide.lexers.xml.XMLLexer;
 import com.itsaky.lsp.SemanticHighlight;
-import com.itsaky.lsp.services.IDELanguageServer;
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.struct.LexerCheckpoint;
+import io.github.rosemoe.editor.struct.SpanLine;
+import io.github.rosemoe.editor.text.Content;
 import io.github.rosemoe.editor.text.TextAnalyzeResult;
-import io.github.rosemoe.editor.text.TextAnalyzer;
 import io.github.rosemoe.editor.widget.EditorColorScheme;
-import java.io.File;
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Token;
 import org.eclipse.lsp4j.Diagnostic;
 
-public class XMLAnalyzer extends io.github.rosemoe.editor.langs.AbstractCodeAnalyzer {
+public class XMLAnalyzer extends io.github.rosemoe.editor.langs.IncrementalCodeAnalyzer {
 
-	@Override
-	public void analyze(IDELanguageServer server, File file, CharSequence content, TextAnalyzeResult colors, TextAnalyzer.AnalyzeThread.Delegate delegate) throws IOException {
-		CodePointCharStream stream = CharStreams.fromReader(new StringReader(content.toString()));
-        XMLLexer lexer = new XMLLexer(stream);
-        Token token = null, previous = null;
-        int line = 0, column = 0, lastLine = 1;
-        boolean first = true;
-        
-        while (delegate.shouldAnalyze()) {
-            token = lexer.nextToken();
-            if (token == null) {
+    // Type of last token which is not whitespace
+    private int previous;
+    private boolean first;
+
+    @Override
+    protected Lexer createLexer(CharStream input) {
+        return new XMLLexer(input);
+    }
+
+    @Override
+    protected void onLexStart(Content content, TextAnalyzeResult colors, LexerCheckpoint checkpoint) {
+        previous = checkpoint == null ? Token.INVALID_TYPE : checkpoint.state;
+        first = checkpoint == null;
+    }
+
+    @Override
+    protected int getLexState() {
+        return previous;
+    }
+
+    @Override
+    protected void onToken(Token token, TextAnalyzeResult colors) {
+        final int line = token.getLine() - 1;
+        final int column = token.getCharPositionInLine();
+        switch (token.getType()) {
+            case XMLLexer.S :
+            case XMLLexer.SEA_WS :
+                if (first) {
+                    colors.addNormalIfNull();
+                }
+                break;
+            case XMLLexer.COMMENT :
+                colors.addIfNeeded(line, column, EditorColorScheme.COMMENT);
+                break;
+            case XMLLexer.OPEN :
+            case XMLLexer.OPEN_SLASH :
+            case XMLLexer.CLOSE :
+            case XMLLexer.SLASH :
+            case XMLLexer.SLASH_CLOSE :
+            case XMLLexer.SPECIAL_CLOSE :
+            case XMLLexer.EQUALS :
+            case XMLLexer.XMLDeclOpen :
+                colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+                break;
+            case XMLLexer.STRING :
+                colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
+                addHexColorIfPresent(token, colors);
                 break;
-            }
-            
-            if (token.getType() == XMLLexer.EOF) {
-                lastLine = token.getLine() - 1;
+            case XMLLexer.Name :
+                colors.addIfNeeded(line, column, previous == XMLLexer.OPEN || previous == XMLLexer.OPEN_SLASH ? EditorColorScheme.XML_TAG : EditorColorScheme.TEXT_NORMAL);
+                addHexColorIfPresent(token, colors);
+                break;
+            case XMLLexer.TEXT :
+                colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
+                addHexColorIfPresent(token, colors);
+                break;
+            default :
+                colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
                 break;
-            }
-            
-            line = token.getLine() - 1;
-            column = token.getCharPositionInLine();
-            lastLine = line;
-            
-            Span span = null; // The added span
-            switch (token.getType()) {
-                case XMLLexer.S :
-                case XMLLexer.SEA_WS :
-                    if (first) {
-                        colors.addNormalIfNull();
-                    }
-                    break;
-                case XMLLexer.COMMENT :
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.COMMENT);
-                    break;
-                case XMLLexer.OPEN :
-                case XMLLexer.OPEN_SLASH :
-                case XMLLexer.CLOSE :
-                case XMLLexer.SLASH :
-                case XMLLexer.SLASH_CLOSE :
-                case XMLLexer.SPECIAL_CLOSE :
-                case XMLLexer.EQUALS :
-                case XMLLexer.XMLDeclOpen :
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
-                    break;
-                case XMLLexer.STRING :
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
-                    addHexColorIfPresent(token, span);
-                    break;
-                case XMLLexer.Name :
-                    span = colors.addIfNeeded(line, column, previous.getType() == XMLLexer.OPEN || previous.getType() == XMLLexer.OPEN_SLASH ? EditorColorScheme.XML_TAG : EditorColorScheme.TEXT_NORMAL);
-                    addHexColorIfPresent(token, span);
-                    break;
-                case XMLLexer.TEXT :
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
-                    addHexColorIfPresent(token, span);
-                    break;
-                default :
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
-                    break;
-            }
-            first = false;
-            if (token.getType() != XMLLexer.SEA_WS && token.getType() != XMLLexer.S)
-                previous = token;
         }
-        colors.determine(lastLine);
-	}
+        first = false;
+        if (token.getType() != XMLLexer.SEA_WS && token.getType() != XMLLexer.S)
+            previous = token.getType();
+    }
     
     @Override
     public void setSemanticHighlights(SemanticHighlight highlights) {
@@ -116,12 +111,11 @@ public class XMLAnalyzer extends io.github.rosemoe.editor.langs.AbstractCodeAnal
     public void updateDiagnostics(Map<Integer, Map<Integer, Diagnostic>> diagnostics) {
     }
     
-	private void addHexColorIfPresent(Token token, final Span span) {
+	private void addHexColorIfPresent(Token token, TextAnalyzeResult colors) {
 		Matcher m = HEX.matcher(token.getText());
 		if (m.find()) {
 			try {
-				span.underlineColor = Color.parseColor(token.getText().substring(m.start(), m.end())); 
-				span.underlineHeight = Span.HEX_COLOR_UNDERLINE_HEIGHT;
+				colors.setUnderline(Color.parseColor(token.getText().substring(m.start(), m.end())), SpanLine.HEX_COLOR_UNDERLINE_HEIGHT);
 			} catch (Throwable th) {
                 // ignored
                 // The hex color may not be a valid color code
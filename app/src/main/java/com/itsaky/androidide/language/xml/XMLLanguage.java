@@ -27,7 +27,6 @@ import io.github.rosemoe.editor.interfaces.CodeAnalyzer;
 import io.github.rosemoe.editor.interfaces.NewlineHandler;
 import io.github.rosemoe.editor.widget.SymbolPairMatch;
 import java.io.File;
-import java.io.StringReader;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.Token;
 
@@ -83,7 +82,7 @@ public class XMLLanguage extends BaseLanguage {
 	@Override
 	public int getIndentAdvance(String content) {
 		try {
-			XMLLexer lexer = new XMLLexer(CharStreams.fromReader(new StringReader(content)));
+			XMLLexer lexer = new XMLLexer(CharStreams.fromString(content));
 			Token token = null;
 			int advance = 0;
 			while (((token = lexer.nextToken()) != null && token.getType() != token.EOF)) {
@@ -27,7 +27,8 @@ import com.itsaky.attrinfo.AttrInfo;
 import com.itsaky.attrinfo.models.Attr;
 import com.itsaky.widgets.WidgetInfo;
 import com.itsaky.widgets.models.Widget;
-import java.io.StringReader;
+import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.text.ContentCharStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -228,7 +229,7 @@ public class XMLCompletionService {
 		
 		public String scan(CharSequence xmlContent) {
 			try {
-				XMLLexer lexer = new XMLLexer(CharStreams.fromReader(new StringReader(xmlContent.toString())));
+				XMLLexer lexer = new XMLLexer(xmlContent instanceof Content ? new ContentCharStream((Content) xmlContent) : CharStreams.fromString(xmlContent.toString()));
 				Token token;
 				String attrName = null;
 				while((token = lexer.nextToken()) != null && token.getType() != XMLLexer.EOF) {
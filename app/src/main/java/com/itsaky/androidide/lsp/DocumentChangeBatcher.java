@@ -0,0 +1,255 @@
+/************************************************************************************
+ * This file is part of AndroidIDE.
+ *
+ *  
+ *
+ * AndroidIDE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AndroidIDE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AndroidIDE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+**************************************************************************************/
+
+
+package com.itsaky.androidide.lsp;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+
+/**
+ * Collects the changes made to a document and sends them to the language server
+ * in a single 'textDocument/didChange' notification.
+ * <br>
+ * Consecutive edits (typing, backspace, forward delete) are merged into a single
+ * change event. The pending changes are sent when the batch window is over or when
+ * {@link #flush()} is called. {@link #flush()} must be called before sending any request
+ * which depends on the state of the document (completion, code actions, definition, etc.).
+ * <br>
+ * All methods of this class must be called on the main thread.
+ */
+public class DocumentChangeBatcher implements Runnable {
+    
+    /**
+     * Default time window (in milliseconds) in which the changes are collected
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 150;
+    
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<TextDocumentContentChangeEvent> pending = new ArrayList<>();
+    private final ChangeReceiver receiver;
+    private long batchWindow = DEFAULT_BATCH_WINDOW;
+    private boolean fullSyncRequired = false;
+    private boolean scheduled = false;
+    
+    public DocumentChangeBatcher(ChangeReceiver receiver) {
+        if (receiver == null) {
+            throw new IllegalArgumentException("receiver cannot be null");
+        }
+        this.receiver = receiver;
+    }
+    
+    /**
+     * Set the time window in which the changes will be collected.
+     * Zero or negative value disables batching and every change is sent immediately.
+     *
+     * @param batchWindow The time window in milliseconds
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+    
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+    
+    /**
+     * @return Whether there are changes which are yet to be sent
+     */
+    public boolean hasPendingChanges() {
+        return fullSyncRequired || !pending.isEmpty();
+    }
+    
+    /**
+     * Add a ranged change. The range must be relative to the document after all the
+     * previously added changes were applied.
+     *
+     * @param event The change event
+     */
+    public void addChange(TextDocumentContentChangeEvent event) {
+        if (!fullSyncRequired) {
+            final TextDocumentContentChangeEvent last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+            if (last == null || !merge(last, event)) {
+                pending.add(event);
+            }
+        }
+        schedule();
+    }
+    
+    /**
+     * Mark that the whole document must be sent. Any pending ranged changes are dropped
+     * as the full document will contain them anyway.
+     */
+    public void requestFullSync() {
+        fullSyncRequired = true;
+        pending.clear();
+        schedule();
+    }
+    
+    /**
+     * Send the pending changes to the receiver right now.
+     */
+    public void flush() {
+        handler.removeCallbacks(this);
+        scheduled = false;
+        if (!hasPendingChanges()) {
+            return;
+        }
+        
+        final List<TextDocumentContentChangeEvent> changes;
+        if (fullSyncRequired) {
+            changes = Collections.singletonList(receiver.createFullSyncEvent());
+        } else {
+            changes = new ArrayList<>(pending);
+        }
+        
+        pending.clear();
+        fullSyncRequired = false;
+        receiver.sendChanges(changes);
+    }
+    
+    /**
+     * Drop all the pending changes without sending them.
+     */
+    public void clear() {
+        handler.removeCallbacks(this);
+        scheduled = false;
+        pending.clear();
+        fullSyncRequired = false;
+    }
+    
+    @Override
+    public void run() {
+        flush();
+    }
+    
+    private void schedule() {
+        if (batchWindow <= 0) {
+            flush();
+            return;
+        }
+        
+        // The window starts with the first pending change
+        // So that continuous typing does not delay the notification forever
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(this, batchWindow);
+        }
+    }
+    
+    /**
+     * Try to merge the given change into the last pending change.
+     *
+     * @return {@code true} if the change was merged.
+     */
+    private boolean merge(TextDocumentContentChangeEvent last, TextDocumentContentChangeEvent event) {
+        final Range lastRange = last.getRange();
+        final Range range = event.getRange();
+        if (lastRange == null || range == null || !isSingleLine(lastRange) || !isSingleLine(range)) {
+            return false;
+        }
+        
+        final String lastText = last.getText() == null ? "" : last.getText();
+        final String text = event.getText() == null ? "" : event.getText();
+        if (lastText.indexOf('\n') != -1 || text.indexOf('\n') != -1) {
+            return false;
+        }
+        
+        final int line = lastRange.getStart().getLine();
+        if (range.getStart().getLine() != line) {
+            return false;
+        }
+        
+        final int lastStart = lastRange.getStart().getCharacter();
+        final int lastEnd = lastRange.getEnd().getCharacter();
+        final int start = range.getStart().getCharacter();
+        final int end = range.getEnd().getCharacter();
+        
+        // After 'last' is applied, its text occupies [lastStart, lastInsertedEnd)
+        final int lastInsertedEnd = lastStart + lastText.length();
+        
+        if (start == end) {
+            // Insertion right after the text inserted by last change
+            if (start != lastInsertedEnd) {
+                return false;
+            }
+            last.setText(lastText + text);
+            return true;
+        }
+        
+        if (!text.isEmpty()) {
+            return false;
+        }
+        
+        if (lastText.isEmpty()) {
+            // Both are deletions
+            if (end == lastStart) {
+                // Backspace
+                last.setRange(newRange(line, start, lastEnd));
+                return true;
+            } else if (start == lastStart) {
+                // Forward delete
+                last.setRange(newRange(line, lastStart, lastEnd + (end - start)));
+                return true;
+            }
+            return false;
+        }
+        
+        // Deletion inside the text inserted by last change
+        if (start >= lastStart && end <= lastInsertedEnd) {
+            last.setText(lastText.substring(0, start - lastStart) + lastText.substring(end - lastStart));
+            return true;
+        }
+        
+        return false;
+    }
+    
+    private boolean isSingleLine(Range range) {
+        return range.getStart().getLine() == range.getEnd().getLine();
+    }
+    
+    private Range newRange(int line, int start, int end) {
+        return new Range(new Position(line, start), new Position(line, end));
+    }
+    
+    /**
+     * Receives the changes collected by {@link DocumentChangeBatcher}
+     */
+    public interface ChangeReceiver {
+        
+        /**
+         * Send the given changes to the language server
+         *
+         * @param changes The changes to send. Never empty.
+         */
+        void sendChanges(List<TextDocumentContentChangeEvent> changes);
+        
+        /**
+         * Create a change event containing the whole document.
+         */
+        TextDocumentContentChangeEvent createFullSyncEvent();
+    }
+}
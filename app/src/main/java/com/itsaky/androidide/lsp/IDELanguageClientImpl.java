@@ -26,6 +26,7 @@ import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 import android.view.View;
 import androidx.core.content.ContextCompat;
+import androidx.fragment.app.Fragment;
 import androidx.transition.ChangeBounds;
 import androidx.transition.Fade;
 import androidx.transition.TransitionManager;
@@ -65,6 +66,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import org.eclipse.lsp4j.CodeAction;
@@ -358,8 +360,11 @@ public class IDELanguageClientImpl implements IDELanguageClient {
         File file = new File(URI.create(params.getUri()));
         if(!file.exists() || !file.isFile()) return;
         
-        diagnostics.put(file, params.getDiagnostics());
-        activity().getDiagnosticsList().setAdapter(newDiagnosticsAdapter());
+        // Servers often publish the same diagnostics again, avoid rebuilding the list then
+        final List<Diagnostic> previous = diagnostics.put(file, params.getDiagnostics());
+        if(!Objects.equals(previous, params.getDiagnostics())) {
+            activity().getDiagnosticsList().setAdapter(newDiagnosticsAdapter());
+        }
         
         EditorFragment editor = null;
         if(activity().getPagerAdapter() != null && (editor = activity().getPagerAdapter().findEditorByFile(file)) != null) {
@@ -658,7 +663,22 @@ public class IDELanguageClientImpl implements IDELanguageClient {
 
     @Override
     public CompletableFuture<Void> refreshSemanticTokens() {
-        return null;
+        if(activity() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        ThreadUtils.runOnUiThread(() -> {
+            if(activity() == null || activity().getPagerAdapter() == null) {
+                return;
+            }
+            
+            for(Fragment fragment : activity().getPagerAdapter().getFragments()) {
+                if(fragment instanceof EditorFragment && ((EditorFragment) fragment).getEditor() != null) {
+                    ((EditorFragment) fragment).getEditor().requestSemanticTokens();
+                }
+            }
+        });
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
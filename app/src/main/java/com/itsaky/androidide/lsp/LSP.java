@@ -26,9 +26,11 @@ import com.itsaky.androidide.lsp.handlers.JLSHandler;
 import com.itsaky.androidide.utils.Logger;
 import com.itsaky.lsp.services.IDELanguageServer;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.eclipse.lsp4j.ClientCapabilities;
@@ -47,8 +49,13 @@ import org.eclipse.lsp4j.FileOperationsWorkspaceCapabilities;
 import org.eclipse.lsp4j.FileRename;
 import org.eclipse.lsp4j.GeneralClientCapabilities;
 import org.eclipse.lsp4j.RenameFilesParams;
+import org.eclipse.lsp4j.SemanticTokenModifiers;
+import org.eclipse.lsp4j.SemanticTokensCapabilities;
+import org.eclipse.lsp4j.SemanticTokensClientCapabilitiesRequests;
+import org.eclipse.lsp4j.SemanticTokensClientCapabilitiesRequestsFull;
 import org.eclipse.lsp4j.SynchronizationCapabilities;
 import org.eclipse.lsp4j.TextDocumentClientCapabilities;
+import org.eclipse.lsp4j.TokenFormat;
 import org.eclipse.lsp4j.WindowClientCapabilities;
 import org.eclipse.lsp4j.WorkspaceClientCapabilities;
 
@@ -189,9 +196,26 @@ public class LSP {
         c.setSynchronization(synchronizationCapabilities());
         c.setColorProvider(new ColorProviderCapabilities());
         c.setCompletion(completionCapabilities());
+        c.setSemanticTokens(semanticTokensCapabilities());
         return c;
     }
 
+    private static SemanticTokensCapabilities semanticTokensCapabilities() {
+        final List<String> types = new ArrayList<>();
+        for (TokenType type : TokenType.values()) {
+            types.add(type.toString());
+        }
+        final List<String> modifiers = new ArrayList<>();
+        for (TokenModifiers modifier : TokenModifiers.values()) {
+            modifiers.add(modifier.toString());
+        }
+        modifiers.add(SemanticTokenModifiers.Declaration);
+        
+        final SemanticTokensClientCapabilitiesRequests requests = new SemanticTokensClientCapabilitiesRequests();
+        requests.setFull(new SemanticTokensClientCapabilitiesRequestsFull(true));
+        return new SemanticTokensCapabilities(requests, types, modifiers, Collections.singletonList(TokenFormat.Relative));
+    }
+
     private static CompletionCapabilities completionCapabilities() {
         CompletionCapabilities c = new CompletionCapabilities();
         return c;
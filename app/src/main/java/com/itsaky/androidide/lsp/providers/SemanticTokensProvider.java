@@ -0,0 +1,213 @@
+/************************************************************************************
+ * This file is part of AndroidIDE.
+ *
+ *  
+ *
+ * AndroidIDE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AndroidIDE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AndroidIDE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+**************************************************************************************/
+package com.itsaky.androidide.lsp.providers;
+
+import com.itsaky.lsp.services.IDELanguageServer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensDeltaParams;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.eclipse.lsp4j.SemanticTokensLegend;
+import org.eclipse.lsp4j.SemanticTokensParams;
+import org.eclipse.lsp4j.SemanticTokensServerFull;
+import org.eclipse.lsp4j.SemanticTokensWithRegistrationOptions;
+import org.eclipse.lsp4j.ServerCapabilities;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+
+/**
+ * Provides semantic tokens of a document to editor.
+ * Keeps the last token data and its result id, so that later requests only fetch
+ * the edits to it (if the server supports deltas). Handles cancellation of last incomplete request.
+ */
+public class SemanticTokensProvider {
+    
+    private final SemanticTokensLegend legend;
+    private final boolean deltaSupported;
+    
+    private int[] data = new int[0];
+    private String resultId;
+    private CompletableFuture<?> lastRequest;
+    
+    private SemanticTokensProvider(SemanticTokensLegend legend, boolean deltaSupported) {
+        this.legend = legend;
+        this.deltaSupported = deltaSupported;
+    }
+    
+    /**
+     * Create a provider for the server with the given capabilities
+     *
+     * @return The provider, or {@code null} if the server does not provide full semantic tokens
+     */
+    public static SemanticTokensProvider create(ServerCapabilities c) {
+        final SemanticTokensWithRegistrationOptions options = c == null ? null : c.getSemanticTokensProvider();
+        if(options == null || options.getLegend() == null || options.getFull() == null) {
+            return null;
+        }
+        
+        final Either<Boolean, SemanticTokensServerFull> full = options.getFull();
+        if(full.isLeft()) {
+            return Boolean.TRUE.equals(full.getLeft()) ? new SemanticTokensProvider(options.getLegend(), false) : null;
+        }
+        
+        final SemanticTokensServerFull fullOptions = full.getRight();
+        return new SemanticTokensProvider(options.getLegend(), fullOptions != null && Boolean.TRUE.equals(fullOptions.getDelta()));
+    }
+    
+    public SemanticTokensLegend getLegend() {
+        return legend;
+    }
+    
+    /**
+     * Request the semantic tokens of the document.
+     * The future completes with the token data in the compact relative encoding, or with
+     * {@code null} if the response is outdated.
+     */
+    public synchronized CompletableFuture<int[]> semanticTokens(IDELanguageServer server, TextDocumentIdentifier documentId) {
+        
+        if(lastRequest != null && !lastRequest.isDone()) {
+            lastRequest.cancel(true);
+        }
+        
+        if(server == null || documentId == null)
+            return null;
+        
+        final String baseResultId = resultId;
+        if(baseResultId != null && deltaSupported) {
+            final CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> request =
+                server.getTextDocumentService().semanticTokensFullDelta(new SemanticTokensDeltaParams(documentId, baseResultId));
+            lastRequest = request;
+            return request.handle((result, error) -> onResult(baseResultId, result, error));
+        }
+        
+        final CompletableFuture<SemanticTokens> request = server.getTextDocumentService().semanticTokensFull(new SemanticTokensParams(documentId));
+        lastRequest = request;
+        return request.handle((result, error) -> onResult(baseResultId, result == null ? null : Either.forLeft(result), error));
+    }
+    
+    /**
+     * Get the token data of the last result, which is empty if there is no result yet
+     */
+    public synchronized int[] getData() {
+        return data;
+    }
+    
+    /**
+     * Forget the last result, so that the next request fetches all tokens
+     */
+    public synchronized void reset() {
+        data = new int[0];
+        resultId = null;
+    }
+    
+    private synchronized int[] onResult(String baseResultId, Either<SemanticTokens, SemanticTokensDelta> result, Throwable error) {
+        if(!Objects.equals(baseResultId, resultId)) {
+            // Another response has been applied since this request was sent
+            return null;
+        }
+        
+        if(error instanceof CancellationException) {
+            // Superseded by a newer request with the same base
+            return null;
+        }
+        
+        if(error != null || result == null) {
+            // The server may have moved on to a new result id even if we did not receive it
+            resultId = null;
+            return null;
+        }
+        
+        if(result.isLeft()) {
+            final SemanticTokens tokens = result.getLeft();
+            data = toArray(tokens.getData());
+            resultId = tokens.getResultId();
+            return data;
+        }
+        
+        final SemanticTokensDelta delta = result.getRight();
+        final int[] edited = delta == null ? null : applyEdits(data, delta.getEdits());
+        if(edited == null) {
+            resultId = null;
+            return null;
+        }
+        data = edited;
+        resultId = delta.getResultId();
+        return data;
+    }
+    
+    /**
+     * Apply the edits to the token data
+     *
+     * @return New token data, or {@code null} if the edits are invalid
+     */
+    private static int[] applyEdits(int[] old, List<SemanticTokensEdit> edits) {
+        if(edits == null || edits.isEmpty()) {
+            return old;
+        }
+        
+        final List<SemanticTokensEdit> sorted = new ArrayList<>(edits);
+        Collections.sort(sorted, (a, b) -> Integer.compare(a.getStart(), b.getStart()));
+        
+        int size = old.length;
+        for(SemanticTokensEdit edit : sorted) {
+            size += (edit.getData() == null ? 0 : edit.getData().size()) - edit.getDeleteCount();
+        }
+        if(size < 0) {
+            return null;
+        }
+        
+        final int[] result = new int[size];
+        int src = 0;
+        int dst = 0;
+        for(SemanticTokensEdit edit : sorted) {
+            final int start = edit.getStart();
+            if(start < src || start + edit.getDeleteCount() > old.length) {
+                return null;
+            }
+            System.arraycopy(old, src, result, dst, start - src);
+            dst += start - src;
+            if(edit.getData() != null) {
+                for(Integer value : edit.getData()) {
+                    result[dst++] = value;
+                }
+            }
+            src = start + edit.getDeleteCount();
+        }
+        System.arraycopy(old, src, result, dst, old.length - src);
+        return result;
+    }
+    
+    private static int[] toArray(List<Integer> list) {
+        if(list == null) {
+            return new int[0];
+        }
+        final int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -26,18 +26,17 @@ import android.graphics.Color;
 import androidx.annotation.NonNull;
 
 import com.itsaky.androidide.syntax.lexer.DefaultLexer;
-import io.github.rosemoe.editor.struct.BlockLine;
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.struct.SpanLine;
 import io.github.rosemoe.editor.text.Content;
 import io.github.rosemoe.editor.text.TextAnalyzeResult;
 import io.github.rosemoe.editor.widget.EditorColorScheme;
 
 import java.util.ArrayList;
-import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Token;
+import org.eclipse.lsp4j.Position;
 
 /**
  * Java and Groovy lexer is almost same
@@ -50,23 +49,62 @@ public abstract class BaseJavaLexer extends DefaultLexer {
     protected Lexer lexer;
 	protected Content content;
 	public int lastLine;
-	public int maxSwitch;
-	public int currSwitch;
 	protected int previous;
 	protected boolean wasClassName;
 	protected boolean isFirst;
 	protected org.antlr.v4.runtime.Token currentToken;
 
 	protected TextAnalyzeResult colors;
-	public final Stack<BlockLine> stack = new Stack<BlockLine>();
 	protected ArrayList<Integer> builtinTypes;
 	
-	protected void addHexColorIfPresent(@NonNull Token token, final Span span, TextAnalyzeResult result, int endLine, int endColumn) {
+	/**
+	 * Add spans for a token which is lexed by incremental analysis
+	 */
+	public void handleToken(Token token) {
+		currentToken = token;
+		type();
+	}
+	
+	/**
+	 * State of this lexer which affects the spans of following tokens
+	 */
+	public int getState() {
+		return ((previous + 1) << 1) | (wasClassName ? 1 : 0);
+	}
+	
+	/**
+	 * Restore the state returned by {@link #getState()} when lexing restarts from a checkpoint
+	 */
+	public void restoreState(int state) {
+		previous = (state >> 1) - 1;
+		wasClassName = (state & 1) != 0;
+		isFirst = false;
+	}
+	
+	/**
+	 * Position of the last character of current token
+	 */
+	protected Position tokenEnd(int line, int column) {
+		final String text = currentToken.getText();
+		int endLine = line;
+		int lastNewline = -1;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				endLine++;
+				lastNewline = i;
+			}
+		}
+		if (endLine == line) {
+			return new Position(line, column + text.length() - 1);
+		}
+		return new Position(endLine, text.length() - lastNewline - 2);
+	}
+	
+	protected void addHexColorIfPresent(@NonNull Token token, TextAnalyzeResult result, int endLine, int endColumn) {
 		Matcher m = HEX.matcher(token.getText());
 		if (m.find()) {
 			try {
-				span.underlineColor = Color.parseColor(token.getText().substring(m.start(), m.end()));
-				span.underlineHeight = Span.HEX_COLOR_UNDERLINE_HEIGHT;
+				result.setUnderline(Color.parseColor(token.getText().substring(m.start(), m.end())), SpanLine.HEX_COLOR_UNDERLINE_HEIGHT);
 
 				result.addIfNeeded(endLine, endColumn, EditorColorScheme.TEXT_NORMAL);
 			} catch (Throwable th) {
@@ -28,10 +28,9 @@ import com.itsaky.androidide.syntax.lexer.tokens.TokenType;
 import com.itsaky.androidide.utils.LSPUtils;
 import io.github.rosemoe.editor.interfaces.EditorLanguage;
 import io.github.rosemoe.editor.interfaces.NewlineHandler;
-import io.github.rosemoe.editor.struct.BlockLine;
-import io.github.rosemoe.editor.struct.Span;
 import io.github.rosemoe.editor.text.CharPosition;
 import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.text.ContentCharStream;
 import io.github.rosemoe.editor.text.TextAnalyzeResult;
 import io.github.rosemoe.editor.text.TextUtils;
 import io.github.rosemoe.editor.widget.EditorColorScheme;
@@ -52,8 +51,6 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
         this.language = language;
 		this.content = content;
 		this.colors = colors;
-		this.maxSwitch = 0;
-		this.currSwitch = 0;
 		this.previous = -1;
 		this.wasClassName = false;
 		this.isFirst = true;
@@ -73,7 +70,7 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
 
 	@Override
 	public void init() throws IOException {
-		lexer = new GroovyLexer(content.toString());
+		lexer = new GroovyLexer(new ContentCharStream(content));
 	}
 
 	@Override
@@ -112,7 +109,6 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
         
 		TokenType type = TokenType.TEXT;
         
-        Span span;
 		switch(tokenType) {
 			case GroovyLexer.WS :
 				type = TokenType.WS;
@@ -161,7 +157,7 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
 			case GroovyLexer.VOLATILE:
 			case GroovyLexer.WHILE:
 				type = TokenType.KEYWORD;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.KEYWORD);
+				colors.addIfNeeded(line, column, EditorColorScheme.KEYWORD);
 				wasClassName = false;
 				break;
 			case GroovyLexer.DECIMAL_LITERAL:
@@ -174,15 +170,15 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
 			case GroovyLexer.CHAR_LITERAL:
 			case GroovyLexer.NULL_LITERAL:
 				type = TokenType.NUMBER_LITERAL;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
+				colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
 				wasClassName = false;
 				break;
 			case GroovyLexer.STRING_LITERAL :
 			case GroovyLexer.SINGLE_QUOTE_STRING :
 				type = TokenType.STRING_LITERAL;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
+				colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
 				wasClassName = false;
-				addHexColorIfPresent(currentToken, span, colors, line, column + currentToken.getText().length());
+				addHexColorIfPresent(currentToken, colors, line, column + currentToken.getText().length());
 				break;
 			case GroovyLexer.LPAREN :
 			case GroovyLexer.RPAREN :
@@ -229,7 +225,7 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
 			case GroovyLexer.ELLIPSIS :
 			case GroovyLexer.DOT :
 				type = TokenType.OPERATOR;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+				colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
 				wasClassName = false;
 				break;
 			case GroovyLexer.BOOLEAN:
@@ -242,73 +238,58 @@ public class GroovyLexerImpl extends BaseJavaLexer implements Lexer {
 			case GroovyLexer.LONG:
 			case GroovyLexer.SHORT:
 				type = TokenType.TYPE;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.TYPE_NAME);
+				colors.addIfNeeded(line, column, EditorColorScheme.TYPE_NAME);
 				wasClassName = true;
 				break;
 
 			case GroovyLexer.COMMENT :
 			case GroovyLexer.LINE_COMMENT :
 				type = TokenType.COMMENT;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.COMMENT);
+				colors.addIfNeeded(line, column, EditorColorScheme.COMMENT);
 				wasClassName = false;
 				break;
 			case GroovyLexer.AT :
 				type = TokenType.ANNOTATION;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
+				colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
 				wasClassName = false;
 				break;
 			case GroovyLexer.IDENTIFIER :
 				type = TokenType.IDENTIFIER;
 
 				if (previous == GroovyLexer.AT) {
-					span = colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
+					colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
 					wasClassName = false;
 					break;
 				}
 
 				if ((previous == GroovyLexer.IDENTIFIER || builtinTypes.contains(previous)) && wasClassName) {
-					span = colors.addIfNeeded(line, column, EditorColorScheme.LOCAL_VARIABLE);
+					colors.addIfNeeded(line, column, EditorColorScheme.LOCAL_VARIABLE);
 					wasClassName = false;
 					break;
 				}
 
-				span = colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
+				colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
 				break;
 			case GroovyLexer.LBRACE :
 				type = TokenType.OPERATOR;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+				colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
 				wasClassName = false;
-				if (stack.isEmpty()) {
-					if (currSwitch > maxSwitch)
-						maxSwitch = currSwitch;
-					currSwitch = 0;
-				}
-				currSwitch++;
-				BlockLine block = colors.obtainNewBlock();
-				block.startLine = line;
-				block.startColumn = column;
-				stack.push(block);
+				colors.addBracket(line, column, true);
 				break;
 			case GroovyLexer.RBRACE :
 				type = TokenType.OPERATOR;
-				span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+				colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
 				wasClassName = false;
-				if (!stack.isEmpty()) {
-					BlockLine block2 = stack.pop();
-					block2.endLine = line;
-					block2.endColumn = column;
-					if (block2.startLine != block2.endLine)
-						colors.addBlockLine(block2);
-				}
+				colors.addBracket(line, column, false);
 				break;
 			default:
 				type = TokenType.TEXT;
 				wasClassName = false;
 				if (tokenType == GroovyLexer.LBRACK || (tokenType == GroovyLexer.RBRACK && previous == GroovyLexer.LBRACK)) {
-					span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+					colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
 					break;
 				}
-				span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+				colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
 				break;
 		}
 
@@ -19,159 +19,210 @@
 
 package com.itsaky.androidide.syntax.lexer.impls.java;
 
-import com.itsaky.androidide.utils.LSPUtils;
+import com.itsaky.androidide.lsp.TokenModifiers;
+import com.itsaky.androidide.lsp.TokenType;
 import com.itsaky.lsp.SemanticHighlight;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SemanticTokenModifiers;
+import org.eclipse.lsp4j.SemanticTokensLegend;
 
 import static io.github.rosemoe.editor.widget.EditorColorScheme.*;
 
+/**
+ * Index of semantic highlights by the start position of ranges.
+ * It is built once for each {@link SemanticHighlight} (or standard semantic tokens), and
+ * finding the color of a token is a binary search in a sorted array of positions.
+ */
 public class HighlightRangeHelper {
     
-    private final SemanticHighlight highlights;
-    
     public static final int NOT_FOUND = -29291; // Some random integer
     
-    public HighlightRangeHelper(SemanticHighlight highlights) {
-        this.highlights = highlights;
-    }
+    /**
+     * Sorted start positions of ranges, as (line << 32 | column)
+     */
+    private final long[] positions;
     
-    public void sort () {
-        sortHighlights(LSPUtils.RANGE_START_COMPARATOR);
-    }
+    /**
+     * Color ids of positions
+     */
+    private final int[] colors;
     
-    public boolean isEnumType(int line, int column) {
-        if(highlights == null || highlights.enumTypes == null) return false;
-        return isInRange(highlights.enumTypes, line, column);
-    }
-
-    public boolean isAnnotationType(int line, int column) {
-        if(highlights == null || highlights.annotationTypes == null) return false;
-        return isInRange(highlights.annotationTypes, line, column);
-    }
-
-    public boolean isInterface(int line, int column) {
-        if(highlights == null || highlights.interfaces == null) return false;
-        return isInRange(highlights.interfaces, line, column);
-    }
-
-    public boolean isEnum(int line, int column) {
-        if(highlights == null || highlights.enums == null) return false;
-        return isInRange(highlights.enums, line, column);
-    }
-
-    public boolean isParameter(int line, int column) {
-        if(highlights == null || highlights.parameters == null) return false;
-        return isInRange(highlights.parameters, line, column);
-    }
-
-    public boolean isExceptionParam(int line, int column) {
-        if(highlights == null || highlights.exceptionParams == null) return false;
-        return isInRange(highlights.exceptionParams, line, column);
-    }
-
-    public boolean isConstructor(int line, int column) {
-        if(highlights == null || highlights.constructors == null) return false;
-        return isInRange(highlights.constructors, line, column);
-    }
-
-    public boolean isStaticInit(int line, int column) {
-        if(highlights == null || highlights.staticInits == null) return false;
-        return isInRange(highlights.staticInits, line, column);
-    }
-
-    public boolean isInstanceInit(int line, int column) {
-        if(highlights == null || highlights.instanceInits == null) return false;
-        return isInRange(highlights.instanceInits, line, column);
-    }
-
-    public boolean isTypeParam(int line, int column) {
-        if(highlights == null || highlights.typeParams == null) return false;
-        return isInRange(highlights.typeParams, line, column);
-    }
-
-    public boolean isResourceVariable(int line, int column) {
-        if(highlights == null || highlights.resourceVariables == null) return false;
-        return isInRange(highlights.resourceVariables, line, column);
-    }
-
-    public boolean isPackageName(int line, int column) {
-        if(highlights == null || highlights.packages == null) return false;
-        return isInRange(highlights.packages, line, column);
-    }
-
-    public boolean isClassName(int line, int column) {
-        if(highlights == null || highlights.classNames == null) return false;
-        return isInRange(highlights.classNames, line, column);
-    }
-
-    public boolean isField(int line, int column) {
-        if(highlights == null || highlights.fields == null) return false;
-        return isInRange(highlights.fields, line, column);
-    }
-
-    public boolean isStaticField(int line, int column) {
-        if(highlights == null || highlights.statics == null) return false;
-        return isInRange(highlights.statics, line, column);
-    }
-
-    public boolean isMethodDeclaration(int line, int column) {
-        if(highlights == null || highlights.methodDeclarations == null) return false;
-        return isInRange(highlights.methodDeclarations, line, column);
+    @SuppressWarnings("unchecked")
+    public HighlightRangeHelper(SemanticHighlight h) {
+        if (h == null) {
+            positions = new long[0];
+            colors = new int[0];
+            return;
+        }
+        
+        // If a position is in more than one list, the first list wins
+        final List<Range>[] lists = new List[] {
+            h.packages,
+            h.enumTypes,
+            h.classNames,
+            h.annotationTypes,
+            h.interfaces,
+            h.enums,
+            h.statics,
+            h.fields,
+            h.parameters,
+            h.locals,
+            h.exceptionParams,
+            h.methodDeclarations,
+            h.methodInvocations,
+            h.constructors,
+            h.staticInits,
+            h.instanceInits,
+            h.typeParams,
+            h.resourceVariables
+        };
+        final int[] listColors = {
+            PACKAGE_NAME,
+            ENUM_TYPE,
+            TYPE_NAME,
+            ANNOTATION,
+            INTERFACE,
+            ENUM,
+            STATIC_FIELD,
+            FIELD,
+            PARAMETER,
+            LOCAL_VARIABLE,
+            EXCEPTION_PARAM,
+            METHOD_DECLARATION,
+            METHOD_INVOCATION,
+            CONSTRUCTOR,
+            STATIC_INIT,
+            INSTANCE_INIT,
+            TYPE_PARAM,
+            RESOURCE_VARIABLE
+        };
+        
+        int total = 0;
+        for (List<Range> list : lists) {
+            if (list != null) {
+                total += list.size();
+            }
+        }
+        long[] all = new long[total];
+        int count = 0;
+        for (List<Range> list : lists) {
+            if (list == null) continue;
+            for (int i = 0; i < list.size(); i++) {
+                final Range range = list.get(i);
+                if (range == null) continue;
+                all[count++] = pack(range.getStart().getLine(), range.getStart().getCharacter());
+            }
+        }
+        Arrays.sort(all, 0, count);
+        
+        // Remove duplicated positions
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || all[unique - 1] != all[i]) {
+                all[unique++] = all[i];
+            }
+        }
+        positions = Arrays.copyOf(all, unique);
+        colors = new int[unique];
+        Arrays.fill(colors, NOT_FOUND);
+        
+        for (int l = 0; l < lists.length; l++) {
+            final List<Range> list = lists[l];
+            if (list == null) continue;
+            for (int i = 0; i < list.size(); i++) {
+                final Range range = list.get(i);
+                if (range == null) continue;
+                final int index = Arrays.binarySearch(positions, pack(range.getStart().getLine(), range.getStart().getCharacter()));
+                if (colors[index] == NOT_FOUND) {
+                    colors[index] = listColors[l];
+                }
+            }
+        }
     }
-
-    public boolean isMethodInvocation(int line, int column) {
-        if(highlights == null || highlights.methodInvocations == null) return false;
-        return isInRange(highlights.methodInvocations, line, column);
+    
+    private HighlightRangeHelper(long[] positions, int[] colors) {
+        this.positions = positions;
+        this.colors = colors;
     }
-
-    public boolean isLocal(int line, int column) {
-        if(highlights == null || highlights.locals == null) return false;
-        return isInRange(highlights.locals, line, column);
+    
+    /**
+     * Create a helper from semantic tokens in the compact relative encoding
+     * (deltaLine, deltaStart, length, tokenType, tokenModifiers) of LSP.
+     *
+     * @param data   The token data
+     * @param legend Legend of token types and modifiers used by the server
+     */
+    public static HighlightRangeHelper fromSemanticTokens(int[] data, SemanticTokensLegend legend) {
+        if (data == null || legend == null || legend.getTokenTypes() == null) {
+            return new HighlightRangeHelper(null);
+        }
+        
+        final List<String> types = legend.getTokenTypes();
+        final int[] typeColors = new int[types.size()];
+        for (int i = 0; i < typeColors.length; i++) {
+            typeColors[i] = findTypeColor(types.get(i));
+        }
+        final int propertyType = types.indexOf(TokenType.PROPERTY.toString());
+        final int methodType = types.indexOf(TokenType.METHOD.toString());
+        final List<String> modifiers = legend.getTokenModifiers();
+        final int staticMask = modifierMask(modifiers, TokenModifiers.STATIC.toString());
+        final int declarationMask = modifierMask(modifiers, SemanticTokenModifiers.Declaration);
+        
+        final int count = data.length / 5;
+        final long[] positions = new long[count];
+        final int[] colors = new int[count];
+        int size = 0;
+        int line = 0;
+        int column = 0;
+        for (int i = 0; i < count; i++) {
+            final int deltaLine = data[i * 5];
+            line += deltaLine;
+            column = deltaLine == 0 ? column + data[i * 5 + 1] : data[i * 5 + 1];
+            final int type = data[i * 5 + 3];
+            final int mods = data[i * 5 + 4];
+            if (type < 0 || type >= typeColors.length || typeColors[type] == NOT_FOUND) {
+                continue;
+            }
+            int color = typeColors[type];
+            if (type == propertyType && (mods & staticMask) != 0) {
+                color = STATIC_FIELD;
+            } else if (type == methodType && declarationMask != 0 && (mods & declarationMask) == 0) {
+                color = METHOD_INVOCATION;
+            }
+            positions[size] = pack(line, column);
+            colors[size] = color;
+            size++;
+        }
+        return new HighlightRangeHelper(Arrays.copyOf(positions, size), Arrays.copyOf(colors, size));
     }
-
-    public boolean isInRange(List<Range> ranges, int line, int column) {
-        if(ranges != null && ranges.size() > 0) {
-            for(int i=0;i<ranges.size();i++) {
-                final Range range = ranges.get(i);
-                if(range == null) continue;
-                if(range.getStart().getLine() == line && range.getStart().getCharacter() == column)
-                    return true;
+    
+    private static int findTypeColor(String name) {
+        for (TokenType type : TokenType.values()) {
+            if (type != TokenType.UNKNOWN && type.toString().equals(name)) {
+                return type.getEditorType();
             }
-        } 
-        return false;
+        }
+        return NOT_FOUND;
     }
     
-    public void sortHighlights(Comparator<Range> comparator) {
-        final SemanticHighlight h = this.highlights;
-        sortAll(comparator,
-
-                // Semantic highlights
-                h.packages,
-                h.enumTypes,
-                h.classNames,
-                h.annotationTypes,
-                h.interfaces,
-                h.enums,
-                h.statics,
-                h.fields,
-                h.parameters,
-                h.locals,
-                h.exceptionParams,
-                h.methodDeclarations,
-                h.methodInvocations,
-                h.constructors,
-                h.staticInits,
-                h.instanceInits,
-                h.typeParams,
-                h.resourceVariables);
+    private static int modifierMask(List<String> modifiers, String name) {
+        final int index = modifiers == null ? -1 : modifiers.indexOf(name);
+        return index < 0 || index >= 32 ? 0 : 1 << index;
     }
-
-    private void sortAll (Comparator<Range> comparator, List<Range>... lists) {
-        for (List<Range> list : lists) {
-            Collections.sort(list, comparator);
-        }
+    
+    private static long pack(int line, int column) {
+        return ((long) line << 32) | (column & 0xffffffffL);
+    }
+    
+    /**
+     * Get the color of the semantic highlight range starting at the given position
+     *
+     * @return Color id in EditorColorScheme, or {@link #NOT_FOUND}
+     */
+    public int getHighlightColor(int line, int column) {
+        final int index = Arrays.binarySearch(positions, pack(line, column));
+        return index < 0 ? NOT_FOUND : colors[index];
     }
 }
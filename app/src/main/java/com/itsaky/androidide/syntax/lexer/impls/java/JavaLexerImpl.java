@@ -27,16 +27,14 @@ import com.itsaky.androidide.utils.LSPUtils;
 import com.itsaky.androidide.utils.Logger;
 import com.itsaky.lsp.SemanticHighlight;
 import com.itsaky.lsp.SemanticHighlightsParams;
-import com.itsaky.lsp.services.IDELanguageServer;
 
-import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CharStream;
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SemanticTokensLegend;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 
-import java.io.File;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -48,23 +46,23 @@ import java.util.stream.Collectors;
 
 import io.github.rosemoe.editor.interfaces.EditorLanguage;
 import io.github.rosemoe.editor.interfaces.NewlineHandler;
-import io.github.rosemoe.editor.struct.BlockLine;
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.struct.LexerCheckpoint;
 import io.github.rosemoe.editor.text.CharPosition;
 import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.text.ContentCharStream;
 import io.github.rosemoe.editor.text.TextAnalyzeResult;
-import io.github.rosemoe.editor.text.TextAnalyzer;
 import io.github.rosemoe.editor.text.TextUtils;
 import io.github.rosemoe.editor.widget.EditorColorScheme;
 
 // TODO Request Language server for syntax highlighting instead of waiting for it to send highlight ranges
 // FIXME Current implementation does not work.
-public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAnalyzer {
+public class JavaLexerImpl extends io.github.rosemoe.editor.langs.IncrementalCodeAnalyzer {
 
     private final EditorLanguage language;
     private HighlightRangeHelper helper;
     private Map<Integer, Map<Integer, Diagnostic>> diagnostics = new HashMap<>();
-    private final Map<Integer, List<Range>> stringMap = new HashMap<>();
+    private volatile TextAnalyzeResult lastResult;
+    private JavaLexerAnalyzer analyzer;
 
     public final MultilineStringHandler stringHandler = new MultilineStringHandler();
     private CompletableFuture<List<SemanticHighlight>> lastRequest;
@@ -76,31 +74,36 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
     @Override
     public void setSemanticHighlights(SemanticHighlight highlights) {
         this.helper = new HighlightRangeHelper(highlights);
-        this.helper.sort();
     }
 
     @Override
-    public void analyze(IDELanguageServer languageServer, File file, CharSequence content, TextAnalyzeResult colors, TextAnalyzer.AnalyzeThread.Delegate delegate) throws Exception {
-        final JavaLexerAnalyzer lexer = new JavaLexerAnalyzer((Content) content, colors, this.helper);
-
-        try {
-            lexer.init();
-        } catch (Throwable th) {
-            return;
-        }
+    public void setSemanticTokens(int[] data, SemanticTokensLegend legend) {
+        this.helper = HighlightRangeHelper.fromSemanticTokens(data, legend);
+    }
 
-        stringMap.clear();
+    @Override
+    protected org.antlr.v4.runtime.Lexer createLexer(CharStream input) {
+        return new JavaLexer(input);
+    }
 
-        while (delegate.shouldAnalyze()) {
-            // null = EOF
-            if (lexer.nextToken() == null)
-                break;
+    @Override
+    protected void onLexStart(Content content, TextAnalyzeResult colors, LexerCheckpoint checkpoint) {
+        analyzer = new JavaLexerAnalyzer(content, colors, this.helper);
+        if (checkpoint != null) {
+            analyzer.restoreState(checkpoint.state);
         }
-        if (lexer.stack.isEmpty() && lexer.currSwitch > lexer.maxSwitch)
-            lexer.maxSwitch = lexer.currSwitch;
+    }
 
-        colors.determine(lexer.lastLine);
-        colors.setSuppressSwitch(lexer.maxSwitch + 10);
+    @Override
+    protected void onToken(org.antlr.v4.runtime.Token token, TextAnalyzeResult colors) {
+        analyzer.handleToken(token);
+    }
+
+    @Override
+    protected void onLexEnd(TextAnalyzeResult colors) {
+        colors.computeBlocks();
+        lastResult = colors;
+        analyzer = null;
     }
 
     @Override
@@ -154,11 +157,12 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
 
         @Override
         public boolean matchesRequirement(String beforeText, String afterText, CharPosition cursor) {
-            if (language == null || stringMap.isEmpty()) {
+            final TextAnalyzeResult result = lastResult;
+            if (language == null || result == null) {
                 return false;
             }
 
-            final List<Range> ranges = stringMap.get(cursor.line);
+            final List<Range> ranges = result.getStringRanges(cursor.line);
             if (ranges == null || ranges.isEmpty()) {
                 return false;
             }
@@ -200,8 +204,6 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
             this.content = content;
             this.colors = colors;
             this.helper = helper;
-            this.maxSwitch = 0;
-            this.currSwitch = 0;
             this.previous = -1;
             this.wasClassName = false;
             this.isFirst = true;
@@ -209,7 +211,7 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
 
         @Override
         public void init() {
-            lexer = new JavaLexer(CharStreams.fromString(content.toString()));
+            lexer = new JavaLexer(new ContentCharStream(content));
         }
 
         @Override
@@ -248,7 +250,6 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
             final int tokenType = currentToken.getType();
             TokenType type = TokenType.TEXT;
 
-            Span span = null;
             switch (tokenType) {
                 case JavaLexer.WS:
                     type = TokenType.WS;
@@ -298,7 +299,7 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
                 case JavaLexer.WHILE:
                 case JavaLexer.VAR:
                     type = TokenType.KEYWORD;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.KEYWORD);
+                    colors.addIfNeeded(line, column, EditorColorScheme.KEYWORD);
                     wasClassName = false;
                     break;
                 case JavaLexer.DECIMAL_LITERAL:
@@ -311,28 +312,19 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
                 case JavaLexer.CHAR_LITERAL:
                 case JavaLexer.NULL_LITERAL:
                     type = TokenType.NUMBER_LITERAL;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
+                    colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
                     wasClassName = false;
                     break;
                 case JavaLexer.STRING_LITERAL:
                     type = TokenType.STRING_LITERAL;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
+                    colors.addIfNeeded(line, column, EditorColorScheme.LITERAL);
                     wasClassName = false;
 
                     Position start = new Position(line, column);
                     Position end = new Position(line, column + currentToken.getText().length());
                     colors.addStringRange(line, new Range(start, end));
 
-                {
-                    List<Range> ranges = stringMap.get(line);
-                    if (ranges == null) {
-                        ranges = new ArrayList<>();
-                    }
-                    ranges.add(new Range(start, end));
-                    stringMap.put(line, ranges);
-                }
-
-                addHexColorIfPresent(currentToken, span, colors, end.getLine(), end.getCharacter());
+                addHexColorIfPresent(currentToken, colors, end.getLine(), end.getCharacter());
                 break;
                 case JavaLexer.LPAREN:
                 case JavaLexer.RPAREN:
@@ -379,7 +371,7 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
                 case JavaLexer.ELLIPSIS:
                 case JavaLexer.DOT:
                     type = TokenType.OPERATOR;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+                    colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
                     wasClassName = false;
                     break;
                 case JavaLexer.BOOLEAN:
@@ -392,18 +384,17 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
                 case JavaLexer.LONG:
                 case JavaLexer.SHORT:
                     type = TokenType.TYPE;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.TYPE_NAME);
+                    colors.addIfNeeded(line, column, EditorColorScheme.TYPE_NAME);
                     wasClassName = true;
                     break;
                 case JavaLexer.BLOCK_COMMENT:
                 case JavaLexer.LINE_COMMENT:
                     type = TokenType.COMMENT;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.COMMENT);
+                    colors.addIfNeeded(line, column, EditorColorScheme.COMMENT);
                     wasClassName = false;
 
-                    final CharPosition a = content.getIndexer().getCharPosition(currentToken.getStopIndex());
                     final Position s = new Position(line, column);
-                    final Position e = new Position(a.line, a.column);
+                    final Position e = tokenEnd(line, column);
                     colors.addCommentRange(line, new Range(s, e));
 
                     String lineComment = currentToken.getText();
@@ -437,135 +428,36 @@ public class JavaLexerImpl extends io.github.rosemoe.editor.langs.AbstractCodeAn
                     break;
                 case JavaLexer.AT:
                     type = TokenType.ANNOTATION;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
+                    colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
                     wasClassName = false;
                     break;
                 case JavaLexer.IDENTIFIER:
                     type = TokenType.IDENTIFIER;
 
-                    if (helper != null && helper.isPackageName(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.PACKAGE_NAME);
-                        break;
-                    }
-
-                    if (helper != null && helper.isEnumType(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.ENUM_TYPE);
-                        break;
-                    }
-
-                    if (helper != null && helper.isClassName(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.TYPE_NAME);
-                        break;
-                    }
-
-                    if (helper != null && helper.isAnnotationType(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.ANNOTATION);
-                        break;
-                    }
-
-                    if (helper != null && helper.isInterface(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.INTERFACE);
-                        break;
-                    }
-
-                    if (helper != null && helper.isEnum(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.ENUM);
-                        break;
-                    }
-
-                    if (helper != null && helper.isStaticField(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.STATIC_FIELD);
-                        break;
-                    }
-
-                    if (helper != null && helper.isField(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.FIELD);
-                        break;
-                    }
-
-                    if (helper != null && helper.isParameter(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.PARAMETER);
-                        break;
-                    }
-
-                    if (helper != null && helper.isLocal(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.LOCAL_VARIABLE);
-                        break;
-                    }
-
-                    if (helper != null && helper.isExceptionParam(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.EXCEPTION_PARAM);
-                        break;
-                    }
-
-                    if (helper != null && helper.isMethodDeclaration(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.METHOD_DECLARATION);
-                        break;
-                    }
-
-                    if (helper != null && helper.isMethodInvocation(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.METHOD_INVOCATION);
+                    final int semanticColor = helper == null ? HighlightRangeHelper.NOT_FOUND : helper.getHighlightColor(line, column);
+                    if (semanticColor != HighlightRangeHelper.NOT_FOUND) {
+                        colors.addIfNeeded(line, column, semanticColor);
                         break;
                     }
 
-                    if (helper != null && helper.isConstructor(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.CONSTRUCTOR);
-                        break;
-                    }
-
-                    if (helper != null && helper.isStaticInit(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.STATIC_INIT);
-                        break;
-                    }
-
-                    if (helper != null && helper.isInstanceInit(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.INSTANCE_INIT);
-                        break;
-                    }
-
-                    if (helper != null && helper.isTypeParam(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.TYPE_PARAM);
-                        break;
-                    }
-
-                    if (helper != null && helper.isResourceVariable(line, column)) {
-                        span = colors.addIfNeeded(line, column, EditorColorScheme.RESOURCE_VARIABLE);
-                        break;
-                    }
-
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
+                    colors.addIfNeeded(line, column, EditorColorScheme.TEXT_NORMAL);
                     break;
                 case JavaLexer.LBRACE:
                     type = TokenType.OPERATOR;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+                    colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
                     wasClassName = false;
-                    if (stack.isEmpty()) {
-                        if (currSwitch > maxSwitch)
-                            maxSwitch = currSwitch;
-                        currSwitch = 0;
-                    }
-                    currSwitch++;
-                    BlockLine block = colors.obtainNewBlock();
-                    block.startLine = line;
-                    block.startColumn = column;
-                    stack.push(block);
+                    colors.addBracket(line, column, true);
                     break;
                 case JavaLexer.RBRACE:
                     type = TokenType.OPERATOR;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+                    colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
                     wasClassName = false;
-                    if (!stack.isEmpty()) {
-                        BlockLine block2 = stack.pop();
-                        block2.endLine = line;
-                        block2.endColumn = column;
-                        if (block2.startLine != block2.endLine)
-                            colors.addBlockLine(block2);
-                    }
+                    colors.addBracket(line, column, false);
                     break;
                 default:
                     type = TokenType.TEXT;
                     wasClassName = false;
-                    span = colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
+                    colors.addIfNeeded(line, column, EditorColorScheme.OPERATOR);
                     break;
             }
 
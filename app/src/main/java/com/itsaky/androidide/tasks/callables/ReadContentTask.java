@@ -0,0 +1,104 @@
+/************************************************************************************
+ * This file is part of AndroidIDE.
+ *
+ *
+ *
+ * AndroidIDE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AndroidIDE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AndroidIDE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+**************************************************************************************/
+
+
+package com.itsaky.androidide.tasks.callables;
+
+import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.widget.CodeEditor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+/**
+ * Reads a file into a {@link Content} for the given editor.
+ * The file is decoded in chunks (memory-mapped if possible) and lines are built
+ * while reading, so the whole file is never held as a single String.
+ * Set the result to the editor with {@link CodeEditor#setText(CharSequence, boolean)}.
+ */
+public class ReadContentTask implements Callable<Content> {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final File file;
+	private final CodeEditor editor;
+
+	public ReadContentTask(File file, CodeEditor editor) {
+		this.file = file;
+		this.editor = editor;
+	}
+
+	@Override
+	public Content call() throws Exception {
+		final Content content = new Content(editor);
+		content.setUndoEnabled(false);
+		try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+			ByteBuffer bytes;
+			boolean mapped;
+			try {
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				mapped = true;
+			} catch (IOException | IllegalArgumentException e) {
+				// Not a regular file, or too large to map at once
+				bytes = ByteBuffer.allocate(CHUNK_SIZE);
+				bytes.flip();
+				mapped = false;
+			}
+
+			final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+			boolean eof = mapped;
+			while (true) {
+				if (!eof) {
+					bytes.compact();
+					eof = channel.read(bytes) < 0;
+					bytes.flip();
+				}
+				decoder.decode(bytes, chars, eof);
+				appendChars(content, chars);
+				if (eof && !bytes.hasRemaining()) {
+					break;
+				}
+			}
+			while (!decoder.flush(chars).isUnderflow()) {
+				appendChars(content, chars);
+			}
+			appendChars(content, chars);
+		}
+		return content;
+	}
+
+	private static void appendChars(Content content, CharBuffer chars) {
+		chars.flip();
+		if (chars.hasRemaining()) {
+			content.append(chars);
+		}
+		chars.clear();
+	}
+}
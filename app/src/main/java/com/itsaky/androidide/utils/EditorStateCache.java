@@ -0,0 +1,161 @@
+/************************************************************************************
+ * This file is part of AndroidIDE.
+ *
+ *  
+ *
+ * AndroidIDE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AndroidIDE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AndroidIDE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+**************************************************************************************/
+package com.itsaky.androidide.utils;
+
+import android.content.ComponentCallbacks2;
+import io.github.rosemoe.editor.widget.RetainedState;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@link RetainedState} of editors whose tabs went to background, so that the work
+ * is reused instead of being done again when the tab is shown.
+ *
+ * A state is used only if the text read again has the same hash. States are evicted in least
+ * recently used order when they retain more than {@link #MAX_BYTES}, and on memory pressure.
+ */
+public class EditorStateCache {
+    
+    private static final long MAX_BYTES = Math.min(32L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+    
+    private static EditorStateCache instance;
+    
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long retainedBytes = 0;
+    private int hitCount = 0;
+    private int missCount = 0;
+    
+    private EditorStateCache() {
+    }
+    
+    public static synchronized EditorStateCache getInstance() {
+        if(instance == null) {
+            instance = new EditorStateCache();
+        }
+        return instance;
+    }
+    
+    /**
+     * Keep the state of the editor of the file
+     *
+     * @param file  The file
+     * @param hash  Hash of the text of editor, see {@link HighlightCache#hash(io.github.rosemoe.editor.text.Content)}
+     * @param state The state
+     */
+    public synchronized void put(File file, long hash, RetainedState state) {
+        final String path = file.getAbsolutePath();
+        remove(path);
+        if(state.getRetainedBytes() > MAX_BYTES) {
+            return;
+        }
+        entries.put(path, new Entry(hash, state));
+        retainedBytes += state.getRetainedBytes();
+        trimTo(MAX_BYTES);
+    }
+    
+    /**
+     * Remove the state of the file and return it, if it is the state of the given text
+     *
+     * @param file The file
+     * @param hash Hash of the text read from the file
+     * @return The state, or null if not found
+     */
+    public synchronized RetainedState take(File file, long hash) {
+        final Entry entry = remove(file.getAbsolutePath());
+        if(entry == null || entry.hash != hash) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.state;
+    }
+    
+    /**
+     * Evict states on memory pressure
+     *
+     * @param level Level given to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public synchronized void trimMemory(int level) {
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else {
+            trimTo(retainedBytes / 2);
+        }
+    }
+    
+    /**
+     * Get count of bytes retained by states, approximately
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+    
+    /**
+     * Get the ratio of the states found when tabs are shown again
+     */
+    public synchronized float getHitRate() {
+        final int total = hitCount + missCount;
+        return total == 0 ? 0 : (float) hitCount / total;
+    }
+    
+    /**
+     * Get counts and hit rate of this cache, for diagnostics
+     */
+    public synchronized String getStats() {
+        return "EditorStateCache{" +
+            "entries=" + entries.size() +
+            ", retainedBytes=" + retainedBytes +
+            ", hitCount=" + hitCount +
+            ", missCount=" + missCount +
+            ", hitRate=" + getHitRate() +
+            '}';
+    }
+    
+    private Entry remove(String path) {
+        final Entry entry = entries.remove(path);
+        if(entry != null) {
+            retainedBytes -= entry.state.getRetainedBytes();
+        }
+        return entry;
+    }
+    
+    private void trimTo(long maxBytes) {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(retainedBytes > maxBytes && iterator.hasNext()) {
+            retainedBytes -= iterator.next().getValue().state.getRetainedBytes();
+            iterator.remove();
+        }
+    }
+    
+    private static class Entry {
+        
+        final long hash;
+        final RetainedState state;
+        
+        Entry(long hash, RetainedState state) {
+            this.hash = hash;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/************************************************************************************
+ * This file is part of AndroidIDE.
+ *
+ *  
+ *
+ * AndroidIDE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AndroidIDE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AndroidIDE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+**************************************************************************************/
+package com.itsaky.androidide.utils;
+
+import com.itsaky.androidide.BuildConfig;
+import com.itsaky.androidide.app.StudioApp;
+import io.github.rosemoe.editor.interfaces.CodeAnalyzer;
+import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.text.ContentLine;
+import io.github.rosemoe.editor.text.TextAnalyzeResult;
+import io.github.rosemoe.editor.widget.CodeEditor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the highlights (spans and code blocks) of opened files on disk, so that a file is
+ * shown colored as soon as it is read, before it is analyzed again.
+ *
+ * An entry is used only if the path, a 64-bit hash of the text, the analyzer and the app version
+ * all match. There is one entry per file, and least recently used entries are deleted when
+ * the directory grows larger than {@link #MAX_SIZE}.
+ */
+public class HighlightCache {
+    
+    private static final int MAGIC = 0x48494c54;
+    private static final int FORMAT_VERSION = 1;
+    private static final long MAX_SIZE = 8 * 1024 * 1024;
+    
+    private static final Logger LOG = Logger.instance("HighlightCache");
+    
+    private static HighlightCache instance;
+    
+    private final File dir;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Content hash of the entry of each path, so that an unchanged entry is not written again
+    private final Map<String, Long> storedHashes = new HashMap<>();
+    
+    private HighlightCache(File dir) {
+        this.dir = dir;
+    }
+    
+    public static synchronized HighlightCache getInstance() {
+        if(instance == null) {
+            instance = new HighlightCache(new File(StudioApp.getInstance().getCacheDir(), "highlights"));
+        }
+        return instance;
+    }
+    
+    /**
+     * Read the entry of the file if it matches the given text.
+     * This reads from disk, so it must not be called on the main thread.
+     *
+     * @param file The file opened
+     * @param hash Hash of the text read from the file, see {@link #hash(Content)}
+     * @return The entry, or null if not found
+     */
+    public Entry load(File file, long hash) {
+        final String path = file.getAbsolutePath();
+        final File entryFile = entryFile(path);
+        if(!entryFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)))) {
+            if(in.readInt() != MAGIC
+                || in.readInt() != FORMAT_VERSION
+                || in.readInt() != BuildConfig.VERSION_CODE
+                || !path.equals(in.readUTF())
+                || in.readLong() != hash) {
+                return null;
+            }
+            final String analyzer = in.readUTF();
+            final byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            if(in.readLong() != crc(data)) {
+                throw new IOException("Checksum mismatch");
+            }
+            final TextAnalyzeResult result = TextAnalyzeResult.readFrom(new DataInputStream(new ByteArrayInputStream(data)));
+            // Mark it as recently used
+            entryFile.setLastModified(System.currentTimeMillis());
+            synchronized(storedHashes) {
+                storedHashes.put(path, hash);
+            }
+            return new Entry(analyzer, result);
+        } catch(IOException | RuntimeException | OutOfMemoryError e) {
+            LOG.warn("Invalid cache entry of", path, e);
+            entryFile.delete();
+            return null;
+        }
+    }
+    
+    /**
+     * Save the highlights of the editor if its text is analyzed.
+     * A snapshot of the result is taken on the calling thread, and it is written in background.
+     *
+     * @param file   The file opened in editor. Its content must be the text of editor.
+     * @param editor The editor
+     * @param hash   Hash of the text of editor, see {@link #hash(Content)}
+     */
+    public void store(File file, CodeEditor editor, long hash) {
+        if(editor.getEditorLanguage() == null) {
+            return;
+        }
+        final String path = file.getAbsolutePath();
+        synchronized(storedHashes) {
+            final Long stored = storedHashes.get(path);
+            if(stored != null && stored == hash) {
+                return;
+            }
+        }
+        final TextAnalyzeResult result = editor.getUpToDateAnalyzeResultSnapshot();
+        if(result == null) {
+            return;
+        }
+        synchronized(storedHashes) {
+            storedHashes.put(path, hash);
+        }
+        final String analyzer = analyzerName(editor.getEditorLanguage().getAnalyzer());
+        executor.execute(() -> {
+            final byte[] data;
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(bytes);
+                result.writeTo(out);
+                out.flush();
+                data = bytes.toByteArray();
+            } catch(IOException | RuntimeException e) {
+                LOG.warn("Unable to write highlights of", path, e);
+                return;
+            }
+            write(path, hash, analyzer, data);
+        });
+    }
+    
+    private void write(String path, long hash, String analyzer, byte[] data) {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        final File entryFile = entryFile(path);
+        final File temp = new File(dir, entryFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(BuildConfig.VERSION_CODE);
+            out.writeUTF(path);
+            out.writeLong(hash);
+            out.writeUTF(analyzer);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeLong(crc(data));
+        } catch(IOException e) {
+            LOG.warn("Unable to save highlights of", path, e);
+            temp.delete();
+            return;
+        }
+        if(!temp.renameTo(entryFile)) {
+            temp.delete();
+            return;
+        }
+        trim();
+    }
+    
+    /**
+     * Delete least recently used entries until the directory is not larger than {@link #MAX_SIZE}
+     */
+    private void trim() {
+        final File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        long size = 0;
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for(int i = 0; i < files.length; i++) {
+            size += files[i].length();
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        if(size <= MAX_SIZE) {
+            return;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        for(int i = 0; i < order.length && size > MAX_SIZE; i++) {
+            final File file = files[order[i]];
+            final long length = file.length();
+            if(file.delete()) {
+                size -= length;
+            }
+        }
+    }
+    
+    private File entryFile(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < path.length(); i++) {
+            hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+        }
+        return new File(dir, Long.toHexString(hash));
+    }
+    
+    /**
+     * 64-bit FNV-1a hash of the text.
+     * It reads the whole text, so it should not be called on the main thread.
+     */
+    public static long hash(Content text) {
+        long hash = 0xcbf29ce484222325L;
+        final int lineCount = text.getLineCount();
+        for(int i = 0; i < lineCount; i++) {
+            final ContentLine line = text.getLine(i);
+            final int length = line.length();
+            for(int j = 0; j < length; j++) {
+                hash = (hash ^ line.charAt(j)) * 0x100000001b3L;
+            }
+            hash = (hash ^ '\n') * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    private static long crc(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+    
+    private static String analyzerName(CodeAnalyzer analyzer) {
+        return analyzer == null ? "" : analyzer.getClass().getName();
+    }
+    
+    /**
+     * Highlights read from cache
+     */
+    public static class Entry {
+        
+        private final String analyzer;
+        private final TextAnalyzeResult result;
+        
+        private Entry(String analyzer, TextAnalyzeResult result) {
+            this.analyzer = analyzer;
+            this.result = result;
+        }
+        
+        /**
+         * Show the highlights in editor until its text is analyzed, if they are created by the
+         * analyzer of its language. Call this after the text and language are set.
+         *
+         * @return Whether the highlights are shown
+         */
+        public boolean apply(CodeEditor editor) {
+            return editor.getEditorLanguage() != null
+                && analyzer.equals(analyzerName(editor.getEditorLanguage().getAnalyzer()))
+                && editor.setCachedAnalyzeResult(result);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.io.File;
 import java.util.List;
 import java.util.Map;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.SemanticTokensLegend;
 
 /**
  * Interface for analyzing highlight
@@ -36,6 +37,14 @@ public interface CodeAnalyzer {
      */
     void setSemanticHighlights(SemanticHighlight highlights);
     
+    /**
+     * Tells the analyzer to store the standard semantic tokens provided by LanguageServer
+     *
+     * @param data Token data in the compact relative encoding
+     * @param legend Legend of the token types and modifiers
+     */
+    void setSemanticTokens(int[] data, SemanticTokensLegend legend);
+    
     /**
      * Tells the analyzer to update the diagnostics locally.
      * They will be then used to provide spans
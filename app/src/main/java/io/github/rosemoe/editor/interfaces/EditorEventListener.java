@@ -68,4 +68,10 @@ public interface EditorEventListener {
     void beforeReplace(CodeEditor editor, CharSequence content);
     
     void onSetSelection(int startLine, int startCol, int endLine, int endCol);
+
+    /**
+     * Performance mode is set, or features deferred by it are restored
+     * @see CodeEditor#setPerformanceMode(CodeEditor.PerformanceMode)
+     */
+    void onPerformanceModeChanged(CodeEditor editor);
 }
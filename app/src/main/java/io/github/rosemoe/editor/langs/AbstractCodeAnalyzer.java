@@ -4,6 +4,7 @@ import io.github.rosemoe.editor.interfaces.CodeAnalyzer;
 import java.util.ArrayList;
 import java.util.List;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.SemanticTokensLegend;
 import java.util.Map;
 import java.util.HashMap;
 import com.itsaky.lsp.SemanticHighlight;
@@ -14,10 +15,14 @@ public abstract class AbstractCodeAnalyzer implements CodeAnalyzer {
     public void setSemanticHighlights(SemanticHighlight highlights) {
     }
 
+    @Override
+    public void setSemanticTokens(int[] data, SemanticTokensLegend legend) {
+    }
+
     @Override
     public void updateDiagnostics(Map<Integer, Map<Integer, Diagnostic>> diagnostics) {
     }
-    
+
     @Override
     public Diagnostic findDiagnosticContaining(int line, int column) {
         return null;
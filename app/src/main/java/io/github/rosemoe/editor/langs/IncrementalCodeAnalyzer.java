@@ -0,0 +1,320 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.langs;
+
+import com.itsaky.lsp.services.IDELanguageServer;
+import io.github.rosemoe.editor.struct.LexerCheckpoint;
+import io.github.rosemoe.editor.text.Content;
+import io.github.rosemoe.editor.text.ContentCharStream;
+import io.github.rosemoe.editor.text.TextAnalyzeResult;
+import io.github.rosemoe.editor.text.TextAnalyzer;
+import java.io.File;
+import java.util.List;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.IntegerStack;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Analyzer which is able to analyze only the changed lines of text.
+ * <p>
+ * It creates its ANTLR lexer in {@link #createLexer(CharStream)} and adds spans in
+ * {@link #onToken(Token, TextAnalyzeResult)}. The lexer state at the start of each line is saved
+ * in the result, so that lexing can restart from the first changed line and stop as soon as
+ * the state is the same as before.
+ */
+public abstract class IncrementalCodeAnalyzer extends AbstractCodeAnalyzer {
+
+    /**
+     * Lex the whole text.
+     * Text which is not a {@link Content} is copied into one first.
+     */
+    @Override
+    public void analyze(IDELanguageServer languageServer, File file, CharSequence content, TextAnalyzeResult colors, TextAnalyzer.AnalyzeThread.Delegate delegate) throws Exception {
+        lex(content instanceof Content ? (Content) content : new Content(null, content), colors, delegate);
+    }
+
+    /**
+     * Create the ANTLR lexer
+     *
+     * @param input The input
+     */
+    protected abstract Lexer createLexer(CharStream input);
+
+    /**
+     * Called before the first token is lexed
+     *
+     * @param content    The text
+     * @param colors     Result dest
+     * @param checkpoint The checkpoint from which lexing restarts, or null if lexing starts from the beginning
+     */
+    protected void onLexStart(Content content, TextAnalyzeResult colors, LexerCheckpoint checkpoint) {
+    }
+
+    /**
+     * Add spans for the given token
+     *
+     * @param token  The token. Its line starts from 1.
+     * @param colors Result dest
+     */
+    protected void onToken(Token token, TextAnalyzeResult colors) {
+    }
+
+    /**
+     * Get the state of this analyzer which affects spans of following tokens.
+     * It is saved in checkpoints and restored in {@link #onLexStart(Content, TextAnalyzeResult, LexerCheckpoint)}
+     */
+    protected int getLexState() {
+        return 0;
+    }
+
+    /**
+     * Called when all the spans of result are available
+     *
+     * @param colors Result dest
+     */
+    protected void onLexEnd(TextAnalyzeResult colors) {
+    }
+
+    /**
+     * Lex the whole text
+     *
+     * @param content  The text
+     * @param colors   Result dest
+     * @param delegate Delegate between thread and analyzer
+     */
+    protected void lex(Content content, TextAnalyzeResult colors, TextAnalyzer.AnalyzeThread.Delegate delegate) {
+        lex(content, colors, 0, null, null, -1, 0, delegate);
+    }
+
+    /**
+     * Analyze the changed lines and reuse the rest of previous result
+     *
+     * @param content    The text
+     * @param previous   The previous result, whose span map matches current text
+     * @param colors     Result dest
+     * @param dirtyStart First changed line
+     * @param dirtyEnd   Last changed line
+     * @param lineDelta  Count of lines inserted since previous result was created
+     * @param delegate   Delegate between thread and analyzer
+     * @return false if previous result can not be reused
+     */
+    public boolean analyzeIncrementally(Content content, TextAnalyzeResult previous, TextAnalyzeResult colors, int dirtyStart, int dirtyEnd, int lineDelta, TextAnalyzer.AnalyzeThread.Delegate delegate) {
+        final List<LexerCheckpoint> checkpoints = previous.getCheckpoints();
+        final int lineCount = content.getLineCount();
+        if (checkpoints == null || checkpoints.size() + lineDelta != lineCount || previous.getSpanMap().size() != lineCount) {
+            return false;
+        }
+
+        // Find a checkpoint before the changed lines, whose preceding tokens did not look at them
+        LexerCheckpoint start = null;
+        int line = Math.min(dirtyStart, checkpoints.size()) - 1;
+        for (; line >= 0; line--) {
+            start = checkpoints.get(line);
+            if (start != null && line + start.reach < dirtyStart) {
+                break;
+            }
+        }
+        if (line < 0) {
+            line = 0;
+            start = null;
+        }
+
+        colors.reuseBefore(previous, line, start == null ? 0 : start.column);
+        lex(content, colors, line, start, previous, dirtyEnd, lineDelta, delegate);
+        return true;
+    }
+
+    /**
+     * Analyze the given lines only, assuming that the lexer is in its initial state at the start line.
+     * This gives a quick preview of the visible region of a large text before the whole text is analyzed.
+     * The result is partial, and lines before the start line have no spans.
+     *
+     * @param content   The text
+     * @param colors    Result dest
+     * @param startLine First line to analyze
+     * @param endLine   Last line to analyze
+     * @param delegate  Delegate between thread and analyzer
+     * @return false if the analysis is aborted
+     */
+    public boolean analyzeLines(Content content, TextAnalyzeResult colors, int startLine, int endLine, TextAnalyzer.AnalyzeThread.Delegate delegate) {
+        final ContentCharStream text = new ContentCharStream(content, startLine, 0);
+        final Lexer lexer = createLexer(text);
+        lexer.setLine(startLine + 1);
+        lexer.setCharPositionInLine(0);
+        colors.skipTo(startLine);
+        onLexStart(content, colors, null);
+        while (delegate.shouldAnalyze()) {
+            final Token token = lexer.nextToken();
+            if (token.getType() == Token.EOF || token.getLine() - 1 > endLine) {
+                break;
+            }
+            onToken(token, colors);
+        }
+        return delegate.shouldAnalyze() && !text.isStale();
+    }
+
+    private void lex(Content content, TextAnalyzeResult colors, int startLine, LexerCheckpoint start, TextAnalyzeResult previous,
+                     int dirtyEnd, int lineDelta, TextAnalyzer.AnalyzeThread.Delegate delegate) {
+        final ContentCharStream text = new ContentCharStream(content, startLine, start == null ? 0 : start.column);
+        final ReachTrackingStream input = new ReachTrackingStream(text);
+        final Lexer lexer = createLexer(input);
+        if (start != null) {
+            lexer.setLine(startLine + 1);
+            lexer.setCharPositionInLine(start.column);
+            lexer._mode = start.mode;
+            if (start.modeStack != null) {
+                for (int mode : start.modeStack) {
+                    lexer._modeStack.push(mode);
+                }
+            }
+        }
+        final List<LexerCheckpoint> oldCheckpoints = previous == null ? null : previous.getCheckpoints();
+
+        int lastCheckpointLine = startLine - 1;
+        int lastLine = startLine;
+        int[] modeStack = null;
+
+        onLexStart(content, colors, start);
+        while (delegate.shouldAnalyze()) {
+            // Save lexer state before the token
+            final int mode = lexer._mode;
+            final int reach = input.reach;
+            final IntegerStack stack = lexer._modeStack;
+            if (stack.isEmpty()) {
+                modeStack = null;
+            } else if (!isSameStack(stack, modeStack)) {
+                modeStack = stack.toArray();
+            }
+
+            // Text skipped by error recovery is not part of the returned token, so the
+            // position before the call is saved instead of the token's start
+            final int line = lexer.getLine() - 1;
+            final int column = lexer.getCharPositionInLine();
+            final int tokenIndex = input.index();
+
+            final Token token = lexer.nextToken();
+            lastLine = token.getLine() - 1;
+            if (token.getType() == Token.EOF) {
+                break;
+            }
+
+            if (line > lastCheckpointLine) {
+                if (previous == null) {
+                    // Lines before are complete
+                    delegate.publishProgress(colors, line);
+                }
+                final LexerCheckpoint checkpoint = new LexerCheckpoint(column, mode, modeStack,
+                        getLexState(), colors.getLastColor(), reach < tokenIndex ? 0 : text.getLine(reach) - line);
+                if (oldCheckpoints != null && line > dirtyEnd) {
+                    final int oldLine = line - lineDelta;
+                    if (oldLine < oldCheckpoints.size() && checkpoint.isSameState(oldCheckpoints.get(oldLine))) {
+                        // Rest of the text will be lexed as before
+                        colors.reuseFrom(line, lineDelta);
+                        onLexEnd(colors);
+                        return;
+                    }
+                }
+                colors.addCheckpoint(line, checkpoint);
+            }
+            // A line which already has spans can not be restarted from
+            lastCheckpointLine = Math.max(line, lastLine);
+            onToken(token, colors);
+        }
+
+        if (delegate.shouldAnalyze() && !text.isStale()) {
+            colors.determine(Math.max(lastLine, content.getLineCount() - 1));
+            onLexEnd(colors);
+        }
+    }
+
+    private static boolean isSameStack(IntegerStack stack, int[] saved) {
+        if (saved == null || saved.length != stack.size()) {
+            return false;
+        }
+        for (int i = 0; i < saved.length; i++) {
+            if (saved[i] != stack.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the farthest character the lexer has looked at
+     */
+    private static class ReachTrackingStream implements CharStream {
+
+        private final CharStream input;
+        private int reach = 0;
+
+        ReachTrackingStream(CharStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public int LA(int i) {
+            if (i > 0) {
+                final int index = input.index() + i - 1;
+                if (index > reach) {
+                    reach = index;
+                }
+            }
+            return input.LA(i);
+        }
+
+        @Override
+        public String getText(Interval interval) {
+            return input.getText(interval);
+        }
+
+        @Override
+        public void consume() {
+            input.consume();
+        }
+
+        @Override
+        public int mark() {
+            return input.mark();
+        }
+
+        @Override
+        public void release(int marker) {
+            input.release(marker);
+        }
+
+        @Override
+        public int index() {
+            return input.index();
+        }
+
+        @Override
+        public void seek(int index) {
+            input.seek(index);
+        }
+
+        @Override
+        public int size() {
+            return input.size();
+        }
+
+        @Override
+        public String getSourceName() {
+            return input.getSourceName();
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.struct;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * A list stored in a B-tree, whose nodes know the count of elements in them.
+ * Getting, setting, adding and removing elements at any index costs O(log n),
+ * while ArrayList costs O(n) to add or remove elements in the middle.
+ * <p>
+ * Copies made by {@link #copy()} share nodes with this list. Shared nodes are never
+ * modified, but replaced by copies of them when they are modified, so a copy costs O(1)
+ * and a copy can be read on another thread while this list is modified.
+ * <p>
+ * Elements can have int weights, whose sums are kept in the nodes. So the sum of weights
+ * before an index, and the element at a weight offset, are found in O(log n) as well.
+ *
+ * @param <E> Element type
+ */
+public class BTreeList<E> extends AbstractList<E> {
+
+    /**
+     * Max count of elements in a leaf, and max count of children in an inner node
+     */
+    private static final int NODE_CAPACITY = 64;
+
+    /**
+     * Nodes with fewer items than this are merged with a neighbor if possible
+     */
+    private static final int MERGE_THRESHOLD = NODE_CAPACITY / 4;
+
+    private Node mRoot;
+
+    /**
+     * Nodes whose owner is not this token may be shared with copies
+     */
+    private Object mOwner = new Object();
+
+    public BTreeList() {
+        mRoot = new Node(true, mOwner);
+    }
+
+    private BTreeList(Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * Create a copy of this list in O(1) time. Nodes are shared until either list modifies them.
+     *
+     * @return The copy, which is not affected by later modifications of this list
+     */
+    public BTreeList<E> copy() {
+        // Nodes are shared with the copy from now on
+        mOwner = new Object();
+        return new BTreeList<>(mRoot);
+    }
+
+    @Override
+    public int size() {
+        return mRoot.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        checkIndex(index);
+        Node node = mRoot;
+        while (!node.leaf) {
+            int i = 0;
+            Node child;
+            while (index >= (child = (Node) node.items[i]).size) {
+                index -= child.size;
+                i++;
+            }
+            node = child;
+        }
+        return (E) node.items[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E element) {
+        checkIndex(index);
+        Node node = writableRoot();
+        while (!node.leaf) {
+            int i = 0;
+            Node child;
+            while (index >= (child = (Node) node.items[i]).size) {
+                index -= child.size;
+                i++;
+            }
+            node = writableChild(node, i);
+        }
+        E old = (E) node.items[index];
+        node.items[index] = element;
+        return old;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        add(index, element, 0);
+    }
+
+    /**
+     * Insert the element with the given weight
+     *
+     * @param index   Index to insert at
+     * @param element The element
+     * @param weight  Weight of the element
+     */
+    public void add(int index, E element, int weight) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("index = " + index + ", size = " + size());
+        }
+        Node sibling = insert(writableRoot(), index, element, weight);
+        if (sibling != null) {
+            Node root = new Node(false, mOwner);
+            root.items[0] = mRoot;
+            root.items[1] = sibling;
+            root.count = 2;
+            root.size = mRoot.size + sibling.size;
+            root.weight = mRoot.weight + sibling.weight;
+            mRoot = root;
+        }
+        modCount++;
+    }
+
+    /**
+     * Get the weight of element at the given index
+     */
+    public int getWeight(int index) {
+        checkIndex(index);
+        Node node = mRoot;
+        while (!node.leaf) {
+            int i = 0;
+            Node child;
+            while (index >= (child = (Node) node.items[i]).size) {
+                index -= child.size;
+                i++;
+            }
+            node = child;
+        }
+        return node.weights[index];
+    }
+
+    /**
+     * Set the weight of element at the given index
+     */
+    public void setWeight(int index, int weight) {
+        checkIndex(index);
+        final int delta = weight - getWeight(index);
+        if (delta == 0) {
+            return;
+        }
+        Node node = writableRoot();
+        node.weight += delta;
+        while (!node.leaf) {
+            int i = 0;
+            Node child;
+            while (index >= (child = (Node) node.items[i]).size) {
+                index -= child.size;
+                i++;
+            }
+            node = writableChild(node, i);
+            node.weight += delta;
+        }
+        node.weights[index] = weight;
+    }
+
+    /**
+     * Get the sum of weights of elements before the given index
+     *
+     * @param index Index in [0, size()]
+     */
+    public int getWeightBefore(int index) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("index = " + index + ", size = " + size());
+        }
+        int sum = 0;
+        Node node = mRoot;
+        while (!node.leaf) {
+            int i = 0;
+            Node child;
+            while (i < node.count - 1 && index >= (child = (Node) node.items[i]).size) {
+                index -= child.size;
+                sum += child.weight;
+                i++;
+            }
+            node = (Node) node.items[i];
+        }
+        for (int i = 0; i < index; i++) {
+            sum += node.weights[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Get the sum of weights of all elements
+     */
+    public int getTotalWeight() {
+        return mRoot.weight;
+    }
+
+    /**
+     * Find the element covering the given weight offset, which is the first element whose weight
+     * plus the sum of weights before it is greater than the offset.
+     * Elements of zero weight never cover an offset.
+     *
+     * @param offset Weight offset in [0, getTotalWeight())
+     * @return Index of the element. The last index is returned if offset is too large.
+     */
+    public int findByWeight(int offset) {
+        if (size() == 0) {
+            throw new IndexOutOfBoundsException("list is empty");
+        }
+        int index = 0;
+        Node node = mRoot;
+        while (!node.leaf) {
+            int i = 0;
+            Node child;
+            while (i < node.count - 1 && offset >= (child = (Node) node.items[i]).weight) {
+                offset -= child.weight;
+                index += child.size;
+                i++;
+            }
+            node = (Node) node.items[i];
+        }
+        int i = 0;
+        while (i < node.count - 1 && offset >= node.weights[i]) {
+            offset -= node.weights[i];
+            i++;
+        }
+        return index + i;
+    }
+
+    @Override
+    public E remove(int index) {
+        checkIndex(index);
+        E old = remove(writableRoot(), index);
+        while (!mRoot.leaf && mRoot.count <= 1) {
+            mRoot = mRoot.count == 0 ? new Node(true, mOwner) : (Node) mRoot.items[0];
+        }
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        mRoot = new Node(true, mOwner);
+        modCount++;
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] array = new Object[size()];
+        copyTo(mRoot, array, 0);
+        return array;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index = " + index + ", size = " + size());
+        }
+    }
+
+    /**
+     * Get the root for modification, which is copied first if it is shared
+     */
+    private Node writableRoot() {
+        if (mRoot.owner != mOwner) {
+            mRoot = mRoot.copy(mOwner);
+        }
+        return mRoot;
+    }
+
+    /**
+     * Get the child of a writable node for modification, which is copied first if it is shared
+     */
+    private Node writableChild(Node parent, int index) {
+        Node child = (Node) parent.items[index];
+        if (child.owner != mOwner) {
+            child = child.copy(mOwner);
+            parent.items[index] = child;
+        }
+        return child;
+    }
+
+    /**
+     * Insert the element to the writable subtree
+     *
+     * @return New sibling of node if it is split, or null
+     */
+    private Node insert(Node node, int index, Object element, int weight) {
+        node.size++;
+        node.weight += weight;
+        if (node.leaf) {
+            System.arraycopy(node.weights, index, node.weights, index + 1, node.count - index);
+            node.weights[index] = weight;
+            insertItem(node, index, element);
+        } else {
+            int i = 0;
+            Node child;
+            while (i < node.count - 1 && index > (child = (Node) node.items[i]).size) {
+                index -= child.size;
+                i++;
+            }
+            Node sibling = insert(writableChild(node, i), index, element, weight);
+            if (sibling != null) {
+                insertItem(node, i + 1, sibling);
+            }
+        }
+        return node.count == NODE_CAPACITY ? split(node) : null;
+    }
+
+    /**
+     * Remove the element from the writable subtree
+     */
+    @SuppressWarnings("unchecked")
+    private <E> E remove(Node node, int index) {
+        node.size--;
+        if (node.leaf) {
+            E old = (E) node.items[index];
+            node.weight -= node.weights[index];
+            System.arraycopy(node.weights, index + 1, node.weights, index, node.count - index - 1);
+            node.weights[node.count - 1] = 0;
+            removeItem(node, index);
+            return old;
+        }
+        int i = 0;
+        Node child;
+        while (index >= (child = (Node) node.items[i]).size) {
+            index -= child.size;
+            i++;
+        }
+        child = writableChild(node, i);
+        final int weight = child.weight;
+        E old = remove(child, index);
+        node.weight -= weight - child.weight;
+        if (child.count == 0) {
+            removeItem(node, i);
+        } else if (child.count < MERGE_THRESHOLD && node.count > 1) {
+            mergeNeighbors(node, i == node.count - 1 ? i - 1 : i);
+        }
+        return old;
+    }
+
+    /**
+     * Merge the two children at the given index and next index, if they fit in one node
+     */
+    private void mergeNeighbors(Node parent, int index) {
+        Node left = (Node) parent.items[index];
+        Node right = (Node) parent.items[index + 1];
+        if (left.count + right.count >= NODE_CAPACITY) {
+            return;
+        }
+        left = writableChild(parent, index);
+        System.arraycopy(right.items, 0, left.items, left.count, right.count);
+        if (left.leaf) {
+            System.arraycopy(right.weights, 0, left.weights, left.count, right.count);
+        }
+        left.count += right.count;
+        left.size += right.size;
+        left.weight += right.weight;
+        removeItem(parent, index + 1);
+    }
+
+    /**
+     * Move the upper half of node's items to a new node
+     */
+    private Node split(Node node) {
+        Node sibling = new Node(node.leaf, mOwner);
+        int half = node.count / 2;
+        int moved = node.count - half;
+        System.arraycopy(node.items, half, sibling.items, 0, moved);
+        Arrays.fill(node.items, half, node.count, null);
+        sibling.count = moved;
+        node.count = half;
+        if (node.leaf) {
+            System.arraycopy(node.weights, half, sibling.weights, 0, moved);
+            Arrays.fill(node.weights, half, half + moved, 0);
+            sibling.size = moved;
+            for (int i = 0; i < moved; i++) {
+                sibling.weight += sibling.weights[i];
+            }
+        } else {
+            for (int i = 0; i < moved; i++) {
+                Node child = (Node) sibling.items[i];
+                sibling.size += child.size;
+                sibling.weight += child.weight;
+            }
+        }
+        node.size -= sibling.size;
+        node.weight -= sibling.weight;
+        return sibling;
+    }
+
+    private static void insertItem(Node node, int index, Object item) {
+        System.arraycopy(node.items, index, node.items, index + 1, node.count - index);
+        node.items[index] = item;
+        node.count++;
+    }
+
+    private static void removeItem(Node node, int index) {
+        System.arraycopy(node.items, index + 1, node.items, index, node.count - index - 1);
+        node.items[--node.count] = null;
+    }
+
+    private static int copyTo(Node node, Object[] array, int offset) {
+        if (node.leaf) {
+            System.arraycopy(node.items, 0, array, offset, node.count);
+            return offset + node.count;
+        }
+        for (int i = 0; i < node.count; i++) {
+            offset = copyTo((Node) node.items[i], array, offset);
+        }
+        return offset;
+    }
+
+    private static class Node {
+
+        final boolean leaf;
+
+        /**
+         * Owner token of the list which may modify this node in place
+         */
+        final Object owner;
+
+        /**
+         * Elements in leaves, or children of inner nodes
+         */
+        final Object[] items = new Object[NODE_CAPACITY];
+
+        /**
+         * Count of items
+         */
+        int count;
+
+        /**
+         * Count of elements in this subtree
+         */
+        int size;
+
+        /**
+         * Weights of elements in leaves, or null in inner nodes
+         */
+        final int[] weights;
+
+        /**
+         * Sum of weights of elements in this subtree
+         */
+        int weight;
+
+        Node(boolean leaf, Object owner) {
+            this.leaf = leaf;
+            this.owner = owner;
+            weights = leaf ? new int[NODE_CAPACITY] : null;
+        }
+
+        /**
+         * Create a copy of this node with the given owner. Children are shared.
+         */
+        Node copy(Object owner) {
+            Node node = new Node(leaf, owner);
+            System.arraycopy(items, 0, node.items, 0, count);
+            if (leaf) {
+                System.arraycopy(weights, 0, node.weights, 0, count);
+            }
+            node.count = count;
+            node.size = size;
+            node.weight = weight;
+            return node;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.struct;
+
+import io.github.rosemoe.editor.util.VarInts;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bracket pairs of a text, which form a tree of nested code blocks.
+ * <p>
+ * Pairs are sorted by their opening brackets and each pair knows its enclosing pair, so the
+ * blocks around a line are found by a binary search and a walk up the tree, instead of a scan
+ * of all blocks. Unmatched brackets are kept as well, so that the tree of next analysis can
+ * reuse the pairs outside the changed lines, see {@link #build(List, BlockTree, int, int, int)}.
+ * <p>
+ * Positions are saved as (line << 32 | column). Instances are immutable.
+ */
+public class BlockTree {
+
+    private static final long[] EMPTY_POSITIONS = new long[0];
+
+    public static final BlockTree EMPTY = new BlockTree(EMPTY_POSITIONS, EMPTY_POSITIONS, EMPTY_POSITIONS, EMPTY_POSITIONS);
+
+    /**
+     * Opening brackets of pairs, sorted
+     */
+    private final long[] mOpens;
+    private final long[] mCloses;
+    /**
+     * Index of the pair enclosing each pair, or -1
+     */
+    private final int[] mParents;
+    /**
+     * Indices of pairs, sorted by their closing brackets
+     */
+    private final int[] mCloseOrder;
+    private final long[] mUnmatchedOpens;
+    private final long[] mUnmatchedCloses;
+
+    private BlockTree(long[] opens, long[] closes, long[] unmatchedOpens, long[] unmatchedCloses) {
+        mOpens = opens;
+        mCloses = closes;
+        mUnmatchedOpens = unmatchedOpens;
+        mUnmatchedCloses = unmatchedCloses;
+        final int size = opens.length;
+        mParents = new int[size];
+        mCloseOrder = new int[size];
+        // Pairs are nested, so walking them in order of opening brackets with a stack
+        // gives the parents, and pops them in order of closing brackets
+        final int[] stack = new int[size];
+        int top = 0;
+        int closed = 0;
+        for (int i = 0; i < size; i++) {
+            while (top > 0 && closes[stack[top - 1]] < opens[i]) {
+                mCloseOrder[closed++] = stack[--top];
+            }
+            mParents[i] = top > 0 ? stack[top - 1] : -1;
+            stack[top++] = i;
+        }
+        while (top > 0) {
+            mCloseOrder[closed++] = stack[--top];
+        }
+    }
+
+    private static long pack(int line, int column) {
+        return ((long) line << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * Build the tree from brackets saved in lexer checkpoints.
+     * <p>
+     * If a previous tree is given, only brackets on lines in [prefixEnd, suffixStart) are read from
+     * checkpoints. Pairs of previous tree before prefixEnd and after suffixStart are reused, since
+     * matching of brackets inside a region does not depend on text outside of it. Only the brackets
+     * left unmatched in those regions are matched again with the brackets on changed lines.
+     *
+     * @param checkpoints Checkpoints of current text
+     * @param previous    Tree of previous text, or null to build from all lines
+     * @param prefixEnd   Lines before it are not changed since previous tree
+     * @param suffixStart Lines from it are not changed since previous tree, or -1 if no line is reused at the end
+     * @param lineDelta   Count of lines inserted since previous tree, used if suffixStart is not -1
+     */
+    public static BlockTree build(List<LexerCheckpoint> checkpoints, BlockTree previous, int prefixEnd, int suffixStart, int lineDelta) {
+        if (previous == null) {
+            previous = EMPTY;
+            prefixEnd = 0;
+            suffixStart = -1;
+        }
+        final int middleEnd = suffixStart < 0 ? checkpoints.size() : Math.min(suffixStart, checkpoints.size());
+        // Positions in previous tree
+        final long prefixLimit = pack(prefixEnd, 0);
+        final long suffixLimit = suffixStart < 0 ? Long.MAX_VALUE : pack(suffixStart - lineDelta, 0);
+        final long shift = (long) lineDelta << 32;
+
+        final long[] oldOpens = previous.mOpens;
+        final long[] oldCloses = previous.mCloses;
+        final int oldSize = oldOpens.length;
+
+        // Pairs in the prefix, and opening brackets in the prefix left unmatched there
+        final LongArray prefixOpens = new LongArray(oldSize);
+        final LongArray prefixCloses = new LongArray(oldSize);
+        final LongArray stack = new LongArray(16);
+        // Closing brackets in the suffix left unmatched there
+        final LongArray suffixUnmatched = new LongArray(16);
+        int i = 0;
+        for (; i < oldSize && oldOpens[i] < prefixLimit; i++) {
+            if (oldCloses[i] < prefixLimit) {
+                prefixOpens.add(oldOpens[i]);
+                prefixCloses.add(oldCloses[i]);
+            } else {
+                stack.add(oldOpens[i]);
+                if (oldCloses[i] >= suffixLimit) {
+                    suffixUnmatched.add(oldCloses[i] + shift);
+                }
+            }
+        }
+        for (; i < oldSize && oldOpens[i] < suffixLimit; i++) {
+            if (oldCloses[i] >= suffixLimit) {
+                suffixUnmatched.add(oldCloses[i] + shift);
+            }
+        }
+        final int suffixPairStart = i;
+
+        final LongArray unmatchedOpens = new LongArray(16);
+        final LongArray unmatchedCloses = new LongArray(16);
+        for (long open : previous.mUnmatchedOpens) {
+            if (open < prefixLimit) {
+                stack.add(open);
+            }
+        }
+        stack.sort();
+        for (long close : previous.mUnmatchedCloses) {
+            if (close < prefixLimit) {
+                unmatchedCloses.add(close);
+            } else if (close >= suffixLimit) {
+                suffixUnmatched.add(close + shift);
+            }
+        }
+        suffixUnmatched.sort();
+
+        // Match again
+        final LongArray newOpens = new LongArray(16);
+        final LongArray newCloses = new LongArray(16);
+        for (int line = prefixEnd; line < middleEnd; line++) {
+            final LexerCheckpoint checkpoint = checkpoints.get(line);
+            if (checkpoint == null) {
+                continue;
+            }
+            for (int j = 0; j < checkpoint.bracketCount; j++) {
+                final int bracket = checkpoint.brackets[j];
+                if (bracket >= 0) {
+                    stack.add(pack(line, bracket));
+                } else {
+                    matchClose(pack(line, ~bracket), stack, newOpens, newCloses, unmatchedCloses);
+                }
+            }
+        }
+        for (int j = 0; j < suffixUnmatched.size; j++) {
+            matchClose(suffixUnmatched.data[j], stack, newOpens, newCloses, unmatchedCloses);
+        }
+        for (int j = 0; j < stack.size; j++) {
+            unmatchedOpens.add(stack.data[j]);
+        }
+        for (long open : previous.mUnmatchedOpens) {
+            if (open >= suffixLimit) {
+                unmatchedOpens.add(open + shift);
+            }
+        }
+
+        // Pairs matched again open before the suffix, so they are merged with pairs in the prefix
+        final int newSize = newOpens.size;
+        final long[] sortedNewOpens = Arrays.copyOf(newOpens.data, newSize);
+        Arrays.sort(sortedNewOpens);
+        final long[] sortedNewCloses = new long[newSize];
+        for (int j = 0; j < newSize; j++) {
+            sortedNewCloses[Arrays.binarySearch(sortedNewOpens, newOpens.data[j])] = newCloses.data[j];
+        }
+        final int size = prefixOpens.size + newSize + oldSize - suffixPairStart;
+        final long[] opens = new long[size];
+        final long[] closes = new long[size];
+        int a = 0, b = 0, k = 0;
+        while (a < prefixOpens.size || b < newSize) {
+            if (b == newSize || (a < prefixOpens.size && prefixOpens.data[a] < sortedNewOpens[b])) {
+                opens[k] = prefixOpens.data[a];
+                closes[k++] = prefixCloses.data[a++];
+            } else {
+                opens[k] = sortedNewOpens[b];
+                closes[k++] = sortedNewCloses[b++];
+            }
+        }
+        for (int j = suffixPairStart; j < oldSize; j++) {
+            opens[k] = oldOpens[j] + shift;
+            closes[k++] = oldCloses[j] + shift;
+        }
+        return new BlockTree(opens, closes, unmatchedOpens.toArray(), unmatchedCloses.toArray());
+    }
+
+    private static void matchClose(long close, LongArray stack, LongArray opens, LongArray closes, LongArray unmatchedCloses) {
+        if (stack.size == 0) {
+            unmatchedCloses.add(close);
+        } else {
+            opens.add(stack.data[--stack.size]);
+            closes.add(close);
+        }
+    }
+
+    /**
+     * Get count of bracket pairs, including the ones on a single line
+     */
+    public int size() {
+        return mOpens.length;
+    }
+
+    public int getStartLine(int index) {
+        return (int) (mOpens[index] >> 32);
+    }
+
+    public int getStartColumn(int index) {
+        return (int) mOpens[index];
+    }
+
+    public int getEndLine(int index) {
+        return (int) (mCloses[index] >> 32);
+    }
+
+    public int getEndColumn(int index) {
+        return (int) mCloses[index];
+    }
+
+    /**
+     * Get the pair enclosing the given pair
+     *
+     * @return Index of the pair, or -1 if it is not in any pair
+     */
+    public int getParent(int index) {
+        return mParents[index];
+    }
+
+    /**
+     * Whether the pair is a code block, which means its brackets are on different lines
+     */
+    public boolean isBlock(int index) {
+        return getEndLine(index) > getStartLine(index);
+    }
+
+    /**
+     * Index of the first pair opening at or after the position
+     */
+    private int lowerBound(long position) {
+        int low = 0, high = mOpens.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mOpens[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the innermost pair that contains the start of given line and opens before it.
+     * All blocks containing the line start are this pair and its ancestors.
+     *
+     * @return Index of the pair, or -1 if not found
+     */
+    public int findBlockAroundLineStart(int line) {
+        final long position = pack(line, 0);
+        int index = lowerBound(position) - 1;
+        while (index != -1 && mCloses[index] < position) {
+            index = mParents[index];
+        }
+        return index;
+    }
+
+    /**
+     * Find the first pair opening on or after the given line
+     *
+     * @return Index of the pair, or {@link #size()} if not found
+     */
+    public int findFirstBlockFrom(int line) {
+        return lowerBound(pack(line, 0));
+    }
+
+    /**
+     * Find the innermost code block containing the given line.
+     * If a block ends on the line and another block starts on it, the shorter one is returned.
+     *
+     * @return Index of the block, or -1 if not found
+     */
+    public int findInnermostBlock(int line) {
+        final int around = findBlockAroundLineStart(line);
+        // Blocks starting on the line are nested, so the last one is the innermost
+        int starting = -1;
+        for (int i = lowerBound(pack(line + 1, 0)) - 1; i >= 0 && getStartLine(i) == line; i--) {
+            if (isBlock(i)) {
+                starting = i;
+                break;
+            }
+        }
+        if (around == -1 || starting == -1) {
+            return around == -1 ? starting : around;
+        }
+        final int aroundLines = getEndLine(around) - getStartLine(around);
+        final int startingLines = getEndLine(starting) - getStartLine(starting);
+        return startingLines < aroundLines ? starting : around;
+    }
+
+    /**
+     * Find the pair of the bracket at the given position
+     *
+     * @return Index of the pair, or -1 if there is no paired bracket at the position
+     */
+    public int findPair(int line, int column) {
+        final long position = pack(line, column);
+        final int index = Arrays.binarySearch(mOpens, position);
+        if (index >= 0) {
+            return index;
+        }
+        int low = 0, high = mCloseOrder.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long close = mCloses[mCloseOrder[mid]];
+            if (close < position) {
+                low = mid + 1;
+            } else if (close > position) {
+                high = mid - 1;
+            } else {
+                return mCloseOrder[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write the pairs and unmatched brackets. Lines are written as deltas, so most positions take two bytes.
+     *
+     * @see #readFrom(DataInput)
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writePositions(out, mOpens);
+        for (int i = 0; i < mOpens.length; i++) {
+            VarInts.write(out, getEndLine(i) - getStartLine(i));
+            VarInts.write(out, getEndColumn(i));
+        }
+        writePositions(out, mUnmatchedOpens);
+        writePositions(out, mUnmatchedCloses);
+    }
+
+    /**
+     * Read a tree written by {@link #writeTo(DataOutput)}
+     */
+    public static BlockTree readFrom(DataInput in) throws IOException {
+        final long[] opens = readPositions(in);
+        final long[] closes = new long[opens.length];
+        for (int i = 0; i < opens.length; i++) {
+            closes[i] = pack((int) (opens[i] >> 32) + VarInts.read(in), VarInts.read(in));
+        }
+        final long[] unmatchedOpens = readPositions(in);
+        final long[] unmatchedCloses = readPositions(in);
+        if (opens.length == 0 && unmatchedOpens.length == 0 && unmatchedCloses.length == 0) {
+            return EMPTY;
+        }
+        return new BlockTree(opens, closes, unmatchedOpens, unmatchedCloses);
+    }
+
+    private static void writePositions(DataOutput out, long[] positions) throws IOException {
+        VarInts.write(out, positions.length);
+        int line = 0;
+        for (long position : positions) {
+            VarInts.write(out, (int) (position >> 32) - line);
+            VarInts.write(out, (int) position);
+            line = (int) (position >> 32);
+        }
+    }
+
+    private static long[] readPositions(DataInput in) throws IOException {
+        final int size = VarInts.read(in);
+        if (size < 0) {
+            throw new IOException("Invalid position count " + size);
+        }
+        if (size == 0) {
+            return EMPTY_POSITIONS;
+        }
+        final long[] positions = new long[size];
+        int line = 0;
+        for (int i = 0; i < size; i++) {
+            line += VarInts.read(in);
+            positions[i] = pack(line, VarInts.read(in));
+        }
+        return positions;
+    }
+
+    /**
+     * A growable array of long
+     */
+    private static class LongArray {
+
+        long[] data;
+        int size;
+
+        LongArray(int capacity) {
+            data = new long[Math.max(capacity, 4)];
+        }
+
+        void add(long value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void sort() {
+            Arrays.sort(data, 0, size);
+        }
+
+        long[] toArray() {
+            return size == 0 ? EMPTY_POSITIONS : Arrays.copyOf(data, size);
+        }
+    }
+}
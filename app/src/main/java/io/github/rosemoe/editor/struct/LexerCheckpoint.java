@@ -0,0 +1,99 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.struct;
+
+import java.util.Arrays;
+
+/**
+ * State of lexer before it lexes the first token on a line.
+ * Lexing can be restarted from here without lexing the lines before.
+ */
+public class LexerCheckpoint {
+
+    /**
+     * Column where the lexer restarts on the line
+     */
+    public int column;
+
+    /**
+     * Lexer mode before the token
+     */
+    public int mode;
+
+    /**
+     * Lexer mode stack before the token, or null if it is empty
+     */
+    public int[] modeStack;
+
+    /**
+     * State of analyzer before the token
+     */
+    public int state;
+
+    /**
+     * Color id of the last span before the token, or -1 if there is no span yet
+     */
+    public int lastColor;
+
+    /**
+     * How many lines after this line the lexer has looked at before reaching the token
+     */
+    public int reach;
+
+    /**
+     * Brackets on this line. Opening brackets are saved as their column, closing
+     * brackets as bitwise complement of their column.
+     */
+    public int[] brackets;
+
+    /**
+     * Count of brackets in {@link #brackets}
+     */
+    public int bracketCount;
+
+    public LexerCheckpoint(int column, int mode, int[] modeStack, int state, int lastColor, int reach) {
+        this.column = column;
+        this.mode = mode;
+        this.modeStack = modeStack;
+        this.state = state;
+        this.lastColor = lastColor;
+        this.reach = reach;
+    }
+
+    /**
+     * Add a bracket on this line
+     *
+     * @param column Column of bracket
+     * @param open   Whether it is an opening bracket
+     */
+    public void addBracket(int column, boolean open) {
+        if (brackets == null) {
+            brackets = new int[4];
+        } else if (bracketCount == brackets.length) {
+            brackets = Arrays.copyOf(brackets, bracketCount * 2);
+        }
+        brackets[bracketCount++] = open ? column : ~column;
+    }
+
+    /**
+     * Whether lexing from the two checkpoints produces the same result,
+     * given the text after them is the same
+     */
+    public boolean isSameState(LexerCheckpoint other) {
+        return other != null && column == other.column && mode == other.mode && state == other.state
+                && lastColor == other.lastColor && reach == other.reach && Arrays.equals(modeStack, other.modeStack);
+    }
+}
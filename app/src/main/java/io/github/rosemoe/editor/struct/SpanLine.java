@@ -0,0 +1,295 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.struct;
+
+import io.github.rosemoe.editor.util.VarInts;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spans of a line, packed into primitive arrays.
+ * A span starts at its column and ends at the column of next span (or line end).
+ * <p>
+ * Each span is a long of (column, colorId). Underlines are rare, so they are stored
+ * in another array, which is only created when a span has underline.
+ */
+public class SpanLine {
+
+    public static final float DEFAULT_UNDERLINE_HEIGHT = 0.1f;
+    public static final float HEX_COLOR_UNDERLINE_HEIGHT = 0.27f;
+
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * Generation of lines created from now on, see {@link #newGeneration()}
+     */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    private long[] mSpans;
+    /**
+     * (underline color, underline height bits) of spans, or null if no span has underline
+     */
+    private long[] mUnderlines;
+    private int mSize;
+    private final int mGeneration = sGeneration.get();
+
+    public SpanLine() {
+        mSpans = EMPTY;
+    }
+
+    /**
+     * Create a line with a single span at column 0
+     *
+     * @param colorId Color id of the span
+     */
+    public SpanLine(int colorId) {
+        mSpans = new long[]{pack(0, colorId)};
+        mSize = 1;
+    }
+
+    private static long pack(int column, int colorId) {
+        return ((long) column << 32) | (colorId & 0xffffffffL);
+    }
+
+    private static long packUnderline(int color, float height) {
+        return ((long) color << 32) | (Float.floatToIntBits(height) & 0xffffffffL);
+    }
+
+    /**
+     * Start a new generation of lines, so that lines which may be shared with a snapshot
+     * taken now can be told from lines created later
+     *
+     * @return The generation of lines created before this call
+     */
+    public static int newGeneration() {
+        return sGeneration.getAndIncrement();
+    }
+
+    /**
+     * Get the generation in which this line was created
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Get count of spans
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int getColumn(int index) {
+        return (int) (mSpans[index] >> 32);
+    }
+
+    public int getColorId(int index) {
+        return (int) mSpans[index];
+    }
+
+    /**
+     * Get underline color of the span
+     *
+     * @return The color, or zero for no underline
+     */
+    public int getUnderlineColor(int index) {
+        return mUnderlines == null ? 0 : (int) (mUnderlines[index] >> 32);
+    }
+
+    public float getUnderlineHeight(int index) {
+        return mUnderlines == null || mUnderlines[index] == 0 ? DEFAULT_UNDERLINE_HEIGHT : Float.intBitsToFloat((int) mUnderlines[index]);
+    }
+
+    public void setColumn(int index, int column) {
+        mSpans[index] = pack(column, getColorId(index));
+    }
+
+    /**
+     * Add delta to the columns of spans from the given index
+     */
+    public void shiftColumns(int fromIndex, int delta) {
+        final long shift = (long) delta << 32;
+        for (int i = fromIndex; i < mSize; i++) {
+            mSpans[i] += shift;
+        }
+    }
+
+    /**
+     * Set underline of the span
+     *
+     * @param color  Color of underline (not color id of EditorColorScheme), zero for no underline
+     * @param height Height of underline, relative to row height
+     */
+    public void setUnderline(int index, int color, float height) {
+        if (mUnderlines == null) {
+            if (color == 0) {
+                return;
+            }
+            mUnderlines = new long[mSpans.length];
+        }
+        mUnderlines[index] = color == 0 ? 0 : packUnderline(color, height);
+    }
+
+    /**
+     * Add a span to the end
+     */
+    public void add(int column, int colorId) {
+        insert(mSize, column, colorId);
+    }
+
+    /**
+     * Insert a span without underline at the given index
+     */
+    public void insert(int index, int column, int colorId) {
+        if (mSize == mSpans.length) {
+            final int capacity = Math.max(4, mSize + (mSize >> 1));
+            mSpans = Arrays.copyOf(mSpans, capacity);
+            if (mUnderlines != null) {
+                mUnderlines = Arrays.copyOf(mUnderlines, capacity);
+            }
+        }
+        System.arraycopy(mSpans, index, mSpans, index + 1, mSize - index);
+        mSpans[index] = pack(column, colorId);
+        if (mUnderlines != null) {
+            System.arraycopy(mUnderlines, index, mUnderlines, index + 1, mSize - index);
+            mUnderlines[index] = 0;
+        }
+        mSize++;
+    }
+
+    /**
+     * Add a copy of the span in another line to the end, with the given column
+     */
+    public void addFrom(SpanLine src, int index, int column) {
+        add(column, src.getColorId(index));
+        if (src.mUnderlines != null && src.mUnderlines[index] != 0) {
+            setUnderline(mSize - 1, src.getUnderlineColor(index), src.getUnderlineHeight(index));
+        }
+    }
+
+    public void remove(int index) {
+        removeRange(index, index + 1);
+    }
+
+    /**
+     * Remove spans in [fromIndex, toIndex)
+     */
+    public void removeRange(int fromIndex, int toIndex) {
+        System.arraycopy(mSpans, toIndex, mSpans, fromIndex, mSize - toIndex);
+        if (mUnderlines != null) {
+            System.arraycopy(mUnderlines, toIndex, mUnderlines, fromIndex, mSize - toIndex);
+        }
+        mSize -= toIndex - fromIndex;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mUnderlines = null;
+    }
+
+    /**
+     * Find the first span whose column is not less than the given column
+     *
+     * @return Index of the span, or -1 if not found
+     */
+    public int findIndexFor(int fromIndex, int column) {
+        for (int i = fromIndex; i < mSize; i++) {
+            if (getColumn(i) >= column) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copy the spans before the given index to a new line
+     */
+    public SpanLine copy(int count) {
+        final SpanLine copy = new SpanLine();
+        copy.mSpans = Arrays.copyOf(mSpans, Math.max(count, 4));
+        if (mUnderlines != null) {
+            copy.mUnderlines = Arrays.copyOf(mUnderlines, copy.mSpans.length);
+        }
+        copy.mSize = count;
+        return copy;
+    }
+
+    /**
+     * Create a line with a single span at column 0, which has the color and underline
+     * of the span at the given index
+     */
+    public SpanLine extend(int index) {
+        final SpanLine line = new SpanLine(getColorId(index));
+        line.setUnderline(0, getUnderlineColor(index), getUnderlineHeight(index));
+        return line;
+    }
+
+    /**
+     * Write the spans, columns as deltas to the previous span
+     *
+     * @see #readFrom(DataInput)
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        VarInts.write(out, mSize);
+        out.writeBoolean(mUnderlines != null);
+        int column = 0;
+        for (int i = 0; i < mSize; i++) {
+            VarInts.write(out, getColumn(i) - column);
+            VarInts.write(out, getColorId(i));
+            column = getColumn(i);
+            if (mUnderlines != null) {
+                final int color = getUnderlineColor(i);
+                out.writeInt(color);
+                if (color != 0) {
+                    out.writeFloat(getUnderlineHeight(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Read spans written by {@link #writeTo(DataOutput)}
+     */
+    public static SpanLine readFrom(DataInput in) throws IOException {
+        final int size = VarInts.read(in);
+        if (size < 0) {
+            throw new IOException("Invalid span count " + size);
+        }
+        final boolean underlines = in.readBoolean();
+        final SpanLine line = new SpanLine();
+        line.mSpans = new long[Math.max(size, 4)];
+        int column = 0;
+        for (int i = 0; i < size; i++) {
+            column += VarInts.read(in);
+            line.mSpans[i] = pack(column, VarInts.read(in));
+            line.mSize++;
+            if (underlines) {
+                final int color = in.readInt();
+                if (color != 0) {
+                    line.setUnderline(i, color, in.readFloat());
+                }
+            }
+        }
+        return line;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.text;
+
+import com.itsaky.androidide.utils.Logger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs analysis tasks of all {@link TextAnalyzer}s on a small shared pool of threads.
+ * <p>
+ * Each document has at most one task, which is either idle, queued or running. Requests
+ * made while the task is queued or running are merged into it, so superseded work is
+ * never queued. Tasks of focused editors run before others, and requests can be delayed
+ * so that a burst of edits is analyzed only once.
+ * <p>
+ * Threads are started on demand and exit after being idle for a while.
+ */
+public class AnalyzeScheduler {
+
+    /**
+     * Max count of analysis threads
+     */
+    private static final int MAX_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Idle threads exit after this time
+     */
+    private static final long KEEP_ALIVE_TIME = 30000;
+
+    /**
+     * A task is delayed by new requests for no longer than this time
+     */
+    private static final long MAX_DELAY = 300;
+
+    private static final Logger LOG = Logger.instance("AnalyzeScheduler");
+
+    private static AnalyzeScheduler INSTANCE;
+
+    private final List<Task> mQueue = new ArrayList<>();
+    private int mThreadCount = 0;
+    private int mIdleThreadCount = 0;
+    private int mThreadId = 0;
+
+    private AnalyzeScheduler() {
+    }
+
+    public static synchronized AnalyzeScheduler getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new AnalyzeScheduler();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Request the task to run after the given delay.
+     * If the task has been requested and not started, the requests are merged and
+     * the task runs once, but not later than {@link #MAX_DELAY} after the first request.
+     * If the task is running, it runs again after it finishes.
+     *
+     * @param task  The task
+     * @param delay Delay in milliseconds
+     */
+    public synchronized void schedule(Task task, long delay) {
+        final long now = System.currentTimeMillis();
+        if (task.mRequestCount == 0) {
+            task.mFirstRequestTime = now;
+        }
+        task.mRequestCount++;
+        task.mDueTime = Math.min(now + delay, task.mFirstRequestTime + MAX_DELAY);
+        if (!task.mQueued && !task.mRunning) {
+            task.mQueued = true;
+            mQueue.add(task);
+        }
+        if (mIdleThreadCount > 0) {
+            notifyAll();
+        } else if (mThreadCount < MAX_THREADS) {
+            final Thread thread = new Thread(this::runWorker, "TextAnalyzeDaemon-" + (++mThreadId));
+            thread.setDaemon(true);
+            mThreadCount++;
+            thread.start();
+        }
+    }
+
+    /**
+     * Remove the pending request of the task.
+     * This does not stop the task if it is running.
+     *
+     * @param task The task
+     */
+    public synchronized void cancel(Task task) {
+        if (task.mQueued) {
+            mQueue.remove(task);
+            task.mQueued = false;
+        }
+        task.mRequestCount = 0;
+    }
+
+    /**
+     * Called when the priority of a task changes
+     */
+    public synchronized void notifyPriorityChanged() {
+        if (mIdleThreadCount > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get the count of tasks waiting to run
+     */
+    public synchronized int getQueueSize() {
+        return mQueue.size();
+    }
+
+    /**
+     * Take the next task to run, or wait for one.
+     * Caller must hold the lock.
+     *
+     * @return The task, or null if this thread should exit
+     */
+    private Task takeTask() throws InterruptedException {
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            final long now = System.currentTimeMillis();
+            Task best = null;
+            long nextDueTime = Long.MAX_VALUE;
+            for (Task task : mQueue) {
+                if (task.mDueTime > now) {
+                    nextDueTime = Math.min(nextDueTime, task.mDueTime);
+                } else if (best == null || (task.isFocused() && !best.isFocused())
+                        || (task.isFocused() == best.isFocused() && task.mDueTime < best.mDueTime)) {
+                    best = task;
+                }
+            }
+            if (best != null) {
+                mQueue.remove(best);
+                best.mQueued = false;
+                return best;
+            }
+            final long timeout = Math.min(nextDueTime - now, idleSince + KEEP_ALIVE_TIME - now);
+            if (timeout <= 0) {
+                return null;
+            }
+            mIdleThreadCount++;
+            try {
+                wait(timeout);
+            } finally {
+                mIdleThreadCount--;
+            }
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            final Task task;
+            final int requestCount;
+            synchronized (this) {
+                try {
+                    task = takeTask();
+                } catch (InterruptedException e) {
+                    mThreadCount--;
+                    return;
+                }
+                if (task == null) {
+                    mThreadCount--;
+                    return;
+                }
+                task.mRunning = true;
+                requestCount = task.mRequestCount;
+                task.mRequestCount = 0;
+            }
+            final long startTime = System.currentTimeMillis();
+            boolean completed = false;
+            try {
+                completed = task.execute();
+            } catch (Throwable t) {
+                LOG.error("An error occurred while analyzing", t);
+            }
+            final long runTime = System.currentTimeMillis() - startTime;
+            synchronized (this) {
+                task.mRunning = false;
+                task.mRunCount++;
+                if (!completed) {
+                    task.mCancelledCount++;
+                }
+                task.mMergedRequestCount += requestCount - 1;
+                task.mTotalRunTime += runTime;
+                task.mLastRunTime = runTime;
+                if (task.mRequestCount > 0) {
+                    // Requested while running
+                    task.mQueued = true;
+                    mQueue.add(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * A task of a document. It must not be scheduled on more than one scheduler.
+     */
+    public abstract static class Task {
+
+        // Guarded by scheduler
+        private boolean mQueued;
+        private boolean mRunning;
+        private int mRequestCount;
+        private long mFirstRequestTime;
+        private long mDueTime;
+        private int mRunCount;
+        private int mCancelledCount;
+        private int mMergedRequestCount;
+        private long mTotalRunTime;
+        private long mLastRunTime;
+
+        /**
+         * Run the task
+         *
+         * @return false if the run is stopped because its work is superseded
+         */
+        protected abstract boolean execute() throws Exception;
+
+        /**
+         * Whether this task belongs to the focused editor, and should run first
+         */
+        protected abstract boolean isFocused();
+
+        /**
+         * Get stats of this task
+         */
+        public Stats getStats() {
+            final Stats stats = new Stats();
+            synchronized (getInstance()) {
+                stats.queueDepth = mRequestCount;
+                stats.running = mRunning;
+                stats.runCount = mRunCount;
+                stats.cancelledCount = mCancelledCount;
+                stats.mergedRequestCount = mMergedRequestCount;
+                stats.totalRunTime = mTotalRunTime;
+                stats.lastRunTime = mLastRunTime;
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Stats of a document's analysis
+     */
+    public static class Stats {
+
+        /**
+         * Count of requests waiting to run
+         */
+        public int queueDepth;
+
+        /**
+         * Whether analysis is running
+         */
+        public boolean running;
+
+        /**
+         * Count of finished runs, including cancelled ones
+         */
+        public int runCount;
+
+        /**
+         * Count of runs stopped because of new requests
+         */
+        public int cancelledCount;
+
+        /**
+         * Count of requests merged into other requests without running
+         */
+        public int mergedRequestCount;
+
+        /**
+         * Total run time in milliseconds
+         */
+        public long totalRunTime;
+
+        /**
+         * Run time of last run in milliseconds
+         */
+        public long lastRunTime;
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "queueDepth=" + queueDepth +
+                    ", running=" + running +
+                    ", runCount=" + runCount +
+                    ", cancelledCount=" + cancelledCount +
+                    ", mergedRequestCount=" + mergedRequestCount +
+                    ", totalRunTime=" + totalRunTime +
+                    ", lastRunTime=" + lastRunTime +
+                    '}';
+        }
+    }
+}
@@ -17,8 +17,11 @@ package io.github.rosemoe.editor.text;
 
 import com.itsaky.androidide.utils.Symbols;
 import io.github.rosemoe.editor.annotations.Experimental;
+import io.github.rosemoe.editor.struct.BTreeList;
 import io.github.rosemoe.editor.widget.CodeEditor;
 import io.github.rosemoe.struct.BlockLinkedList;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,7 +32,8 @@ import java.util.List;
  */
 public class Content implements CharSequence {
 
-    public final static int DEFAULT_MAX_UNDO_STACK_SIZE = 100;
+    public final static int DEFAULT_MAX_UNDO_STACK_SIZE = 500;
+    public final static long DEFAULT_MAX_UNDO_MEMORY = 16 * 1024 * 1024;
     public final static int DEFAULT_LIST_CAPACITY = 1000;
 
     private static int sInitialListCapacity;
@@ -46,6 +50,16 @@ public class Content implements CharSequence {
     private UndoManager mUndoManager;
     private Cursor mCursor;
     private LineRemoveListener mLineListener;
+    private volatile int mDocumentVersion;
+    /**
+     * Lines whose owner is not this token may be shared with snapshots
+     */
+    private Object mLineOwner = new Object();
+
+    /**
+     * Line modified last time, which is trimmed when another line is modified
+     */
+    private ContentLine mLastWrittenLine;
     
     private final CodeEditor editor;
 
@@ -60,6 +74,24 @@ public class Content implements CharSequence {
     @Experimental
     public static boolean useBlock = false;
 
+    /**
+     * Data structure to store lines of text
+     */
+    public enum LineStorage {
+
+        /**
+         * Lines are stored in an ArrayList. Getting a line is fast, but adding and removing
+         * lines costs O(n), which is slow for large text. Snapshots copy the whole list.
+         */
+        ARRAY,
+        /**
+         * Lines are stored in a {@link BTreeList}. Getting, adding and removing lines costs O(log n),
+         * and snapshots share the list.
+         */
+        TREE
+
+    }
+
     /**
      * This constructor will create a Content object with no text
      */
@@ -80,15 +112,18 @@ public class Content implements CharSequence {
         this.editor = editor;
         mTextLength = 0;
         mNestedBatchEdit = 0;
-        if (!useBlock)
-            mLines = new ArrayList<>(getInitialLineCapacity());
-        else
+        if (useBlock)
             mLines = new BlockLinkedList<>(5000);
-        mLines.add(new ContentLine());
+        else if (editor != null && editor.getLineStorage() == LineStorage.TREE)
+            mLines = new BTreeList<>();
+        else
+            mLines = new ArrayList<>(getInitialLineCapacity());
+        mLines.add(newLine());
         mListeners = new ArrayList<>();
         mUndoManager = new UndoManager(this);
         setMaxUndoStackSize(Content.DEFAULT_MAX_UNDO_STACK_SIZE);
-        mIndexer = new NoCacheIndexer(this);
+        setMaxUndoMemory(Content.DEFAULT_MAX_UNDO_MEMORY);
+        mIndexer = new LineOffsetIndexer(this);
         if (src.length() == 0) {
             setUndoEnabled(true);
             return;
@@ -98,6 +133,34 @@ public class Content implements CharSequence {
         setUndoEnabled(true);
     }
 
+    /**
+     * Create a snapshot of the given Content
+     *
+     * @param source The Content to copy
+     */
+    @SuppressWarnings("unchecked")
+    private Content(Content source) {
+        editor = source.editor;
+        if (source.mLines instanceof BTreeList) {
+            mLines = ((BTreeList<ContentLine>) source.mLines).copy();
+        } else {
+            mLines = new ArrayList<>(source.mLines);
+        }
+        mTextLength = source.mTextLength;
+        mNestedBatchEdit = 0;
+        mDocumentVersion = source.mDocumentVersion;
+        mListeners = new ArrayList<>();
+        mUndoManager = new UndoManager(this);
+        setUndoEnabled(false);
+        if (source.mIndexer instanceof LineOffsetIndexer) {
+            mIndexer = new LineOffsetIndexer(this, (LineOffsetIndexer) source.mIndexer);
+        } else {
+            mIndexer = new LineOffsetIndexer(this);
+        }
+        // Lines are shared with the snapshot from now on
+        source.mLineOwner = new Object();
+    }
+
     /**
      * Returns the default capacity of text line list
      *
@@ -207,6 +270,47 @@ public class Content implements CharSequence {
         return mLines.size();
     }
 
+    /**
+     * Get the version of text. It is increased before every modification
+     * so that readers on other threads can find out whether the text has been changed.
+     *
+     * @return Version of text
+     */
+    public int getDocumentVersion() {
+        return mDocumentVersion;
+    }
+
+    /**
+     * Create a snapshot of current text, which is not affected by later modifications
+     * of this object. It can be safely read on other threads.
+     * <p>
+     * Lines are not copied. They are shared until this object modifies them.
+     * The line list is shared as well if it is stored in a tree, so creating a snapshot costs O(1).
+     * Otherwise, it costs a copy of the line list.
+     *
+     * @return Snapshot of text. Its document version is the version of this object.
+     */
+    public Content createSnapshot() {
+        return new Content(this);
+    }
+
+    /**
+     * Write the text to the given writer
+     *
+     * @param writer Destination
+     * @throws IOException If the writer throws it
+     */
+    public void writeTo(Writer writer) throws IOException {
+        final int lineCount = getLineCount();
+        for (int i = 0; i < lineCount; i++) {
+            if (i != 0) {
+                writer.write('\n');
+            }
+            ContentLine line = mLines.get(i);
+            writer.append(line, 0, line.length());
+        }
+    }
+
     /**
      * Get how many characters is on the given line
      * If (line < 0 or line >= getLineCount()),it will throw a IndexOutOfBoundsException
@@ -279,6 +383,7 @@ public class Content implements CharSequence {
         }
         
         text = text.toString().replace("\t", Symbols.createTabSpaces());
+        mDocumentVersion++;
         //-----Notify------
         if (mCursor != null)
             mCursor.beforeInsert(line, column);
@@ -288,23 +393,37 @@ public class Content implements CharSequence {
         if (workIndex == -1) {
             workIndex = 0;
         }
-        ContentLine currLine = mLines.get(workLine);
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            if (c == '\n') {
-                ContentLine newLine = new ContentLine();
-                newLine.append(currLine, workIndex, currLine.length());
-                currLine.delete(workIndex, currLine.length());
-                mLines.add(workLine + 1, newLine);
-                currLine = newLine;
+        ContentLine currLine = getLineForWrite(workLine);
+        final int length = text.length();
+        // Text after the insertion point, which is moved to the last new line
+        ContentLine tail = null;
+        List<ContentLine> newLines = null;
+        int segmentStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                if (newLines == null) {
+                    newLines = new ArrayList<>();
+                    tail = currLine.subSequence(workIndex, currLine.length());
+                    currLine.delete(workIndex, currLine.length());
+                }
+                currLine.insert(workIndex, text, segmentStart, i);
+                // Lines before the last one are complete
+                currLine.trimToSize();
+                currLine = newLine();
+                newLines.add(currLine);
                 workIndex = 0;
                 workLine++;
-            } else {
-                currLine.insert(workIndex, c);
-                workIndex++;
+                segmentStart = i + 1;
             }
         }
-        mTextLength += text.length();
+        currLine.insert(workIndex, text, segmentStart, length);
+        workIndex += length - segmentStart;
+        if (newLines != null) {
+            currLine.append(tail);
+            // Add lines at once, instead of shifting the following lines for every line
+            mLines.addAll(line + 1, newLines);
+        }
+        mTextLength += length;
         this.dispatchAfterInsert(line, column, workLine, workIndex, text);
     }
 
@@ -344,11 +463,12 @@ public class Content implements CharSequence {
             if (beginIdx > columnOnEndLine) {
                 throw new IllegalArgumentException("start > end");
             }
-            ContentLine curr = mLines.get(startLine);
+            ContentLine curr = getLineForWrite(startLine);
             int len = curr.length();
             if (beginIdx < 0 || beginIdx > len || columnOnEndLine > len) {
                 throw new StringIndexOutOfBoundsException("column start or column end is out of bounds");
             }
+            mDocumentVersion++;
 
             //-----Notify------
             if (mCursor != null)
@@ -363,8 +483,11 @@ public class Content implements CharSequence {
             if (columnOnStartLine == -1) {
                 if (startLine == 0) {
                     mTextLength++;
+                    columnOnStartLine = 0;
                 } else {
-                    ContentLine previous = mLines.get(startLine - 1);
+                    ContentLine previous = getLineForWrite(startLine - 1);
+                    // The deleted region starts at the end of previous line (before merging)
+                    final int previousLength = previous.length();
                     previous.append(curr);
                     ContentLine rm = mLines.remove(startLine);
                     if (mLineListener != null) {
@@ -372,40 +495,43 @@ public class Content implements CharSequence {
                     }
                     changedContent.insert(0, '\n');
                     startLine--;
-                    columnOnStartLine = getColumnCount(startLine);
+                    columnOnStartLine = previousLength;
                 }
             }
         } else if (startLine < endLine) {
             if(!checkLineAndColumn(startLine, columnOnStartLine, true)) return;
             if(!checkLineAndColumn(endLine, columnOnEndLine, true)) return;
+            mDocumentVersion++;
 
             //-----Notify------
             if (mCursor != null)
                 mCursor.beforeDelete(startLine, columnOnStartLine, endLine, columnOnEndLine);
 
-            for (int i = 0; i < endLine - startLine - 1; i++) {
-                ContentLine line = mLines.remove(startLine + 1);
+            // Remove lines between at once
+            final List<ContentLine> removedLines = mLines.subList(startLine + 1, endLine);
+            for (ContentLine line : removedLines) {
                 if (mLineListener != null) {
                     mLineListener.onRemove(this, line);
                 }
                 mTextLength -= line.length() + 1;
                 changedContent.append('\n').append(line);
             }
+            removedLines.clear();
             int currEnd = startLine + 1;
-            ContentLine start = mLines.get(startLine);
+            ContentLine start = getLineForWrite(startLine);
             ContentLine end = mLines.get(currEnd);
             mTextLength -= start.length() - columnOnStartLine;
             changedContent.insert(0, start, columnOnStartLine, start.length());
             start.delete(columnOnStartLine, start.length());
             mTextLength -= columnOnEndLine;
             changedContent.append('\n').append(end, 0, columnOnEndLine);
-            end.delete(0, columnOnEndLine);
             mTextLength--;
             ContentLine r = mLines.remove(currEnd);
             if (mLineListener != null) {
                 mLineListener.onRemove(this, r);
             }
-            start.append(end);
+            // The end line is removed, so it is not modified in case it is shared
+            start.append(end, columnOnEndLine, end.length());
         } else {
             throw new IllegalArgumentException("start line > end line");
         }
@@ -452,7 +578,7 @@ public class Content implements CharSequence {
      * This is not forced.
      */
     public void endStreamCharGetting() {
-        mIndexer = new NoCacheIndexer(this);
+        mIndexer = new LineOffsetIndexer(this);
     }
 
     /**
@@ -526,6 +652,34 @@ public class Content implements CharSequence {
         mUndoManager.setMaxUndoStackSize(maxSize);
     }
 
+    /**
+     * Get current max memory usage of UndoManager
+     *
+     * @return current max memory usage in bytes
+     */
+    public long getMaxUndoMemory() {
+        return mUndoManager.getMaxUndoMemory();
+    }
+
+    /**
+     * Set the max memory usage of UndoManager
+     * Oldest modifications are removed when the estimated memory usage exceeds it
+     *
+     * @param maxMemory New max memory usage in bytes
+     */
+    public void setMaxUndoMemory(long maxMemory) {
+        mUndoManager.setMaxUndoMemory(maxMemory);
+    }
+
+    /**
+     * Get estimated memory used by modifications in UndoManager
+     *
+     * @return memory usage in bytes
+     */
+    public long getUndoMemoryUsage() {
+        return mUndoManager.getMemoryUsage();
+    }
+
     /**
      * A delegate method.
      * Notify the UndoManager to begin batch edit(enter a new layer).
@@ -619,11 +773,11 @@ public class Content implements CharSequence {
         } else if (startLine < endLine) {
             c.insert(0, 0, mLines.get(startLine).subSequence(startColumn, mLines.get(startLine).length()));
             for (int i = startLine + 1; i < endLine; i++) {
-                c.mLines.add(new ContentLine(mLines.get(i)));
+                c.mLines.add(c.newLine().append(mLines.get(i)));
                 c.mTextLength += mLines.get(i).length() + 1;
             }
             ContentLine end = mLines.get(endLine);
-            c.mLines.add(new ContentLine().insert(0, end, 0, endColumn));
+            c.mLines.add(c.newLine().insert(0, end, 0, endColumn));
             c.mTextLength += endColumn + 1;
         } else {
             throw new IllegalArgumentException("start > end");
@@ -758,6 +912,40 @@ public class Content implements CharSequence {
         }
     }
 
+    /**
+     * Create a new line which can be modified in place
+     */
+    private ContentLine newLine() {
+        ContentLine line = new ContentLine();
+        line.owner = mLineOwner;
+        return line;
+    }
+
+    /**
+     * Get the line for modification.
+     * If the line is shared with snapshots, it is replaced by a copy first.
+     *
+     * @param line Line index
+     * @return The line which can be modified in place
+     */
+    private ContentLine getLineForWrite(int line) {
+        ContentLine contentLine = mLines.get(line);
+        if (contentLine.owner != mLineOwner) {
+            contentLine = contentLine.copy();
+            contentLine.owner = mLineOwner;
+            mLines.set(line, contentLine);
+        }
+        if (contentLine != mLastWrittenLine) {
+            // Editing moved to another line, release the spare capacity of previous one
+            // Lines shared with snapshots are never modified in place, so they are not trimmed
+            if (mLastWrittenLine != null && mLastWrittenLine.owner == mLineOwner) {
+                mLastWrittenLine.trimToSize();
+            }
+            mLastWrittenLine = contentLine;
+        }
+        return contentLine;
+    }
+
     /**
      * Check whether the index is valid
      *
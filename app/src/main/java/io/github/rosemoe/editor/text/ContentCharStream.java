@@ -0,0 +1,253 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.text;
+
+import java.util.Arrays;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * A {@link CharStream} which reads characters from the lines of {@link Content} directly,
+ * without copying the text into a String.
+ * <p>
+ * Indexes are UTF-16 char indexes, so token columns are the same as columns in editor.
+ * Lines are separated by '\n'.
+ * <p>
+ * The stream may be read on another thread while the text is being modified. Once the document
+ * version is different from the one when the stream was created, the stream behaves as if the
+ * text ended and {@link #isStale()} returns true. Results built from a stale stream should be dropped.
+ */
+public class ContentCharStream implements CharStream {
+
+    private final Content mContent;
+    private final int mVersion;
+    private final int mStartLine;
+    private final int mEndLine;
+    private final int mSize;
+    private int mIndex;
+    private boolean mStale;
+
+    /**
+     * Stream index of column 0 of each line reached so far, relative to mStartLine
+     */
+    private int[] mLineStarts;
+    private int mReachedLines;
+
+    /**
+     * Line which is being read
+     */
+    private ContentLine mLine;
+    private int mLineIndex;
+    private int mLineStart;
+    private int mLineEnd;
+
+    /**
+     * Create a stream of the whole text
+     *
+     * @param content The text
+     */
+    public ContentCharStream(Content content) {
+        this(content, 0, 0);
+    }
+
+    /**
+     * Create a stream of the text from the given position
+     *
+     * @param content     The text
+     * @param startLine   Line to start from
+     * @param startColumn Column to start from. Index 0 of stream is this position.
+     */
+    public ContentCharStream(Content content, int startLine, int startColumn) {
+        mContent = content;
+        mVersion = content.getDocumentVersion();
+        mStartLine = startLine;
+        final int lineCount = content.getLineCount();
+        // Found by the line offset indexer, instead of summing lengths of the rest lines
+        final int size = startLine < lineCount ? content.length() - content.getCharIndex(startLine, 0) : 0;
+        mSize = Math.max(0, size - startColumn);
+        mEndLine = lineCount - 1;
+        mLineStarts = new int[64];
+        mLineStarts[0] = -startColumn;
+        mReachedLines = 1;
+        mLineIndex = -1;
+        mLineEnd = -1;
+        mLineStart = 0;
+        if (!moveToLine(0)) {
+            mStale = true;
+        }
+    }
+
+    /**
+     * Whether the text has been modified since this stream was created
+     */
+    public boolean isStale() {
+        return mStale || mContent.getDocumentVersion() != mVersion;
+    }
+
+    /**
+     * Get the line in Content of a character which has been read
+     *
+     * @param index Index in this stream
+     * @return Line index in Content
+     */
+    public int getLine(int index) {
+        if (index >= mSize) {
+            return mEndLine;
+        }
+        return mStartLine + findLine(index);
+    }
+
+    /**
+     * Get the character at the given index, or EOF if it is out of text
+     */
+    private int charAt(int index) {
+        if (index < 0 || index >= mSize || mStale) {
+            return IntStream.EOF;
+        }
+        if (index < mLineStart || index > mLineEnd) {
+            if (!moveToLine(index > mLineEnd ? mLineIndex + 1 : findLine(index))) {
+                return IntStream.EOF;
+            }
+            while (index > mLineEnd) {
+                if (!moveToLine(mLineIndex + 1)) {
+                    return IntStream.EOF;
+                }
+            }
+        }
+        if (index == mLineEnd) {
+            return '\n';
+        }
+        try {
+            return mLine.charAt(index - mLineStart);
+        } catch (IndexOutOfBoundsException e) {
+            // Line modified concurrently
+            mStale = true;
+            return IntStream.EOF;
+        }
+    }
+
+    /**
+     * Make the given line current line
+     *
+     * @param line Line index relative to mStartLine
+     * @return false if the text has been modified
+     */
+    private boolean moveToLine(int line) {
+        if (line == mLineIndex) {
+            return true;
+        }
+        if (mContent.getDocumentVersion() != mVersion) {
+            mStale = true;
+            return false;
+        }
+        try {
+            mLine = mContent.getLine(mStartLine + line);
+        } catch (IndexOutOfBoundsException e) {
+            mStale = true;
+            return false;
+        }
+        if (line == mReachedLines) {
+            if (mReachedLines == mLineStarts.length) {
+                mLineStarts = Arrays.copyOf(mLineStarts, mReachedLines * 2);
+            }
+            mLineStarts[mReachedLines++] = mLineEnd + 1;
+        }
+        mLineIndex = line;
+        mLineStart = mLineStarts[line];
+        mLineEnd = mLineStart + mLine.length();
+        return true;
+    }
+
+    /**
+     * Find the reached line containing the given index
+     */
+    private int findLine(int index) {
+        int left = 0, right = mReachedLines - 1;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (mLineStarts[mid] <= index) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+
+    @Override
+    public void consume() {
+        if (mIndex >= mSize) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        mIndex++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0) {
+            return 0;
+        }
+        return charAt(i > 0 ? mIndex + i - 1 : mIndex + i);
+    }
+
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return mIndex;
+    }
+
+    @Override
+    public void seek(int index) {
+        mIndex = Math.min(index, mSize);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public String getSourceName() {
+        return IntStream.UNKNOWN_SOURCE_NAME;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        final int start = Math.max(0, interval.a);
+        final int stop = Math.min(interval.b, mSize - 1);
+        if (stop < start) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(stop - start + 1);
+        for (int i = start; i <= stop; i++) {
+            final int c = charAt(i);
+            if (c == IntStream.EOF) {
+                break;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+}
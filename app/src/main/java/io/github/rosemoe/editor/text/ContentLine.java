@@ -18,10 +18,27 @@ package io.github.rosemoe.editor.text;
 import android.text.GetChars;
 import android.text.TextUtils;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A line of text in {@link Content}
+ * <p>
+ * Like compact strings in JDK, lines containing only Latin-1 characters are stored
+ * in a byte array, and lines are inflated to a char array when other characters are inserted.
+ */
 public class ContentLine implements CharSequence, GetChars {
 
+    /**
+     * Characters of a line with non-Latin-1 characters, or null
+     */
     private char[] value;
 
+    /**
+     * Characters of a Latin-1 line, or null
+     */
+    private byte[] latin1;
+
     private int length;
 
     /**
@@ -34,6 +51,12 @@ public class ContentLine implements CharSequence, GetChars {
      */
     private int width;
 
+    /**
+     * Line owner token of the Content which may modify this line in place.
+     * Lines shared with a snapshot are copied by Content before modification.
+     */
+    Object owner;
+
     public ContentLine() {
         this(true);
     }
@@ -46,13 +69,13 @@ public class ContentLine implements CharSequence, GetChars {
     private ContentLine(boolean initialize) {
         if (initialize) {
             length = 0;
-            value = new char[32];
+            latin1 = new byte[32];
         }
         id = -1;
         width = 0;
     }
 
-    static int lastIndexOf(char[] source, int sourceCount,
+    static int lastIndexOf(ContentLine source, int sourceCount,
                            char[] target, int targetCount,
                            int fromIndex) {
         /*
@@ -78,7 +101,7 @@ public class ContentLine implements CharSequence, GetChars {
 
         startSearchForLastChar:
         while (true) {
-            while (i >= min && source[i] != strLastChar) {
+            while (i >= min && source.get(i) != strLastChar) {
                 i--;
             }
             if (i < min) {
@@ -89,7 +112,7 @@ public class ContentLine implements CharSequence, GetChars {
             int k = strLastIndex - 1;
 
             while (j > start) {
-                if (source[j--] != target[k--]) {
+                if (source.get(j--) != target[k--]) {
                     i--;
                     continue startSearchForLastChar;
                 }
@@ -98,6 +121,22 @@ public class ContentLine implements CharSequence, GetChars {
         }
     }
 
+    /**
+     * Create a copy of this line, with the same id and width
+     */
+    ContentLine copy() {
+        ContentLine line = new ContentLine(false);
+        if (latin1 != null) {
+            line.latin1 = Arrays.copyOf(latin1, latin1.length);
+        } else {
+            line.value = Arrays.copyOf(value, value.length);
+        }
+        line.length = length;
+        line.id = id;
+        line.width = width;
+        return line;
+    }
+
     public int getId() {
         return id;
     }
@@ -120,7 +159,61 @@ public class ContentLine implements CharSequence, GetChars {
         }
     }
 
-    private void ensureCapacity(int capacity) {
+    /**
+     * Whether this line is stored in Latin-1
+     */
+    boolean isLatin1() {
+        return latin1 != null;
+    }
+
+    /**
+     * Get the character at index without checking it
+     */
+    private char get(int index) {
+        return latin1 != null ? (char) (latin1[index] & 0xff) : value[index];
+    }
+
+    /**
+     * Set the character at index, which must be Latin-1 if this line is Latin-1
+     */
+    private void put(int index, char c) {
+        if (latin1 != null) {
+            latin1[index] = (byte) c;
+        } else {
+            value[index] = c;
+        }
+    }
+
+    private static boolean isLatin1(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make sure the line can hold the given count of characters.
+     * If wide is true, the line is inflated to char array as well.
+     */
+    private void ensureCapacity(int capacity, boolean wide) {
+        if (latin1 != null) {
+            if (wide) {
+                char[] newValue = new char[Math.max(capacity, latin1.length)];
+                for (int i = 0; i < length; i++) {
+                    newValue[i] = (char) (latin1[i] & 0xff);
+                }
+                value = newValue;
+                latin1 = null;
+            } else if (latin1.length < capacity) {
+                int newLength = latin1.length * 2 < capacity ? capacity + 2 : latin1.length * 2;
+                latin1 = Arrays.copyOf(latin1, newLength);
+                return;
+            } else {
+                return;
+            }
+        }
         if (value.length < capacity) {
             int newLength = value.length * 2 < capacity ? capacity + 2 : value.length * 2;
             char[] newValue = new char[newLength];
@@ -129,6 +222,27 @@ public class ContentLine implements CharSequence, GetChars {
         }
     }
 
+    /**
+     * Remove spare capacity, and store the line in Latin-1 if possible.
+     * This is called for lines which are not being edited.
+     */
+    void trimToSize() {
+        if (latin1 != null) {
+            if (latin1.length != length) {
+                latin1 = Arrays.copyOf(latin1, length);
+            }
+        } else if (isLatin1(this, 0, length)) {
+            byte[] newValue = new byte[length];
+            for (int i = 0; i < length; i++) {
+                newValue[i] = (byte) value[i];
+            }
+            latin1 = newValue;
+            value = null;
+        } else if (value.length != length) {
+            value = Arrays.copyOf(value, length);
+        }
+    }
+
     /**
      * Inserts the specified {@code CharSequence} into this sequence.
      * <p>
@@ -153,8 +267,6 @@ public class ContentLine implements CharSequence, GetChars {
     public ContentLine insert(int dstOffset, CharSequence s) {
         if (s == null)
             s = "null";
-        if (s instanceof String)
-            return this.insert(dstOffset, (String) s);
         return this.insert(dstOffset, s, 0, s.length());
     }
 
@@ -213,11 +325,18 @@ public class ContentLine implements CharSequence, GetChars {
                     "start " + start + ", end " + end + ", s.length() "
                             + s.length());
         int len = end - start;
-        ensureCapacity(length + len);
-        System.arraycopy(value, dstOffset, value, dstOffset + len,
-                length - dstOffset);
-        for (int i = start; i < end; i++)
-            value[dstOffset++] = s.charAt(i);
+        ensureCapacity(length + len, latin1 != null && !isLatin1(s, start, end));
+        if (latin1 != null) {
+            System.arraycopy(latin1, dstOffset, latin1, dstOffset + len,
+                    length - dstOffset);
+            for (int i = start; i < end; i++)
+                latin1[dstOffset++] = (byte) s.charAt(i);
+        } else {
+            System.arraycopy(value, dstOffset, value, dstOffset + len,
+                    length - dstOffset);
+            for (int i = start; i < end; i++)
+                value[dstOffset++] = s.charAt(i);
+        }
         length += len;
         return this;
     }
@@ -245,16 +364,24 @@ public class ContentLine implements CharSequence, GetChars {
             throw new StringIndexOutOfBoundsException();
         int len = end - start;
         if (len > 0) {
-            System.arraycopy(value, start + len, value, start, length - end);
+            if (latin1 != null) {
+                System.arraycopy(latin1, start + len, latin1, start, length - end);
+            } else {
+                System.arraycopy(value, start + len, value, start, length - end);
+            }
             length -= len;
         }
         return this;
     }
 
     public ContentLine insert(int offset, char c) {
-        ensureCapacity(length + 1);
-        System.arraycopy(value, offset, value, offset + 1, length - offset);
-        value[offset] = c;
+        ensureCapacity(length + 1, c > 0xff);
+        if (latin1 != null) {
+            System.arraycopy(latin1, offset, latin1, offset + 1, length - offset);
+        } else {
+            System.arraycopy(value, offset, value, offset + 1, length - offset);
+        }
+        put(offset, c);
         length += 1;
         return this;
     }
@@ -267,9 +394,9 @@ public class ContentLine implements CharSequence, GetChars {
                     "start " + start + ", end " + end + ", s.length() "
                             + s.length());
         int len = end - start;
-        ensureCapacity(length + len);
+        ensureCapacity(length + len, latin1 != null && !isLatin1(s, start, end));
         for (int i = start, j = length; i < end; i++, j++)
-            value[j] = s.charAt(i);
+            put(j, s.charAt(i));
         length += len;
         return this;
     }
@@ -283,7 +410,7 @@ public class ContentLine implements CharSequence, GetChars {
     }
 
     public int lastIndexOf(String str, int fromIndex) {
-        return lastIndexOf(value, length,
+        return lastIndexOf(this, length,
                 str.toCharArray(), str.length(), fromIndex);
     }
 
@@ -295,7 +422,7 @@ public class ContentLine implements CharSequence, GetChars {
     @Override
     public char charAt(int index) {
         checkIndex(index);
-        return value[index];
+        return get(index);
     }
 
     @Override
@@ -305,10 +432,16 @@ public class ContentLine implements CharSequence, GetChars {
         if (end < start) {
             throw new StringIndexOutOfBoundsException("start is bigger than end");
         }
-        char[] newValue = new char[end - start + 16];
-        System.arraycopy(value, start, newValue, 0, end - start);
         ContentLine res = new ContentLine(false);
-        res.value = newValue;
+        if (latin1 != null) {
+            byte[] newValue = new byte[end - start + 16];
+            System.arraycopy(latin1, start, newValue, 0, end - start);
+            res.latin1 = newValue;
+        } else {
+            char[] newValue = new char[end - start + 16];
+            System.arraycopy(value, start, newValue, 0, end - start);
+            res.value = newValue;
+        }
         res.length = end - start;
         return res;
     }
@@ -317,11 +450,21 @@ public class ContentLine implements CharSequence, GetChars {
      * A quick method to append itself to a StringBuilder
      */
     public void appendTo(StringBuilder sb) {
-        sb.append(value, 0, length);
+        if (latin1 != null) {
+            sb.ensureCapacity(sb.length() + length);
+            for (int i = 0; i < length; i++) {
+                sb.append((char) (latin1[i] & 0xff));
+            }
+        } else {
+            sb.append(value, 0, length);
+        }
     }
 
     @Override
     public String toString() {
+        if (latin1 != null) {
+            return new String(latin1, 0, length, StandardCharsets.ISO_8859_1);
+        }
         return new String(value, 0, length);
     }
 
@@ -332,7 +475,13 @@ public class ContentLine implements CharSequence, GetChars {
             throw new StringIndexOutOfBoundsException(srcEnd);
         if (srcBegin > srcEnd)
             throw new StringIndexOutOfBoundsException("srcBegin > srcEnd");
-        System.arraycopy(value, srcBegin, dst, dstBegin, srcEnd - srcBegin);
+        if (latin1 != null) {
+            for (int i = srcBegin; i < srcEnd; i++) {
+                dst[dstBegin++] = (char) (latin1[i] & 0xff);
+            }
+        } else {
+            System.arraycopy(value, srcBegin, dst, dstBegin, srcEnd - srcBegin);
+        }
     }
 
 }
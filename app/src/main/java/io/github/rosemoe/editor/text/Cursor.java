@@ -30,7 +30,7 @@ import java.util.regex.Pattern;
 public final class Cursor {
 
     private final Content mContent;
-    private final CachedIndexer mIndexer;
+    private final LineOffsetIndexer mIndexer;
     private CharPosition mLeft, mRight;
     private CharPosition cache0, cache1, cache2;
     private boolean mAutoIndentEnabled;
@@ -49,7 +49,7 @@ public final class Cursor {
     public Cursor(CodeEditor editor, Content content) {
         this.editor = editor;
         mContent = content;
-        mIndexer = new CachedIndexer(content);
+        mIndexer = new LineOffsetIndexer(content);
         mLeft = new CharPosition().zero();
         mRight = new CharPosition().zero();
         mTabWidth = 4;
@@ -207,7 +207,7 @@ public final class Cursor {
      *
      * @return Using Indexer
      */
-    public CachedIndexer getIndexer() {
+    public Indexer getIndexer() {
         return mIndexer;
     }
 
@@ -0,0 +1,298 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.text;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Diagnostics of a document, sorted by their start positions.
+ * <p>
+ * Besides the sorted starts, the max end position of each prefix is kept, so diagnostics
+ * overlapping a position or range are found by a binary search and a short backward scan.
+ * Ranges are shifted on edits, so that they stay aligned with the text until new
+ * diagnostics are set.
+ * <p>
+ * Diagnostics are copied when set, and the ranges of the copies are the shifted ones.
+ * End positions are inclusive.
+ */
+public class DiagnosticsContainer {
+
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * Start positions of diagnostics as (line << 32 | column), sorted
+     */
+    private long[] mStarts = EMPTY;
+    private long[] mEnds = EMPTY;
+    /**
+     * Max of mEnds[0..i]
+     */
+    private long[] mMaxEnds = EMPTY;
+    private Diagnostic[] mDiagnostics = new Diagnostic[0];
+
+    private static long pack(int line, int column) {
+        return ((long) line << 32) | (column & 0xffffffffL);
+    }
+
+    private static int line(long position) {
+        return (int) (position >> 32);
+    }
+
+    private static int column(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Replace all diagnostics
+     *
+     * @param diagnostics New diagnostics, null for none
+     */
+    public void setDiagnostics(List<Diagnostic> diagnostics) {
+        if (diagnostics == null || diagnostics.isEmpty()) {
+            clear();
+            return;
+        }
+        final List<Diagnostic> copies = new ArrayList<>(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic != null && diagnostic.getRange() != null
+                    && diagnostic.getRange().getStart() != null && diagnostic.getRange().getEnd() != null) {
+                copies.add(copy(diagnostic));
+            }
+        }
+        Collections.sort(copies, (a, b) -> {
+            final int cmp = Long.compare(startOf(a), startOf(b));
+            return cmp != 0 ? cmp : Long.compare(endOf(a), endOf(b));
+        });
+        final int size = copies.size();
+        mStarts = new long[size];
+        mEnds = new long[size];
+        mMaxEnds = new long[size];
+        mDiagnostics = copies.toArray(new Diagnostic[size]);
+        for (int i = 0; i < size; i++) {
+            mStarts[i] = startOf(mDiagnostics[i]);
+            mEnds[i] = Math.max(mStarts[i], endOf(mDiagnostics[i]));
+        }
+        computeMaxEnds(0);
+    }
+
+    public void clear() {
+        mStarts = mEnds = mMaxEnds = EMPTY;
+        mDiagnostics = new Diagnostic[0];
+    }
+
+    public int size() {
+        return mDiagnostics.length;
+    }
+
+    public boolean isEmpty() {
+        return mDiagnostics.length == 0;
+    }
+
+    /**
+     * Find the diagnostic containing the given position.
+     * If there are several, the one starting last is returned.
+     *
+     * @return The diagnostic, or null if not found
+     */
+    public Diagnostic findDiagnosticContaining(int line, int column) {
+        final long position = pack(line, column);
+        for (int i = upperBound(position) - 1; i >= 0 && mMaxEnds[i] >= position; i--) {
+            if (mEnds[i] >= position) {
+                return mDiagnostics[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find diagnostics overlapping the given range, in the order of their starts
+     *
+     * @param dest List to add results to
+     * @return The given list
+     */
+    public List<Diagnostic> findDiagnosticsInRange(int startLine, int startColumn, int endLine, int endColumn, List<Diagnostic> dest) {
+        final long start = pack(startLine, startColumn);
+        final int first = dest.size();
+        for (int i = upperBound(pack(endLine, endColumn)) - 1; i >= 0 && mMaxEnds[i] >= start; i--) {
+            if (mEnds[i] >= start) {
+                dest.add(mDiagnostics[i]);
+            }
+        }
+        Collections.reverse(dest.subList(first, dest.size()));
+        return dest;
+    }
+
+    /**
+     * Find diagnostics overlapping the given line
+     */
+    public List<Diagnostic> findDiagnosticsContainingLine(int line) {
+        return findDiagnosticsInRange(line, 0, line, Integer.MAX_VALUE, new ArrayList<>());
+    }
+
+    /**
+     * Shift ranges after text is inserted.
+     * Diagnostics starting at the insertion point are moved, ones ending there are not extended.
+     */
+    public void shiftOnInsert(int startLine, int startColumn, int endLine, int endColumn) {
+        final int size = mStarts.length;
+        if (size == 0) {
+            return;
+        }
+        final long position = pack(startLine, startColumn);
+        final int lineDelta = endLine - startLine;
+        final int columnDelta = endColumn - startColumn;
+        final int first = lowerBound(position);
+        for (int i = first; i < size; i++) {
+            mStarts[i] = shiftOnInsert(mStarts[i], startLine, lineDelta, columnDelta);
+            mEnds[i] = shiftOnInsert(mEnds[i], startLine, lineDelta, columnDelta);
+            updateRange(i);
+        }
+        int i = first - 1;
+        for (; i >= 0 && mMaxEnds[i] > position; i--) {
+            if (mEnds[i] > position) {
+                mEnds[i] = shiftOnInsert(mEnds[i], startLine, lineDelta, columnDelta);
+                updateRange(i);
+            }
+        }
+        computeMaxEnds(i + 1);
+    }
+
+    private static long shiftOnInsert(long position, int startLine, int lineDelta, int columnDelta) {
+        final int line = line(position);
+        if (line == startLine) {
+            return pack(line + lineDelta, column(position) + columnDelta);
+        }
+        return pack(line + lineDelta, column(position));
+    }
+
+    /**
+     * Shift ranges after text is deleted.
+     * Positions inside the deleted text are moved to the start of deletion.
+     */
+    public void shiftOnDelete(int startLine, int startColumn, int endLine, int endColumn) {
+        final int size = mStarts.length;
+        if (size == 0) {
+            return;
+        }
+        final long start = pack(startLine, startColumn);
+        final long end = pack(endLine, endColumn);
+        final int first = upperBound(start);
+        for (int i = first; i < size; i++) {
+            mStarts[i] = shiftOnDelete(mStarts[i], start, end, startLine, startColumn, endLine, endColumn);
+            mEnds[i] = shiftOnDelete(mEnds[i], start, end, startLine, startColumn, endLine, endColumn);
+            updateRange(i);
+        }
+        int i = first - 1;
+        for (; i >= 0 && mMaxEnds[i] > start; i--) {
+            if (mEnds[i] > start) {
+                mEnds[i] = shiftOnDelete(mEnds[i], start, end, startLine, startColumn, endLine, endColumn);
+                updateRange(i);
+            }
+        }
+        computeMaxEnds(i + 1);
+    }
+
+    private static long shiftOnDelete(long position, long start, long end, int startLine, int startColumn, int endLine, int endColumn) {
+        if (position <= start) {
+            return position;
+        }
+        if (position <= end) {
+            return start;
+        }
+        final int line = line(position);
+        if (line == endLine) {
+            return pack(startLine, column(position) - endColumn + startColumn);
+        }
+        return pack(line - (endLine - startLine), column(position));
+    }
+
+    /**
+     * Index of the first diagnostic starting at or after the position
+     */
+    private int lowerBound(long position) {
+        int low = 0, high = mStarts.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mStarts[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index of the first diagnostic starting after the position
+     */
+    private int upperBound(long position) {
+        int low = 0, high = mStarts.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void computeMaxEnds(int from) {
+        for (int i = from; i < mEnds.length; i++) {
+            mMaxEnds[i] = i == 0 ? mEnds[i] : Math.max(mMaxEnds[i - 1], mEnds[i]);
+        }
+    }
+
+    private void updateRange(int index) {
+        final Range range = mDiagnostics[index].getRange();
+        range.setStart(new Position(line(mStarts[index]), column(mStarts[index])));
+        range.setEnd(new Position(line(mEnds[index]), column(mEnds[index])));
+    }
+
+    private static long startOf(Diagnostic diagnostic) {
+        final Position start = diagnostic.getRange().getStart();
+        return pack(start.getLine(), start.getCharacter());
+    }
+
+    private static long endOf(Diagnostic diagnostic) {
+        final Position end = diagnostic.getRange().getEnd();
+        return pack(end.getLine(), end.getCharacter());
+    }
+
+    private static Diagnostic copy(Diagnostic diagnostic) {
+        final Range range = diagnostic.getRange();
+        final Diagnostic copy = new Diagnostic();
+        copy.setRange(new Range(new Position(range.getStart().getLine(), range.getStart().getCharacter()),
+                new Position(range.getEnd().getLine(), range.getEnd().getCharacter())));
+        copy.setSeverity(diagnostic.getSeverity());
+        copy.setCode(diagnostic.getCode());
+        copy.setCodeDescription(diagnostic.getCodeDescription());
+        copy.setSource(diagnostic.getSource());
+        if (diagnostic.getMessage() != null) {
+            copy.setMessage(diagnostic.getMessage());
+        }
+        copy.setTags(diagnostic.getTags());
+        copy.setRelatedInformation(diagnostic.getRelatedInformation());
+        copy.setData(diagnostic.getData());
+        return copy;
+    }
+}
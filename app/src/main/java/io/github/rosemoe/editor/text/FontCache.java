@@ -16,60 +16,129 @@
 package io.github.rosemoe.editor.text;
 
 import android.graphics.Paint;
+import android.graphics.Typeface;
 
-import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Cache to measure text quickly
  * This is very useful when text is long
  * Use this to make editor 20x faster than before
- * It is not thread-safe
+ * <p>
+ * Widths are stored in tables shared by all caches in the process, one table for each
+ * typeface and text size, so that editors and layouts with the same font measure each
+ * character only once. When printable ASCII characters of the font have the same width,
+ * they are measured arithmetically.
+ * <p>
+ * Instances are not thread-safe, but shared tables can be filled by several threads.
  *
  * @author Rose
  */
 public class FontCache {
 
-    private final float[] cache;
+    /**
+     * Max count of shared tables, for zooming creates a table for each text size
+     */
+    private static final int MAX_TABLES = 12;
+
+    private static final Map<Key, Table> sTables = new LinkedHashMap<Key, Table>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Table> eldest) {
+            return size() > MAX_TABLES;
+        }
+    };
 
     private final char[] buffer;
 
+    private Table table;
+
     public FontCache() {
-        cache = new float[65536];
         buffer = new char[3];
     }
 
+    /**
+     * Create a cache bound to the font of the given paint
+     */
+    public FontCache(Paint p) {
+        this();
+        bind(p);
+    }
+
     private static boolean isEmoji(char ch) {
         return ch == 0xd83c || ch == 0xd83d || ch == 0xd83e;
     }
 
+    private static Table obtainTable(Paint p) {
+        final Key key = new Key(p);
+        synchronized (sTables) {
+            Table table = sTables.get(key);
+            if (table == null) {
+                table = new Table(p);
+                sTables.put(key, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Use the shared table of the font of given paint.
+     * Call this after typeface or text size of the paint is changed.
+     */
+    public void bind(Paint p) {
+        table = obtainTable(p);
+    }
+
     /**
      * Clear caches of font
+     * The cache is bound again to the paint used in next measurement.
      */
     public void clearCache() {
-        Arrays.fill(cache, 0);
+        table = null;
+    }
+
+    private Table getTable(Paint p) {
+        if (table == null) {
+            bind(p);
+        }
+        return table;
+    }
+
+    /**
+     * Whether printable ASCII characters of the font have the same width
+     */
+    public boolean isMonospace(Paint p) {
+        return getTable(p).monoWidth > 0;
+    }
+
+    /**
+     * Get the width of printable ASCII characters if the font is monospace, or zero
+     */
+    public float getMonospaceWidth(Paint p) {
+        return getTable(p).monoWidth;
     }
 
     /**
      * Measure a single character
      */
     public float measureChar(char ch, Paint p) {
-        float width = cache[(int) ch];
-        if (width == 0) {
-            buffer[0] = ch;
-            width = p.measureText(buffer, 0, 1);
-            cache[(int) ch] = width;
-        }
-        return width;
+        return getTable(p).measureChar(ch, p);
     }
 
     /*
      * Measure text
      */
     public float measureText(char[] chars, int start, int end, Paint p) {
+        final Table table = getTable(p);
+        final boolean mono = table.monoWidth > 0;
         float width = 0f;
+        int asciiCount = 0;
         for (int i = start; i < end; i++) {
             char ch = chars[i];
-            if (isEmoji(ch) && i + 1 < end) {
+            if (mono && ch >= 0x20 && ch < 0x7f) {
+                asciiCount++;
+            } else if (isEmoji(ch) && i + 1 < end) {
                 buffer[0] = ch;
                 buffer[1] = chars[++i];
                 if( i + 1 < end ){
@@ -87,20 +156,25 @@ public class FontCache {
                     width += p.measureText(buffer, 0, 2);
                 }
             } else {
-                width += measureChar(ch, p);
+                width += table.measureChar(ch, p);
             }
         }
-        return width;
+        return width + asciiCount * table.monoWidth;
     }
 
     /**
      * Measure text
      */
     public float measureText(CharSequence str, int start, int end, Paint p) {
+        final Table table = getTable(p);
+        final boolean mono = table.monoWidth > 0;
         float width = 0f;
+        int asciiCount = 0;
         for (int i = start; i < end; i++) {
             char ch = str.charAt(i);
-            if (isEmoji(ch) && i + 1 < end) {
+            if (mono && ch >= 0x20 && ch < 0x7f) {
+                asciiCount++;
+            } else if (isEmoji(ch) && i + 1 < end) {
                 buffer[0] = ch;
                 buffer[1] = str.charAt(++i);
                 if( i + 1 < end ){
@@ -119,10 +193,95 @@ public class FontCache {
                     width += p.measureText(buffer, 0, 2);
                 }
             } else {
-                width += measureChar(ch, p);
+                width += table.measureChar(ch, p);
+            }
+        }
+        return width + asciiCount * table.monoWidth;
+    }
+
+    /**
+     * Font attributes affecting widths of characters
+     */
+    private static class Key {
+
+        private final Typeface typeface;
+        private final float textSize;
+        private final float textScaleX;
+        private final float textSkewX;
+        private final float letterSpacing;
+        private final boolean fakeBold;
+
+        Key(Paint p) {
+            typeface = p.getTypeface() == null ? Typeface.DEFAULT : p.getTypeface();
+            textSize = p.getTextSize();
+            textScaleX = p.getTextScaleX();
+            textSkewX = p.getTextSkewX();
+            letterSpacing = p.getLetterSpacing();
+            fakeBold = p.isFakeBoldText();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return textSize == key.textSize && textScaleX == key.textScaleX && textSkewX == key.textSkewX
+                    && letterSpacing == key.letterSpacing && fakeBold == key.fakeBold && typeface.equals(key.typeface);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(typeface, textSize, textScaleX, textSkewX, letterSpacing, fakeBold);
+        }
+    }
+
+    /**
+     * Widths of characters in the BMP, in pages of 256 characters allocated on demand.
+     * Races between threads only make a character measured more than once.
+     */
+    private static class Table {
+
+        private final float[][] pages = new float[256][];
+
+        /**
+         * Width of printable ASCII characters, or zero if they have different widths
+         */
+        private final float monoWidth;
+
+        Table(Paint p) {
+            final float[] page = new float[256];
+            final char[] buffer = new char[1];
+            float mono = -1;
+            for (char ch = 0x20; ch < 0x7f; ch++) {
+                buffer[0] = ch;
+                page[ch] = p.measureText(buffer, 0, 1);
+                if (mono == -1) {
+                    mono = page[ch];
+                } else if (mono != page[ch]) {
+                    mono = 0;
+                }
+            }
+            pages[0] = page;
+            monoWidth = Math.max(0, mono);
+        }
+
+        float measureChar(char ch, Paint p) {
+            float[] page = pages[ch >>> 8];
+            if (page == null) {
+                page = new float[256];
+                pages[ch >>> 8] = page;
+            }
+            float width = page[ch & 0xff];
+            if (width == 0) {
+                width = p.measureText(String.valueOf(ch));
+                page[ch & 0xff] = width;
             }
+            return width;
         }
-        return width;
     }
 
 }
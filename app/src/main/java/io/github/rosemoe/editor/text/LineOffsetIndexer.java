@@ -0,0 +1,158 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.text;
+
+import io.github.rosemoe.editor.struct.BTreeList;
+
+/**
+ * Indexer Impl for Content
+ * It keeps a tree weighted by (line length + 1), so that converting index to (line,column),
+ * converting (line,column) to index, and adding or removing lines all cost O(log n) time.
+ * <p>
+ * The tree is built in O(n) on first query, and updated on changes after that.
+ */
+public class LineOffsetIndexer implements Indexer, ContentListener {
+
+    private final Content mContent;
+
+    /**
+     * An element for each line, whose weight is (line length + 1)
+     */
+    private BTreeList<Object> mLines;
+    private boolean mInvalid;
+
+    /**
+     * Create a new LineOffsetIndexer for the given content
+     *
+     * @param content Content to manage
+     */
+    public LineOffsetIndexer(Content content) {
+        mContent = content;
+        mInvalid = true;
+    }
+
+    /**
+     * Create a new LineOffsetIndexer for a snapshot, which shares the tree of the indexer
+     * of its source
+     *
+     * @param content Snapshot to manage
+     * @param source  Indexer of the source of snapshot
+     */
+    LineOffsetIndexer(Content content, LineOffsetIndexer source) {
+        mContent = content;
+        mInvalid = source.mInvalid;
+        if (!mInvalid) {
+            mLines = source.mLines.copy();
+        }
+    }
+
+    /**
+     * Build the tree from content if needed
+     */
+    private void ensureTree() {
+        final int lineCount = mContent.getLineCount();
+        if (!mInvalid && lineCount == mLines.size()) {
+            return;
+        }
+        final BTreeList<Object> lines = new BTreeList<>();
+        for (int i = 0; i < lineCount; i++) {
+            lines.add(i, null, mContent.getColumnCount(i) + 1);
+        }
+        mLines = lines;
+        mInvalid = false;
+    }
+
+    /**
+     * Update the length of given line
+     */
+    private void updateLine(int line) {
+        mLines.setWeight(line, mContent.getColumnCount(line) + 1);
+    }
+
+    @Override
+    public int getCharIndex(int line, int column) {
+        if (!mContent.checkLineAndColumn(line, column, true)) {
+            return 0;
+        }
+        ensureTree();
+        return mLines.getWeightBefore(line) + column;
+    }
+
+    @Override
+    public int getCharLine(int index) {
+        return getCharPosition(index).line;
+    }
+
+    @Override
+    public int getCharColumn(int index) {
+        return getCharPosition(index).column;
+    }
+
+    @Override
+    public CharPosition getCharPosition(int index) {
+        mContent.checkIndex(index);
+        ensureTree();
+        final int line = mLines.findByWeight(index);
+        CharPosition pos = new CharPosition();
+        pos.index = index;
+        pos.line = line;
+        pos.column = index - mLines.getWeightBefore(line);
+        return pos;
+    }
+
+    @Override
+    public CharPosition getCharPosition(int line, int column) {
+        if (!mContent.checkLineAndColumn(line, column, true)) {
+            return new CharPosition().zero();
+        }
+        ensureTree();
+        CharPosition pos = new CharPosition();
+        pos.index = mLines.getWeightBefore(line) + column;
+        pos.line = line;
+        pos.column = column;
+        return pos;
+    }
+
+    @Override
+    public void beforeReplace(Content content) {
+        //Do nothing
+    }
+
+    @Override
+    public void afterInsert(Content content, int startLine, int startColumn, int endLine, int endColumn,
+                            CharSequence insertedContent) {
+        if (mInvalid) {
+            return;
+        }
+        updateLine(startLine);
+        for (int line = startLine + 1; line <= endLine; line++) {
+            mLines.add(line, null, mContent.getColumnCount(line) + 1);
+        }
+    }
+
+    @Override
+    public void afterDelete(Content content, int startLine, int startColumn, int endLine, int endColumn,
+                            CharSequence deletedContent) {
+        if (mInvalid) {
+            return;
+        }
+        for (int line = startLine + 1; line <= endLine; line++) {
+            mLines.remove(startLine + 1);
+        }
+        updateLine(startLine);
+    }
+
+}
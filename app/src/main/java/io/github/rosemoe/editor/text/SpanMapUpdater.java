@@ -15,9 +15,9 @@
  */
 package io.github.rosemoe.editor.text;
 
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.struct.SpanLine;
 import io.github.rosemoe.editor.widget.EditorColorScheme;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -27,172 +27,134 @@ import java.util.List;
  */
 public class SpanMapUpdater {
 
-    public static void shiftSpansOnMultiLineDelete(List<List<Span>> map, int startLine, int startColumn, int endLine, int endColumn) {
+    public static void shiftSpansOnMultiLineDelete(List<SpanLine> map, int startLine, int startColumn, int endLine, int endColumn) {
         
         if (map == null || map.isEmpty()) {
             return;
         }
         
-        int lineCount = endLine - startLine - 1;
         // Remove unrelated lines
-        while (lineCount > 0) {
-            Span.recycleAll(map.remove(startLine + 1));
-            lineCount--;
+        if (endLine - startLine > 1) {
+            map.subList(startLine + 1, endLine).clear();
         }
         // Clean up start line
-        List<Span> startLineSpans = emptyIfNull(map.get(startLine));
-        int index = startLineSpans.size() - 1;
-        while (index > 0) {
-            if (startLineSpans.get(index).column >= startColumn) {
-                startLineSpans.remove(index).recycle();
+        SpanLine startLineSpans = map.get(startLine);
+        if (startLineSpans != null) {
+            int index = startLineSpans.size();
+            while (index > 1 && startLineSpans.getColumn(index - 1) >= startColumn) {
                 index--;
-            } else {
-                break;
             }
+            startLineSpans.removeRange(index, startLineSpans.size());
         }
         // Shift end line
-        List<Span> endLineSpans = emptyIfNull(map.get(startLine + 1));
-        while (endLineSpans.size() > 1) {
-            Span first = endLineSpans.get(0);
-            if (first.column >= endColumn) {
+        SpanLine endLineSpans = map.get(startLine + 1);
+        if (endLineSpans == null) {
+            return;
+        }
+        int removeCount = 0;
+        while (endLineSpans.size() - removeCount > 1) {
+            if (endLineSpans.getColumn(removeCount) >= endColumn || endLineSpans.getColumn(removeCount + 1) > endColumn) {
                 break;
-            } else {
-                int spanEnd = endLineSpans.get(1).column;
-                if (spanEnd <= endColumn) {
-                    endLineSpans.remove(first);
-                    first.recycle();
-                } else {
-                    break;
-                }
             }
+            removeCount++;
         }
+        endLineSpans.removeRange(0, removeCount);
         for (int i = 0; i < endLineSpans.size(); i++) {
-            Span span = endLineSpans.get(i);
-            if (span.column < endColumn) {
-                span.column = 0;
-            } else {
-                span.column -= endColumn;
-            }
+            endLineSpans.setColumn(i, Math.max(0, endLineSpans.getColumn(i) - endColumn));
         }
     }
 
-    public static void shiftSpansOnSingleLineDelete(List<List<Span>> map, int line, int startCol, int endCol) {
+    public static void shiftSpansOnSingleLineDelete(List<SpanLine> map, int line, int startCol, int endCol) {
         if (map == null || map.isEmpty()) {
             return;
         }
-        List<Span> spanList = emptyIfNull(map.get(line));
-        int startIndex = findSpanIndexFor(spanList, 0, startCol);
+        SpanLine spanList = map.get(line);
+        if (spanList == null) {
+            return;
+        }
+        int startIndex = spanList.findIndexFor(0, startCol);
         if (startIndex == -1) {
             //No span is to be updated
             return;
         }
-        int endIndex = findSpanIndexFor(spanList, startIndex, endCol);
+        int endIndex = spanList.findIndexFor(startIndex, endCol);
         if (endIndex == -1) {
             endIndex = spanList.size();
         }
         // Remove spans inside delete text
-        int removeCount = endIndex - startIndex;
-        for (int i = 0; i < removeCount; i++) {
-            spanList.remove(startIndex).recycle();
-        }
+        spanList.removeRange(startIndex, endIndex);
         // Shift spans
-        int delta = endCol - startCol;
-        while (startIndex < spanList.size()) {
-            spanList.get(startIndex).column -= delta;
-            startIndex++;
-        }
+        spanList.shiftColumns(startIndex, startCol - endCol);
         // Ensure there is span
-        if (spanList.isEmpty() || spanList.get(0).column != 0) {
-            spanList.add(0, Span.obtain(line, 0, EditorColorScheme.TEXT_NORMAL));
+        if (spanList.isEmpty() || spanList.getColumn(0) != 0) {
+            spanList.insert(0, 0, EditorColorScheme.TEXT_NORMAL);
         }
         // Remove spans with length 0
         for (int i = 0; i + 1 < spanList.size(); i++) {
-            if (spanList.get(i).column >= spanList.get(i + 1).column) {
-                spanList.remove(i).recycle();
+            if (spanList.getColumn(i) >= spanList.getColumn(i + 1)) {
+                spanList.remove(i);
                 i--;
             }
         }
     }
 
-    public static void shiftSpansOnSingleLineInsert(List<List<Span>> map, int line, int startCol, int endCol) {
+    public static void shiftSpansOnSingleLineInsert(List<SpanLine> map, int line, int startCol, int endCol) {
         if (map == null || map.isEmpty()) {
             return;
         }
-        List<Span> spanList = emptyIfNull( map.get(line));
-        int index = findSpanIndexFor(spanList, 0, startCol);
+        SpanLine spanList = map.get(line);
+        if (spanList == null) {
+            return;
+        }
+        int index = spanList.findIndexFor(0, startCol);
         if (index == -1) {
             return;
         }
-        int originIndex = index;
         // Shift spans after insert position
-        int delta = endCol - startCol;
-        while (index < spanList.size()) {
-            spanList.get(index++).column += delta;
-        }
+        spanList.shiftColumns(index, endCol - startCol);
         // Add extra span for line start
-        if (originIndex == 0) {
-            Span first = spanList.get(0);
-            if (first.colorId == EditorColorScheme.TEXT_NORMAL && first.underlineColor == 0) {
-                first.column = 0;
+        if (index == 0) {
+            if (spanList.getColorId(0) == EditorColorScheme.TEXT_NORMAL && spanList.getUnderlineColor(0) == 0) {
+                spanList.setColumn(0, 0);
             } else {
-                spanList.add(0, Span.obtain(line, 0, EditorColorScheme.TEXT_NORMAL));
+                spanList.insert(0, 0, EditorColorScheme.TEXT_NORMAL);
             }
         }
     }
 
-    public static void shiftSpansOnMultiLineInsert(List<List<Span>> map, int startLine, int startColumn, int endLine, int endColumn) {
+    public static void shiftSpansOnMultiLineInsert(List<SpanLine> map, int startLine, int startColumn, int endLine, int endColumn) {
+        SpanLine startLineSpans = map.get(startLine);
+        if (startLineSpans == null) {
+            startLineSpans = new SpanLine(EditorColorScheme.TEXT_NORMAL);
+            map.set(startLine, startLineSpans);
+        }
         // Find extended span
-        List<Span> startLineSpans = emptyIfNull( map.get(startLine));
-        int extendedSpanIndex = findSpanIndexFor(startLineSpans, 0, startColumn);
+        int extendedSpanIndex = startLineSpans.findIndexFor(0, startColumn);
         if (extendedSpanIndex == -1) {
             extendedSpanIndex = startLineSpans.size() - 1;
         }
-        if (startLineSpans.get(extendedSpanIndex).column > startColumn) {
+        if (extendedSpanIndex >= 0 && startLineSpans.getColumn(extendedSpanIndex) > startColumn) {
             extendedSpanIndex--;
         }
-        Span extendedSpan;
-        if (extendedSpanIndex < 0 || extendedSpanIndex >= startLineSpans.size()) {
-            extendedSpan = Span.obtain(startLine, 0, EditorColorScheme.TEXT_NORMAL);
-        } else {
-            extendedSpan = startLineSpans.get(extendedSpanIndex);
-        }
         // Create map link for new lines
-        for (int i = 0; i < endLine - startLine; i++) {
-            List<Span> list = new ArrayList<>();
-            list.add(extendedSpan.copy().setColumn(0));
-            map.add(startLine + 1, list);
+        final SpanLine[] newLines = new SpanLine[endLine - startLine];
+        for (int i = 0; i < newLines.length; i++) {
+            newLines[i] = extendedSpanIndex < 0 ? new SpanLine(EditorColorScheme.TEXT_NORMAL) : startLineSpans.extend(extendedSpanIndex);
         }
+        map.addAll(startLine + 1, Arrays.asList(newLines));
         // Add original spans to new line
-        List<Span> endLineSpans = emptyIfNull(map.get(endLine));
-        if (endColumn == 0 && extendedSpanIndex + 1 < startLineSpans.size()) {
+        SpanLine endLineSpans = map.get(endLine);
+        final int moveStart = extendedSpanIndex + 1;
+        if (endColumn == 0 && moveStart < startLineSpans.size()) {
             endLineSpans.clear();
         }
-        int delta = Integer.MIN_VALUE;
-        while (extendedSpanIndex + 1 < startLineSpans.size()) {
-            Span span = startLineSpans.remove(extendedSpanIndex + 1);
-            if (delta == Integer.MIN_VALUE) {
-                delta = span.column;
+        if (moveStart < startLineSpans.size()) {
+            final int delta = startLineSpans.getColumn(moveStart);
+            for (int i = moveStart; i < startLineSpans.size(); i++) {
+                endLineSpans.addFrom(startLineSpans, i, startLineSpans.getColumn(i) - delta + endColumn);
             }
-            endLineSpans.add(span.setColumn(span.column - delta + endColumn));
+            startLineSpans.removeRange(moveStart, startLineSpans.size());
         }
     }
 
-    private static int findSpanIndexFor(List<Span> spans, int initialPosition, int targetCol) {
-        spans = emptyIfNull(spans);
-        for (int i = initialPosition; i < spans.size(); i++) {
-            if (spans.get(i).column >= targetCol) {
-                return i;
-            }
-        }
-        return -1;
-    }
-    
-    private static <T> List<T> emptyIfNull (List<T> original) {
-        if (original == null) {
-            original = new ArrayList<T>();
-        }
-        
-        return original;
-    }
-
 }
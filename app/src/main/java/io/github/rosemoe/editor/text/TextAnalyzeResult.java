@@ -15,14 +15,19 @@
  */
 package io.github.rosemoe.editor.text;
 
-import io.github.rosemoe.editor.struct.BlockLine;
+import io.github.rosemoe.editor.struct.BTreeList;
+import io.github.rosemoe.editor.struct.BlockTree;
+import io.github.rosemoe.editor.struct.LexerCheckpoint;
 import io.github.rosemoe.editor.struct.NavigationItem;
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.struct.SpanLine;
+import io.github.rosemoe.editor.util.VarInts;
 import io.github.rosemoe.editor.widget.EditorColorScheme;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
 
 /**
@@ -30,52 +35,99 @@ import org.eclipse.lsp4j.Range;
  */
 public class TextAnalyzeResult {
 
-    protected final List<BlockLine> mBlocks;
-    protected final List<List<Span>> mSpanMap;
+    protected BlockTree mBlockTree = BlockTree.EMPTY;
+    protected LineValues<SpanLine> mSpanMap;
 	
     public Object mExtra;
     protected List<NavigationItem> mLabels;
-    protected Span mLast;
-    protected int mSuppressSwitch = Integer.MAX_VALUE;
+    // Line and index of the span last committed
+    protected SpanLine mLastLine;
+    protected int mLastIndex;
+    protected LineValues<LexerCheckpoint> mCheckpoints;
     
     private boolean determined = false;
     
-    private final Map<Integer, List<Range>> stringMap = new HashMap<>();
-    private final Map<Integer, List<Range>> commentMap = new HashMap<>();
+    // Whether this result only has spans of some lines, see createPartial() and skipTo()
+    boolean mPartial = false;
+    
+    // Lines of the previous result reused by this one, see reuseBefore() and reuseFrom()
+    int mReusedPrefixEnd = -1;
+    int mReusedSuffixStart = -1;
+    // Block tree of the previous result and count of lines inserted since it, used by computeBlocks()
+    private BlockTree mPreviousBlockTree;
+    private int mLineDelta;
+    
+    private LineValues<LineRanges> mStringRanges = new LineValues<>();
+    private LineValues<LineRanges> mCommentRanges = new LineValues<>();
     
     /**
      * Create a new result
      */
     public TextAnalyzeResult() {
-        mLast = null;
-        mSpanMap = new ArrayList<>(2048);
-        mBlocks = new ArrayList<>(1024);
+        mLastLine = null;
+        mSpanMap = new LineValues<>();
     }
     
-    public Map<Integer, List<Range>> getStringMap() {
-        return stringMap;
+    /**
+     * Get ranges of string literals starting on the given line
+     *
+     * @return The ranges, or null if there is none
+     */
+    public List<Range> getStringRanges(int line) {
+        return getRanges(mStringRanges, line);
     }
     
-    public Map<Integer, List<Range>> getCommentMap() {
-        return commentMap;
+    /**
+     * Get ranges of comments starting on the given line
+     *
+     * @return The ranges, or null if there is none
+     */
+    public List<Range> getCommentRanges(int line) {
+        return getRanges(mCommentRanges, line);
     }
     
+    /**
+     * Add range of a string literal, which starts on the given line
+     */
     public void addStringRange(int line, Range range) {
-        List<Range> ranges = stringMap.get(line);
-        if(ranges == null) {
-            ranges = new ArrayList<>();
-        }
-        ranges.add(range);
-        stringMap.put(line, ranges);
+        addRange(mStringRanges, line, range);
     }
     
+    /**
+     * Add range of a comment, which starts on the given line
+     */
     public void addCommentRange (int line, Range range) {
-        List<Range> ranges = commentMap.get(line);
-        if(ranges == null) {
-            ranges = new ArrayList<>();
+        addRange(mCommentRanges, line, range);
+    }
+    
+    private static void addRange(LineValues<LineRanges> values, int line, Range range) {
+        values.extendTo(line + 1);
+        LineRanges ranges = values.get(line);
+        if (ranges == null) {
+            ranges = new LineRanges(line);
+            values.set(line, ranges);
         }
-        ranges.add(range);
-        commentMap.put(line, ranges);
+        ranges.ranges.add(range);
+    }
+    
+    private static List<Range> getRanges(LineValues<LineRanges> values, int line) {
+        final LineRanges ranges = line < 0 ? null : values.get(line);
+        if (ranges == null) {
+            return null;
+        }
+        final int lineDelta = line - ranges.line;
+        if (lineDelta == 0) {
+            return ranges.ranges;
+        }
+        // Ranges are reused from a result before lines were inserted or deleted above them
+        final List<Range> shifted = new ArrayList<>(ranges.ranges.size());
+        for (Range range : ranges.ranges) {
+            final Position start = range.getStart();
+            final Position end = range.getEnd();
+            shifted.add(new Range(new Position(start.getLine() + lineDelta, start.getCharacter()),
+                    new Position(end.getLine() + lineDelta, end.getCharacter())));
+        }
+        return shifted;
     }
 	
     /**
@@ -84,13 +136,12 @@ public class TextAnalyzeResult {
      * @param spanLine Line
      * @param column   Column
      * @param colorId  Type
-     * @return The span that was added
      */
-    public Span addIfNeeded(int spanLine, int column, int colorId) {
-        if (mLast != null && mLast.colorId == colorId) {
-            return mLast;
+    public void addIfNeeded(int spanLine, int column, int colorId) {
+        if (getLastColor() == colorId) {
+            return;
         }
-        return add(spanLine, Span.obtain(spanLine, column, colorId));
+        add(spanLine, column, colorId);
     }
 
     /**
@@ -99,34 +150,44 @@ public class TextAnalyzeResult {
      * if two spans are on the same line, you must add them in order by their column
      *
      * @param spanLine The line position of span
-     * @param span     The span
-     * @return The span that was added
+     * @param column   Start column of span
+     * @param colorId  Type of span
      */
-    public Span add(int spanLine, Span span) {
+    public void add(int spanLine, int column, int colorId) {
         int mapLine = mSpanMap.size() - 1;
-        if (spanLine == mapLine) {
-            mSpanMap.get(spanLine).add(span);
-        } else if (spanLine > mapLine) {
-            Span extendedSpan = mLast;
-            if (extendedSpan == null) {
-                extendedSpan = Span.obtain(spanLine, 0, EditorColorScheme.TEXT_NORMAL);
-            }
-            while (mapLine < spanLine) {
-                List<Span> lineSpans = new ArrayList<>();
-                lineSpans.add(extendedSpan.copy().setColumn(0));
-                mSpanMap.add(lineSpans);
-                mapLine++;
+        if (spanLine > mapLine) {
+            extendTo(spanLine);
+            if (column == 0) {
+                mSpanMap.get(spanLine).clear();
             }
-            List<Span> lineSpans = mSpanMap.get(spanLine);
-            if (span.column == 0) {
-                lineSpans.clear();
-            }
-            lineSpans.add(span);
-        } else {
+        } else if (spanLine < mapLine) {
             throw new IllegalStateException("Invalid position");
         }
-        mLast = span;
-        return span;
+        final SpanLine line = mSpanMap.get(spanLine);
+        line.add(column, colorId);
+        mLastLine = line;
+        mLastIndex = line.size() - 1;
+    }
+
+    /**
+     * Set underline of the span last committed
+     *
+     * @param color  Color of underline (not color id of EditorColorScheme), zero for no underline
+     * @param height Height of underline, relative to row height
+     */
+    public void setUnderline(int color, float height) {
+        if (mLastLine != null) {
+            mLastLine.setUnderline(mLastIndex, color, height);
+        }
+    }
+
+    /**
+     * Get color id of the span last committed
+     *
+     * @return Color id, or -1 if there is no span
+     */
+    public int getLastColor() {
+        return mLastLine == null ? -1 : mLastLine.getColorId(mLastIndex);
     }
 
     /**
@@ -135,56 +196,270 @@ public class TextAnalyzeResult {
      * @param line The line is the line last of text
      */
     public void determine(int line) {
-        int mapLine = mSpanMap.size() - 1;
-        Span extendedSpan = mLast;
-        if (mLast == null) {
-            extendedSpan = Span.obtain(line, 0, EditorColorScheme.TEXT_NORMAL);
+        extendTo(line);
+        // Rest of previous result is not reused
+        mSpanMap.removePending();
+        if (mCheckpoints != null) {
+            mCheckpoints.extendTo(line + 1);
+            mCheckpoints.removePending();
+        }
+        mStringRanges.removePending();
+        mCommentRanges.removePending();
+        determined = true;
+    }
+
+    /**
+     * Whether this result is published while analysis is still running.
+     * Spans of some lines are missing, and it has no code blocks.
+     */
+    public boolean isPartial() {
+        return mPartial;
+    }
+
+    /**
+     * Create a partial result with the spans of lines before the given line.
+     * The lines are shared with this result, so they must not be modified later.
+     *
+     * @param line Lines before it are complete
+     * @return The partial result
+     */
+    TextAnalyzeResult createPartial(int line) {
+        final TextAnalyzeResult partial = new TextAnalyzeResult();
+        partial.mSpanMap = mSpanMap.copy();
+        // Lines from the line are still being analyzed
+        partial.mSpanMap.truncate(line);
+        partial.mPartial = true;
+        return partial;
+    }
+
+    /**
+     * Create a copy of this result to be read on another thread, in O(1) time.
+     * Lists share their nodes with this result until either one modifies them, while
+     * spans of lines are shared, so lines must be copied before their spans are shifted.
+     *
+     * @return The copy
+     */
+    TextAnalyzeResult snapshot() {
+        final TextAnalyzeResult copy = new TextAnalyzeResult();
+        copy.mSpanMap = mSpanMap.copy();
+        if (mCheckpoints != null) {
+            copy.mCheckpoints = mCheckpoints.copy();
         }
+        copy.mStringRanges = mStringRanges.copy();
+        copy.mCommentRanges = mCommentRanges.copy();
+        copy.mBlockTree = mBlockTree;
+        copy.mPartial = mPartial;
+        return copy;
+    }
+
+    /**
+     * Leave lines before the given line without spans, so that spans can be added from the line.
+     * This must be called before anything is added to this result, and makes this result partial.
+     *
+     * @param line The first line to add spans
+     */
+    public void skipTo(int line) {
+        mSpanMap.extendTo(line);
+        mPartial = true;
+    }
+
+    /**
+     * Extend the last span to the lines till the given line
+     */
+    private void extendTo(int line) {
+        int mapLine = mSpanMap.size() - 1;
         while (mapLine < line) {
-            List<Span> lineSpans = new ArrayList<>();
-            lineSpans.add(extendedSpan.copy().setColumn(0));
-            mSpanMap.add(lineSpans);
+            mSpanMap.add(mLastLine == null ? new SpanLine(EditorColorScheme.TEXT_NORMAL) : mLastLine.extend(mLastIndex));
             mapLine++;
         }
-        determined = true;
     }
 
     /**
-     * Get a new BlockLine object
-     * <strong>It fields maybe not initialized with zero</strong>
+     * Get lexer checkpoints of lines. The list is null if the analyzer does not record them.
+     * A line has no checkpoint (null) if no token starts on it.
+     */
+    public List<LexerCheckpoint> getCheckpoints() {
+        return mCheckpoints == null ? null : mCheckpoints.mList;
+    }
+
+    /**
+     * Save checkpoint for the given line.
+     * Lines skipped since the last checkpoint are saved without checkpoint.
+     *
+     * @param line       The line of checkpoint
+     * @param checkpoint The checkpoint
+     */
+    public void addCheckpoint(int line, LexerCheckpoint checkpoint) {
+        if (mCheckpoints == null) {
+            mCheckpoints = new LineValues<>();
+        }
+        mCheckpoints.extendTo(line);
+        mCheckpoints.add(checkpoint);
+    }
+
+    /**
+     * Add a bracket which is used to compute code blocks
+     *
+     * @param line   Line of bracket
+     * @param column Column of bracket
+     * @param open   Whether it is an opening bracket
+     * @see #computeBlocks()
+     */
+    public void addBracket(int line, int column, boolean open) {
+        if (mCheckpoints != null && line < mCheckpoints.size()) {
+            final LexerCheckpoint checkpoint = mCheckpoints.get(line);
+            if (checkpoint != null) {
+                checkpoint.addBracket(column, open);
+            }
+        }
+    }
+
+    /**
+     * Compute code blocks from the brackets in checkpoints.
+     * If lines of previous result are reused, its blocks outside the changed lines are reused as well.
+     */
+    public void computeBlocks() {
+        if (mCheckpoints == null) {
+            return;
+        }
+        if (mPreviousBlockTree != null) {
+            mBlockTree = BlockTree.build(mCheckpoints.mList, mPreviousBlockTree, mReusedPrefixEnd, mReusedSuffixStart, mLineDelta);
+            mPreviousBlockTree = null;
+        } else {
+            mBlockTree = BlockTree.build(mCheckpoints.mList, null, 0, -1, 0);
+        }
+    }
+
+    /**
+     * Reuse spans and checkpoints of previous result before the given position.
+     * This must be called before anything is added to this result.
+     * The lines before the position must not have been modified since the previous
+     * result was created.
+     * <p>
+     * Lists of previous result are shared instead of copied. Its values from the line are kept
+     * after the values added to this result, until {@link #reuseFrom(int, int)} or
+     * {@link #determine(int)} removes those of changed lines.
      *
-     * @return An idle BlockLine
+     * @param previous The previous result, whose span map matches current text
+     * @param line     Line of position
+     * @param column   Column of position
      */
-    public BlockLine obtainNewBlock() {
-        return ObjectAllocator.obtainBlockLine();
+    public void reuseBefore(TextAnalyzeResult previous, int line, int column) {
+        mSpanMap = previous.mSpanMap.reuseBefore(line);
+        if (line > 0) {
+            final SpanLine lastLine = mSpanMap.get(line - 1);
+            if (!lastLine.isEmpty()) {
+                mLastLine = lastLine;
+                mLastIndex = lastLine.size() - 1;
+            }
+        }
+        if (column > 0) {
+            // Spans on the line are shared with previous result, so copy them
+            final SpanLine spans = previous.mSpanMap.get(line);
+            int count = spans.findIndexFor(0, column);
+            if (count == -1) {
+                count = spans.size();
+            }
+            if (count > 0) {
+                final SpanLine lineSpans = spans.copy(count);
+                mSpanMap.add(lineSpans);
+                mLastLine = lineSpans;
+                mLastIndex = count - 1;
+            }
+        }
+        mCheckpoints = previous.mCheckpoints.reuseBefore(line);
+        mStringRanges = reuseRangesBefore(previous.mStringRanges, line, column);
+        mCommentRanges = reuseRangesBefore(previous.mCommentRanges, line, column);
+        mReusedPrefixEnd = line;
+        mPreviousBlockTree = previous.isPartial() ? null : previous.mBlockTree;
     }
 
     /**
-     * Add a new code block info
+     * Reuse spans and checkpoints of previous result from the given line to the end.
+     * This must be called after the text before the line is analyzed.
      *
-     * @param block Info of code block
+     * @param line      The line to reuse from
+     * @param lineDelta Count of lines inserted into text since checkpoints and ranges of previous result were created
+     * @see #reuseBefore(TextAnalyzeResult, int, int)
      */
-    public void addBlockLine(BlockLine block) {
-        mBlocks.add(block);
+    public void reuseFrom(int line, int lineDelta) {
+        extendTo(line - 1);
+        // Span map of previous result matches current text, while others do not
+        mSpanMap.reusePending(line, line);
+        mCheckpoints.reusePending(line, line - lineDelta);
+        mStringRanges.reusePending(line, line - lineDelta);
+        mCommentRanges.reusePending(line, line - lineDelta);
+        mReusedSuffixStart = line;
+        mLineDelta = lineDelta;
+        determined = true;
+    }
+
+    private static LineValues<LineRanges> reuseRangesBefore(LineValues<LineRanges> src, int line, int column) {
+        final LineValues<LineRanges> values = src.reuseBefore(line);
+        final LineRanges ranges = column > 0 ? src.get(line) : null;
+        if (ranges != null) {
+            final LineRanges kept = new LineRanges(ranges.line);
+            for (Range range : ranges.ranges) {
+                if (range.getStart().getCharacter() < column) {
+                    kept.ranges.add(range);
+                }
+            }
+            if (!kept.ranges.isEmpty()) {
+                values.extendTo(line);
+                values.add(kept);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get code blocks and bracket pairs
+     */
+    public BlockTree getBlockTree() {
+        return mBlockTree;
     }
 
     /**
-     * Get list of code blocks
+     * Write spans and code blocks of this result, so that they can be shown before the same
+     * text is analyzed again. Checkpoints, string and comment ranges and navigation are not written.
      *
-     * @return code blocks
+     * @see #readFrom(DataInput)
      */
-    public List<BlockLine> getBlocks() {
-        return mBlocks;
+    public void writeTo(DataOutput out) throws IOException {
+        if (mPartial) {
+            throw new IllegalStateException("Partial result can not be written");
+        }
+        VarInts.write(out, mSpanMap.size());
+        for (SpanLine line : mSpanMap.mList) {
+            line.writeTo(out);
+        }
+        mBlockTree.writeTo(out);
+    }
+
+    /**
+     * Read a result written by {@link #writeTo(DataOutput)}.
+     * It has no checkpoints, so the next analysis of it is a full one.
+     */
+    public static TextAnalyzeResult readFrom(DataInput in) throws IOException {
+        final int lineCount = VarInts.read(in);
+        if (lineCount < 0) {
+            throw new IOException("Invalid line count " + lineCount);
+        }
+        final TextAnalyzeResult result = new TextAnalyzeResult();
+        for (int i = 0; i < lineCount; i++) {
+            result.mSpanMap.add(SpanLine.readFrom(in));
+        }
+        result.mBlockTree = BlockTree.readFrom(in);
+        result.determined = true;
+        return result;
     }
 
     /**
      * Ensure the list not empty
      */
     public void addNormalIfNull() {
-        if (mSpanMap.isEmpty()) {
-            List<Span> spanList = new ArrayList<>();
-            spanList.add(Span.obtain(0, 0, EditorColorScheme.TEXT_NORMAL));
-            mSpanMap.add(spanList);
+        if (mSpanMap.size() == 0) {
+            mSpanMap.add(new SpanLine(EditorColorScheme.TEXT_NORMAL));
         }
     }
 
@@ -207,39 +482,137 @@ public class TextAnalyzeResult {
     }
 
     /**
-     * Returns suppress switch
-     *
-     * @return suppress switch
-     * @see TextAnalyzeResult#setSuppressSwitch(int)
+     * Get span map
      */
-    public int getSuppressSwitch() {
-        return mSuppressSwitch;
+    public List<SpanLine> getSpanMap() {
+        return mSpanMap.mList;
     }
 
     /**
-     * Set suppress switch for editor
-     * What is 'suppress switch' ?:
-     * Suppress switch is a switch size for code block line drawing
-     * and for the process to find out which code block the cursor is in.
-     * Because the code blocks are not saved by the order of both start line and
-     * end line,we are unable to know exactly when we should stop the process.
-     * So without a suppress switch,it will cost a large of time to search code
-     * blocks.So I added this switch.
-     * A suppress switch is the code block count in the first layer code block
-     * (as well as its sub code blocks).
-     * If you are unsure,do not set it.
-     * The default value if Integer.MAX_VALUE
-     *
-     * @param suppressSwitch Suppress switch
+     * Ranges starting on a line. They are reused by later results after lines are inserted or
+     * deleted above them, so their positions are shifted when they are got.
      */
-    public void setSuppressSwitch(int suppressSwitch) {
-        mSuppressSwitch = suppressSwitch;
+    private static class LineRanges {
+
+        // Line in positions of the ranges
+        final int line;
+        final List<Range> ranges = new ArrayList<>();
+
+        LineRanges(int line) {
+            this.line = line;
+        }
     }
 
     /**
-     * Get span map
+     * Values of lines, stored in a {@link BTreeList} so that results share them in O(1) time.
+     * <p>
+     * When lines of previous result are reused, its values from the first analyzed line are kept
+     * at the end as pending values, and values of analyzed lines are inserted before them. When the
+     * analysis reaches unchanged lines, only the pending values of changed lines are removed, so
+     * the cost is proportional to the changed lines rather than the whole text.
      */
-    public List<List<Span>> getSpanMap() {
-        return mSpanMap;
+    protected static class LineValues<E> {
+
+        final BTreeList<E> mList;
+        // Count of pending values at the end, and the line of the first one in previous result
+        private int mPending;
+        private int mPendingStart;
+
+        LineValues() {
+            this(new BTreeList<>());
+        }
+
+        private LineValues(BTreeList<E> list) {
+            mList = list;
+        }
+
+        /**
+         * Create a copy sharing the values. This must not have pending values.
+         */
+        LineValues<E> copy() {
+            return new LineValues<>(mList.copy());
+        }
+
+        /**
+         * Create a copy sharing the values, whose values from the given line are pending
+         */
+        LineValues<E> reuseBefore(int line) {
+            final LineValues<E> values = new LineValues<>(mList.copy());
+            values.mPending = Math.max(0, size() - line);
+            values.mPendingStart = line;
+            return values;
+        }
+
+        /**
+         * Get count of values, excluding pending ones
+         */
+        int size() {
+            return mList.size() - mPending;
+        }
+
+        /**
+         * Get value of the line, or null if it has no value
+         */
+        E get(int line) {
+            return line < size() ? mList.get(line) : null;
+        }
+
+        void set(int line, E value) {
+            mList.set(line, value);
+        }
+
+        /**
+         * Add value of the next line
+         */
+        void add(E value) {
+            mList.add(size(), value);
+        }
+
+        /**
+         * Add nulls until there are values of the given count of lines
+         */
+        void extendTo(int count) {
+            while (size() < count) {
+                add(null);
+            }
+        }
+
+        /**
+         * Remove values from the given line
+         */
+        void truncate(int line) {
+            while (size() > line) {
+                mList.remove(size() - 1);
+            }
+        }
+
+        /**
+         * Keep pending values from the given line of previous result, as values from the given line.
+         * Pending values before it belong to changed lines, so they are removed.
+         *
+         * @param line    Line of the first kept value in this result
+         * @param oldLine Line of the first kept value in previous result
+         */
+        void reusePending(int line, int oldLine) {
+            final int removed = Math.min(mPending, Math.max(0, oldLine - mPendingStart));
+            if (removed < mPending) {
+                extendTo(line);
+            }
+            for (int i = 0; i < removed; i++) {
+                mList.remove(size());
+                mPending--;
+            }
+            mPending = 0;
+        }
+
+        /**
+         * Remove all pending values
+         */
+        void removePending() {
+            while (mPending > 0) {
+                mList.remove(mList.size() - 1);
+                mPending--;
+            }
+        }
     }
 }
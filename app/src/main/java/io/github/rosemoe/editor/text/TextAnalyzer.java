@@ -16,9 +16,10 @@
 package io.github.rosemoe.editor.text;
 
 import com.itsaky.androidide.utils.Logger;
+import io.github.rosemoe.editor.interfaces.CodeAnalyzer;
 import io.github.rosemoe.editor.interfaces.EditorLanguage;
-import io.github.rosemoe.editor.struct.BlockLine;
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.langs.IncrementalCodeAnalyzer;
+import io.github.rosemoe.editor.struct.SpanLine;
 import java.util.List;
 
 /**
@@ -28,15 +29,49 @@ import java.util.List;
  */
 public class TextAnalyzer {
 
-    private static int sThreadId = 0;
-    private final RecycleObjContainer mObjContainer = new RecycleObjContainer();
-    private final Object mLock = new Object();
-    
+    /**
+     * Visible lines are analyzed before the rest of text only if they start after this line,
+     * since lines before are analyzed quickly in the full pass anyway
+     */
+    private static final int VISIBLE_FIRST_MIN_LINE = 1000;
+
+    /**
+     * Interval of publishing partial results while the whole text is being analyzed
+     */
+    private static final long PROGRESS_INTERVAL = 300;
+
+    /**
+     * Delay of analysis after text is edited, so that a burst of edits is analyzed once
+     */
+    private static final long EDIT_DELAY = 80;
+
     public long mOpStartTime;
     private TextAnalyzeResult mResult;
     private Callback mCallback;
     private AnalyzeThread mThread;
     private EditorLanguage mLanguage;
+    private volatile boolean mFocused = false;
+
+    // Changes made to text since the current result was created
+    // Lines are in the coordinates of current text
+    private int mDirtyStartLine = Integer.MAX_VALUE;
+    private int mDirtyEndLine = -1;
+    private int mLineDelta = 0;
+    private boolean mFullAnalysisRequired = true;
+    // Version of text the current result (including shifted spans) matches
+    private int mResultVersion = -1;
+    // Whether any result of analysis has been published
+    private boolean mResultPublished = false;
+    // Whether the current result is restored from cache, see setCachedResult()
+    private boolean mShowingCachedResult = false;
+    // Lines of current result created before this generation ended may be shared with
+    // snapshots, which are read on other threads, so they are copied before their spans are shifted.
+    // Lines are reused by later results as well, so this is never reset.
+    private int mSharedGeneration = -1;
+
+    // Lines visible in editor, which are analyzed and published first
+    private volatile int mVisibleStartLine = 0;
+    private volatile int mVisibleEndLine = -1;
 
     private static final Logger LOG = Logger.instance("TextAnalyzer");
     
@@ -54,11 +89,6 @@ public class TextAnalyzer {
         mLanguage = language;
     }
     
-    private synchronized static int nextThreadId() {
-        sThreadId++;
-        return sThreadId;
-    }
-
     /**
      * Set callback of analysis
      *
@@ -73,17 +103,43 @@ public class TextAnalyzer {
      */
     public void shutdown() {
         final AnalyzeThread thread = mThread;
-        if (thread != null && thread.isAlive()) {
-            thread.interrupt();
+        if (thread != null) {
+            AnalyzeScheduler.getInstance().cancel(thread);
+            thread.stop();
             mThread = null;
         }
     }
 
     /**
-     * Called from painting process to recycle outdated objects for reusing
+     * Set whether the editor of this analyzer is focused.
+     * Analysis of focused editors runs before others.
      */
-    public void notifyRecycle() {
-        mObjContainer.recycle();
+    public void setFocused(boolean focused) {
+        if (mFocused != focused) {
+            mFocused = focused;
+            AnalyzeScheduler.getInstance().notifyPriorityChanged();
+        }
+    }
+
+    /**
+     * Get stats of analysis, such as count of pending requests and run time
+     */
+    public AnalyzeScheduler.Stats getStats() {
+        final AnalyzeThread thread = mThread;
+        return thread == null ? new AnalyzeScheduler.Stats() : thread.getStats();
+    }
+
+    /**
+     * Set the lines visible in editor.
+     * When the whole text is analyzed, results are published as soon as these lines
+     * are analyzed, instead of only after the whole text is done.
+     *
+     * @param startLine First visible line
+     * @param endLine   Last visible line
+     */
+    public void setVisibleRange(int startLine, int endLine) {
+        mVisibleStartLine = startLine;
+        mVisibleEndLine = endLine;
     }
 
     /**
@@ -92,18 +148,188 @@ public class TextAnalyzer {
      * @param origin The source text
      */
     public synchronized void analyze(Content origin) {
+        mFullAnalysisRequired = true;
+        startAnalysis(origin, 0);
+    }
+
+    /**
+     * Analyze the lines changed since last analysis.
+     * The changes must have been reported by {@link #shiftSpansOnInsert(Content, int, int, int, int)}
+     * and {@link #shiftSpansOnDelete(Content, int, int, int, int)}.
+     * Analyzers without incremental support will analyze the whole text.
+     * Analysis is delayed a little, so that following edits are analyzed together.
+     *
+     * @param origin The source text
+     */
+    public synchronized void analyzeIncrementally(Content origin) {
+        startAnalysis(origin, EDIT_DELAY);
+    }
+
+    private void startAnalysis(Content origin, long delay) {
         AnalyzeThread thread = this.mThread;
-        if (thread == null || !thread.isAlive()) {
-            thread = this.mThread = new AnalyzeThread(mLanguage, mLock, origin);
-            thread.setName("TextAnalyzeDaemon-" + nextThreadId());
-            thread.setDaemon(true);
-            thread.start();
+        if (thread == null) {
+            thread = this.mThread = new AnalyzeThread(mLanguage, origin);
         } else {
+            // Stop the running analysis, if any
             thread.restartWith(origin);
-            synchronized (mLock) {
-                mLock.notify();
+        }
+        AnalyzeScheduler.getInstance().schedule(thread, delay);
+    }
+
+    /**
+     * Shift spans of current result after text is inserted, and remember the changed lines
+     * for next incremental analysis
+     */
+    public synchronized void shiftSpansOnInsert(Content content, int startLine, int startColumn, int endLine, int endColumn) {
+        final int version = content.getDocumentVersion();
+        if (version <= mResultVersion) {
+            // Result was created after this modification
+            markDirty(startLine, endLine, endLine);
+            return;
+        }
+        final List<SpanLine> map = mResult.getSpanMap();
+        if (!mResult.isPartial() && map.size() == content.getLineCount() - (endLine - startLine)) {
+            ensureLineWritable(map, startLine);
+            if (startLine == endLine) {
+                SpanMapUpdater.shiftSpansOnSingleLineInsert(map, startLine, startColumn, endColumn);
+            } else {
+                SpanMapUpdater.shiftSpansOnMultiLineInsert(map, startLine, startColumn, endLine, endColumn);
+            }
+        } else {
+            mFullAnalysisRequired = true;
+        }
+        if (version != mResultVersion + 1) {
+            mFullAnalysisRequired = true;
+        }
+        mResultVersion = version;
+        markDirty(startLine, startLine, endLine);
+    }
+
+    /**
+     * Shift spans of current result after text is deleted, and remember the changed lines
+     * for next incremental analysis
+     */
+    public synchronized void shiftSpansOnDelete(Content content, int startLine, int startColumn, int endLine, int endColumn) {
+        final int version = content.getDocumentVersion();
+        if (version <= mResultVersion) {
+            markDirty(startLine, startLine, startLine);
+            return;
+        }
+        final List<SpanLine> map = mResult.getSpanMap();
+        if (!mResult.isPartial() && map.size() == content.getLineCount() + (endLine - startLine)) {
+            ensureLineWritable(map, startLine);
+            ensureLineWritable(map, endLine);
+            if (startLine == endLine) {
+                SpanMapUpdater.shiftSpansOnSingleLineDelete(map, startLine, startColumn, endColumn);
+            } else {
+                SpanMapUpdater.shiftSpansOnMultiLineDelete(map, startLine, startColumn, endLine, endColumn);
             }
+        } else {
+            mFullAnalysisRequired = true;
+        }
+        if (version != mResultVersion + 1) {
+            mFullAnalysisRequired = true;
+        }
+        mResultVersion = version;
+        markDirty(startLine, endLine, startLine);
+    }
+
+    /**
+     * Replace spans of the line with a copy, if they may be shared with a snapshot
+     */
+    private void ensureLineWritable(List<SpanLine> map, int line) {
+        final SpanLine spans = map.get(line);
+        if (spans != null && spans.getGeneration() <= mSharedGeneration) {
+            map.set(line, spans.copy(spans.size()));
+        }
+    }
+
+    /**
+     * Lines [startLine, oldEndLine] are replaced with lines [startLine, newEndLine]
+     */
+    private void markDirty(int startLine, int oldEndLine, int newEndLine) {
+        final int delta = newEndLine - oldEndLine;
+        if (mDirtyEndLine > oldEndLine) {
+            mDirtyEndLine += delta;
+        } else if (mDirtyEndLine >= startLine) {
+            mDirtyEndLine = newEndLine;
+        }
+        mDirtyStartLine = Math.min(mDirtyStartLine, startLine);
+        mDirtyEndLine = Math.max(mDirtyEndLine, newEndLine);
+        mLineDelta += delta;
+    }
+
+    /**
+     * Show a result restored from cache until the text is analyzed.
+     * Partial results of the running analysis are not published over it, since it is complete.
+     * It is ignored if any result of analysis has been published or the text has been modified.
+     *
+     * @param cached Result of the same text, see {@link TextAnalyzeResult#readFrom(java.io.DataInput)}
+     * @param text   Current text
+     * @return Whether the result is used
+     */
+    public synchronized boolean setCachedResult(TextAnalyzeResult cached, Content text) {
+        if (mResultPublished || mResultVersion != -1 || cached.getSpanMap().size() != text.getLineCount()) {
+            return false;
+        }
+        mResult = cached;
+        mShowingCachedResult = true;
+        return true;
+    }
+
+    /**
+     * Use a complete result of the same text instead of analyzing it, such as the result
+     * of another editor showing the text. Unlike a cached result, it keeps the checkpoints,
+     * so following edits are analyzed incrementally.
+     *
+     * @param result Result of the text, which is not used by others any more
+     * @param text   Current text
+     */
+    public synchronized void restoreResult(TextAnalyzeResult result, Content text) {
+        final AnalyzeThread thread = mThread;
+        if (thread != null) {
+            // Pending analysis is not needed, and running one is discarded
+            AnalyzeScheduler.getInstance().cancel(thread);
+            thread.restartWith(text);
+        }
+        mResult = result;
+        // Its lines may still be read by snapshots taken by the other editor
+        mSharedGeneration = SpanLine.newGeneration();
+        mResultVersion = text.getDocumentVersion();
+        mResultPublished = true;
+        mShowingCachedResult = false;
+        mFullAnalysisRequired = false;
+        mDirtyStartLine = Integer.MAX_VALUE;
+        mDirtyEndLine = -1;
+        mLineDelta = 0;
+    }
+
+    /**
+     * Get the current result if it is complete and matches the given text
+     *
+     * @return The result, or null if the text is being analyzed
+     */
+    public synchronized TextAnalyzeResult getUpToDateResult(Content text) {
+        if (mResult.isPartial() || mShowingCachedResult || mFullAnalysisRequired || mDirtyEndLine >= 0
+                || mResultVersion != text.getDocumentVersion()) {
+            return null;
         }
+        return mResult;
+    }
+
+    /**
+     * Get a snapshot of the current result if it is complete and matches the given text.
+     * Unlike the result itself, the snapshot is not modified by later edits, so it can be read on other threads.
+     *
+     * @return The snapshot, or null if the text is being analyzed
+     */
+    public synchronized TextAnalyzeResult getUpToDateSnapshot(Content text) {
+        final TextAnalyzeResult result = getUpToDateResult(text);
+        if (result == null) {
+            return null;
+        }
+        mSharedGeneration = SpanLine.newGeneration();
+        return result.snapshot();
     }
 
     /**
@@ -133,92 +359,151 @@ public class TextAnalyzer {
     }
 
     /**
-     * Container for objects that is going to be recycled
-     *
-     * @author Rose
+     * Analysis task of this analyzer, run by {@link AnalyzeScheduler}
      */
-    static class RecycleObjContainer {
-
-        List<List<Span>> spanMap;
-
-        List<BlockLine> blockLines;
-
-        void recycle() {
-            ObjectAllocator.recycleBlockLine(blockLines);
-            SpanRecycler.getInstance().recycle(spanMap);
-            clear();
-        }
-
-        void clear() {
-            spanMap = null;
-            blockLines = null;
-        }
-
-    }
-
-    /**
-     * AnalyzeThread to control
-     */
-    public class AnalyzeThread extends Thread {
+    public class AnalyzeThread extends AnalyzeScheduler.Task {
         
-        private final Object lock;
         private volatile boolean waiting = false;
+        private volatile boolean stopped = false;
+        private Content origin;
         private Content content;
         private EditorLanguage language;
         
         /**
-         * Create a new thread
+         * Create a new task
          *
-         * @param a       The CodeAnalyzer to call
-         * @param content The Content to analyze
+         * @param lang    The language to analyze with
+         * @param content The Content to analyze. A snapshot of it is analyzed.
          */
-        public AnalyzeThread(EditorLanguage lang, Object lock, Content content) {
+        public AnalyzeThread(EditorLanguage lang, Content content) {
             this.language = lang;
-            this.lock = lock;
-            this.content = content;
+            this.origin = content;
+            this.content = content.createSnapshot();
         }
-        
+
         @Override
-        public void run() {
+        protected boolean isFocused() {
+            return mFocused;
+        }
+
+        @Override
+        protected boolean execute() throws Exception {
+            if (stopped) {
+                return false;
+            }
+            mOpStartTime = System.currentTimeMillis();
+            waiting = false;
+            // null if the text is changed while analyzing
+            if (analyzeOnce(new Delegate()) == null) {
+                return false;
+            }
             try {
-                do {
-                    TextAnalyzeResult colors = new TextAnalyzeResult();
-                    Delegate d = new Delegate();
-                    mOpStartTime = System.currentTimeMillis();
-                    do {
-                        waiting = false;
-                        language.getAnalyzer().analyze(language.getLanguageServer(), language.getFile(), content, colors, d);
-                        if (waiting) {
-                            colors.mSpanMap.clear();
-                            colors.mLast = null;
-                            colors.mBlocks.clear();
-                            colors.mSuppressSwitch = Integer.MAX_VALUE;
-                            colors.mLabels = null;
-                            colors.mExtra = null;
-                        }
-                    } while (waiting);
-
-                    mObjContainer.blockLines = mResult.mBlocks;
-                    mObjContainer.spanMap = mResult.mSpanMap;
-                    mResult = colors;
-                    colors.addNormalIfNull();
-                    try {
-                        if (mCallback != null)
-                            mCallback.onAnalyzeDone(TextAnalyzer.this);
-                    } catch (NullPointerException e) {
-                        e.printStackTrace();
-                    }
+                if (mCallback != null)
+                    mCallback.onAnalyzeDone(TextAnalyzer.this);
+            } catch (NullPointerException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        /**
+         * Stop running analysis, and ignore later runs
+         */
+        void stop() {
+            stopped = true;
+            waiting = true;
+        }
 
-                    try {
-                        synchronized (lock) {
-                            lock.wait();
-                        }
-                    } catch (InterruptedException e) {
-                        break;
+        private TextAnalyzeResult analyzeOnce(Delegate d) throws Exception {
+            final CodeAnalyzer analyzer = language.getAnalyzer();
+            final Content origin, text;
+            synchronized (this) {
+                origin = this.origin;
+                text = content;
+            }
+            final TextAnalyzeResult previous;
+            final int version, dirtyStart, dirtyEnd, lineDelta;
+            final boolean full;
+            synchronized (TextAnalyzer.this) {
+                version = text.getDocumentVersion();
+                full = mFullAnalysisRequired || mResultVersion != version;
+                if (!full && mDirtyEndLine < 0) {
+                    // Nothing changed
+                    return mResult;
+                }
+                if (full) {
+                    previous = null;
+                } else {
+                    // Spans of current result are shifted on the main thread while we read them
+                    previous = mResult.snapshot();
+                    mSharedGeneration = SpanLine.newGeneration();
+                }
+                dirtyStart = mDirtyStartLine;
+                dirtyEnd = mDirtyEndLine;
+                lineDelta = mLineDelta;
+            }
+
+            if (full && analyzer instanceof IncrementalCodeAnalyzer) {
+                d.startProgress(origin, version);
+                final int visibleStart = mVisibleStartLine;
+                final int visibleEnd = Math.min(mVisibleEndLine, text.getLineCount() - 1);
+                if (visibleStart >= VISIBLE_FIRST_MIN_LINE && visibleEnd >= visibleStart) {
+                    // Preview visible lines, assuming no multi-line token is open at the first line
+                    final TextAnalyzeResult preview = new TextAnalyzeResult();
+                    if (((IncrementalCodeAnalyzer) analyzer).analyzeLines(text, preview, visibleStart, visibleEnd, d)) {
+                        publishPartial(preview, origin, version);
                     }
-                } while (true);
-            } catch (Exception ex) {
-                LOG.error("An error occurred while analyzing", ex);
+                }
+            }
+
+            TextAnalyzeResult colors = new TextAnalyzeResult();
+            boolean analyzed = false;
+            if (!full && analyzer instanceof IncrementalCodeAnalyzer) {
+                analyzed = ((IncrementalCodeAnalyzer) analyzer).analyzeIncrementally(text, previous, colors, dirtyStart, dirtyEnd, lineDelta, d);
+                if (!analyzed) {
+                    colors = new TextAnalyzeResult();
+                }
+            }
+            if (!analyzed) {
+                analyzer.analyze(language.getLanguageServer(), language.getFile(), text, colors, d);
+            }
+
+            synchronized (TextAnalyzer.this) {
+                if (waiting || origin.getDocumentVersion() != version) {
+                    return null;
+                }
+                colors.addNormalIfNull();
+                mResult = colors;
+                mResultVersion = version;
+                mResultPublished = true;
+                mShowingCachedResult = false;
+                mFullAnalysisRequired = false;
+                mDirtyStartLine = Integer.MAX_VALUE;
+                mDirtyEndLine = -1;
+                mLineDelta = 0;
+            }
+            return colors;
+        }
+
+        /**
+         * Publish a partial result, if the text is not changed since analysis started
+         */
+        private void publishPartial(TextAnalyzeResult partial, Content origin, int version) {
+            synchronized (TextAnalyzer.this) {
+                if (waiting || origin.getDocumentVersion() != version || mShowingCachedResult) {
+                    return;
+                }
+                partial.addNormalIfNull();
+                mResult = partial;
+                mResultPublished = true;
+                // Spans can not be shifted on a partial result
+                mFullAnalysisRequired = true;
+            }
+            try {
+                if (mCallback != null)
+                    mCallback.onAnalyzeDone(TextAnalyzer.this);
+            } catch (NullPointerException e) {
+                e.printStackTrace();
             }
         }
 
@@ -226,11 +511,12 @@ public class TextAnalyzer {
          * New content has been sent
          * Notify us to restart
          *
-         * @param content New source
+         * @param content New source. A snapshot of it is analyzed.
          */
         public synchronized void restartWith(Content content) {
             waiting = true;
-            this.content = content;
+            this.origin = content;
+            this.content = content.createSnapshot();
         }
 
         /**
@@ -249,6 +535,45 @@ public class TextAnalyzer {
                 return !waiting;
             }
 
+            private Content progressOrigin;
+            private int progressVersion;
+            private boolean visiblePublished;
+            private long lastPublishTime;
+
+            /**
+             * Enable publishing partial results of this pass
+             */
+            void startProgress(Content origin, int version) {
+                progressOrigin = origin;
+                progressVersion = version;
+                visiblePublished = false;
+                lastPublishTime = System.currentTimeMillis();
+            }
+
+            /**
+             * Called by analyzers when all the lines before the given line are analyzed.
+             * Partial results are published when the visible lines are done, and periodically after it.
+             *
+             * @param colors Result being built
+             * @param line   Lines before it are complete and will not be modified
+             */
+            public void publishProgress(TextAnalyzeResult colors, int line) {
+                if (progressOrigin == null) {
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                if (!visiblePublished) {
+                    if (line <= mVisibleEndLine) {
+                        return;
+                    }
+                    visiblePublished = true;
+                } else if (now - lastPublishTime < PROGRESS_INTERVAL) {
+                    return;
+                }
+                lastPublishTime = now;
+                publishPartial(colors.createPartial(line), progressOrigin, progressVersion);
+            }
+
         }
 
     }
@@ -15,12 +15,16 @@
  */
 package io.github.rosemoe.editor.text;
 
+import io.github.rosemoe.editor.util.IntPair;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Helper class for Content to take down modification
  * As well as provide Undo/Redo actions
+ * <p>
+ * The history is limited by both action count and estimated memory usage. Oldest actions
+ * are removed first when either limit is exceeded.
  *
  * @author Rose
  */
@@ -30,6 +34,8 @@ final class UndoManager implements ContentListener {
     private final List<ContentAction> mActionStack;
     private boolean mUndoEnabled;
     private int mMaxStackSize;
+    private long mMaxMemory;
+    private long mMemoryUsage;
     private InsertAction mInsertAction;
     private DeleteAction mDeleteAction;
     private boolean mReplaceMark;
@@ -49,6 +55,7 @@ final class UndoManager implements ContentListener {
         mDeleteAction = null;
         mStackPointer = 0;
         mIgnoreModification = false;
+        mMaxMemory = Long.MAX_VALUE;
     }
 
     /**
@@ -141,17 +148,50 @@ final class UndoManager implements ContentListener {
         cleanStack();
     }
 
+    /**
+     * Get current max memory usage
+     *
+     * @return max memory usage in bytes
+     */
+    public long getMaxUndoMemory() {
+        return mMaxMemory;
+    }
+
+    /**
+     * Set a max memory usage for this UndoManager
+     * The latest action is always kept even if it alone exceeds the limit
+     *
+     * @param maxMemory max memory usage in bytes
+     */
+    public void setMaxUndoMemory(long maxMemory) {
+        if (maxMemory <= 0) {
+            throw new IllegalArgumentException("max memory can not be zero or smaller");
+        }
+        mMaxMemory = maxMemory;
+        cleanStack();
+    }
+
+    /**
+     * Get estimated memory used by actions in stack
+     *
+     * @return memory usage in bytes
+     */
+    public long getMemoryUsage() {
+        return mMemoryUsage;
+    }
+
     /**
      * Clean stack after add or state change
-     * This is to limit stack size
+     * This is to limit stack size and memory usage
      */
     private void cleanStack() {
         if (!mUndoEnabled) {
             mActionStack.clear();
             mStackPointer = 0;
+            mMemoryUsage = 0;
         } else {
-            while (mStackPointer > 1 && mActionStack.size() > mMaxStackSize) {
-                mActionStack.remove(0);
+            while (mStackPointer > 1 && (mActionStack.size() > mMaxStackSize || mMemoryUsage > mMaxMemory)) {
+                mMemoryUsage -= mActionStack.remove(0).getMemoryUsage();
                 mStackPointer--;
             }
         }
@@ -163,10 +203,19 @@ final class UndoManager implements ContentListener {
      */
     private void cleanBeforePush() {
         while (mStackPointer < mActionStack.size()) {
-            mActionStack.remove(mActionStack.size() - 1);
+            mMemoryUsage -= mActionStack.remove(mActionStack.size() - 1).getMemoryUsage();
         }
     }
 
+    /**
+     * Add the action to stack
+     */
+    private void addToStack(ContentAction action) {
+        mActionStack.add(action);
+        mStackPointer++;
+        mMemoryUsage += action.getMemoryUsage();
+    }
+
     /**
      * Push a new {@link ContentAction} to stack
      * It will merge actions if possible
@@ -182,31 +231,31 @@ final class UndoManager implements ContentListener {
             if (mActionStack.isEmpty()) {
                 MultiAction a = new MultiAction();
                 a.addAction(action);
-                mActionStack.add(a);
-                mStackPointer++;
+                addToStack(a);
             } else {
                 ContentAction a = mActionStack.get(mActionStack.size() - 1);
                 if (a instanceof MultiAction) {
                     MultiAction ac = (MultiAction) a;
+                    mMemoryUsage -= ac.getMemoryUsage();
                     ac.addAction(action);
+                    mMemoryUsage += ac.getMemoryUsage();
                 } else {
                     MultiAction ac = new MultiAction();
                     ac.addAction(action);
-                    mActionStack.add(ac);
-                    mStackPointer++;
+                    addToStack(ac);
                 }
             }
         } else {
             if (mActionStack.isEmpty()) {
-                mActionStack.add(action);
-                mStackPointer++;
+                addToStack(action);
             } else {
                 ContentAction last = mActionStack.get(mActionStack.size() - 1);
                 if (last.canMerge(action)) {
+                    mMemoryUsage -= last.getMemoryUsage();
                     last.merge(action);
+                    mMemoryUsage += last.getMemoryUsage();
                 } else {
-                    mActionStack.add(action);
-                    mStackPointer++;
+                    addToStack(action);
                 }
             }
         }
@@ -219,6 +268,7 @@ final class UndoManager implements ContentListener {
             return;
         }
         mReplaceMark = true;
+        mDeleteAction = null;
     }
 
     @Override
@@ -232,12 +282,12 @@ final class UndoManager implements ContentListener {
         mInsertAction.startColumn = startColumn;
         mInsertAction.endLine = endLine;
         mInsertAction.endColumn = endColumn;
-        mInsertAction.text = insertedContent;
-        if (mReplaceMark) {
-            ReplaceAction rep = new ReplaceAction();
-            rep._delete = mDeleteAction;
-            rep._insert = mInsertAction;
-            pushAction(rep);
+        mInsertAction.text = insertedContent.toString();
+        if (mReplaceMark && mDeleteAction != null) {
+            ReplaceAction rep = ReplaceAction.create(mDeleteAction, mInsertAction);
+            if (rep != null) {
+                pushAction(rep);
+            }
         } else {
             pushAction(mInsertAction);
         }
@@ -255,7 +305,7 @@ final class UndoManager implements ContentListener {
         mDeleteAction.startColumn = startColumn;
         mDeleteAction.endLine = endLine;
         mDeleteAction.startLine = startLine;
-        mDeleteAction.text = deletedContent;
+        mDeleteAction.text = deletedContent.toString();
         if (!mReplaceMark) {
             pushAction(mDeleteAction);
         }
@@ -297,6 +347,47 @@ final class UndoManager implements ContentListener {
          */
         void merge(ContentAction action);
 
+        /**
+         * Get estimated memory used by this action
+         *
+         * @return memory usage in bytes
+         */
+        int getMemoryUsage();
+
+    }
+
+    /**
+     * Estimated memory used by an action object besides its text
+     */
+    private static final int ACTION_OVERHEAD = 48;
+
+    /**
+     * Max length of text in an action made by merging small actions
+     */
+    private static final int MAX_MERGED_LENGTH = 10000;
+
+    /**
+     * Get estimated memory used by the text
+     */
+    private static int memoryOf(CharSequence text) {
+        return text instanceof StringBuilder ? ((StringBuilder) text).capacity() * 2 : text.length() * 2;
+    }
+
+    /**
+     * Get the position after the given text when it is placed at (line,column)
+     *
+     * @return Packed (line,column)
+     */
+    private static long positionAfter(int line, int column, CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+                column = 0;
+            } else {
+                column++;
+            }
+        }
+        return IntPair.pack(line, column);
     }
 
     /**
@@ -324,7 +415,12 @@ final class UndoManager implements ContentListener {
         public boolean canMerge(ContentAction action) {
             if (action instanceof InsertAction) {
                 InsertAction ac = (InsertAction) action;
-                return (ac.startColumn == endColumn && ac.startLine == endLine && ac.text.length() + text.length() < 10000);
+                return (ac.startColumn == endColumn && ac.startLine == endLine && ac.text.length() + text.length() < MAX_MERGED_LENGTH);
+            }
+            if (action instanceof DeleteAction) {
+                // Deleting the end of the text just typed
+                DeleteAction ac = (DeleteAction) action;
+                return (ac.endColumn == endColumn && ac.endLine == endLine && ac.text.length() < text.length());
             }
             return false;
         }
@@ -334,6 +430,17 @@ final class UndoManager implements ContentListener {
             if (!canMerge(action)) {
                 throw new IllegalArgumentException();
             }
+            if (action instanceof DeleteAction) {
+                DeleteAction ac = (DeleteAction) action;
+                this.endColumn = ac.startColumn;
+                this.endLine = ac.startLine;
+                if (text instanceof StringBuilder) {
+                    ((StringBuilder) text).setLength(text.length() - ac.text.length());
+                } else {
+                    text = text.subSequence(0, text.length() - ac.text.length());
+                }
+                return;
+            }
             InsertAction ac = (InsertAction) action;
             this.endColumn = ac.endColumn;
             this.endLine = ac.endLine;
@@ -347,6 +454,11 @@ final class UndoManager implements ContentListener {
             sb.append(ac.text);
         }
 
+        @Override
+        public int getMemoryUsage() {
+            return ACTION_OVERHEAD + memoryOf(text);
+        }
+
     }
 
     /**
@@ -357,16 +469,21 @@ final class UndoManager implements ContentListener {
     public static final class MultiAction implements ContentAction {
 
         private final List<ContentAction> _actions = new ArrayList<>();
+        private int _memory = ACTION_OVERHEAD;
 
         public void addAction(ContentAction action) {
             if (_actions.isEmpty()) {
                 _actions.add(action);
+                _memory += action.getMemoryUsage();
             } else {
                 ContentAction last = _actions.get(_actions.size() - 1);
                 if (last.canMerge(action)) {
+                    _memory -= last.getMemoryUsage();
                     last.merge(action);
+                    _memory += last.getMemoryUsage();
                 } else {
                     _actions.add(action);
+                    _memory += action.getMemoryUsage();
                 }
             }
         }
@@ -395,6 +512,11 @@ final class UndoManager implements ContentListener {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public int getMemoryUsage() {
+            return _memory;
+        }
+
     }
 
     /**
@@ -422,7 +544,12 @@ final class UndoManager implements ContentListener {
         public boolean canMerge(ContentAction action) {
             if (action instanceof DeleteAction) {
                 DeleteAction ac = (DeleteAction) action;
-                return (ac.endColumn == startColumn && ac.endLine == startLine && ac.text.length() + text.length() < 10000);
+                if (ac.text.length() + text.length() >= MAX_MERGED_LENGTH) {
+                    return false;
+                }
+                // Deleting backward, or deleting forward at the same position
+                return (ac.endColumn == startColumn && ac.endLine == startLine)
+                        || (ac.startColumn == startColumn && ac.startLine == startLine);
             }
             return false;
         }
@@ -433,8 +560,6 @@ final class UndoManager implements ContentListener {
                 throw new IllegalArgumentException();
             }
             DeleteAction ac = (DeleteAction) action;
-            this.startColumn = ac.startColumn;
-            this.startLine = ac.startLine;
             StringBuilder sb;
             if (text instanceof StringBuilder) {
                 sb = (StringBuilder) text;
@@ -442,7 +567,21 @@ final class UndoManager implements ContentListener {
                 sb = new StringBuilder(text);
                 text = sb;
             }
-            sb.insert(0, ac.text);
+            if (ac.endColumn == startColumn && ac.endLine == startLine) {
+                this.startColumn = ac.startColumn;
+                this.startLine = ac.startLine;
+                sb.insert(0, ac.text);
+            } else {
+                sb.append(ac.text);
+                long end = positionAfter(startLine, startColumn, sb, 0, sb.length());
+                this.endLine = IntPair.getFirst(end);
+                this.endColumn = IntPair.getSecond(end);
+            }
+        }
+
+        @Override
+        public int getMemoryUsage() {
+            return ACTION_OVERHEAD + memoryOf(text);
         }
 
     }
@@ -457,6 +596,48 @@ final class UndoManager implements ContentListener {
         public InsertAction _insert;
         public DeleteAction _delete;
 
+        /**
+         * Create a replace action from its deletion and insertion
+         * Text shared by the start and end of old and new text is not stored, so replacing a
+         * large region with mostly the same text (such as formatting) only stores the changed part.
+         *
+         * @return The action, or null if the text is not changed
+         */
+        static ReplaceAction create(DeleteAction delete, InsertAction insert) {
+            final CharSequence oldText = delete.text, newText = insert.text;
+            final int maxCommon = Math.min(oldText.length(), newText.length());
+            int prefix = 0;
+            while (prefix < maxCommon && oldText.charAt(prefix) == newText.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < maxCommon - prefix
+                    && oldText.charAt(oldText.length() - 1 - suffix) == newText.charAt(newText.length() - 1 - suffix)) {
+                suffix++;
+            }
+            if (prefix == oldText.length() && prefix == newText.length()) {
+                return null;
+            }
+            if (prefix != 0 || suffix != 0) {
+                final long start = positionAfter(delete.startLine, delete.startColumn, oldText, 0, prefix);
+                final int startLine = IntPair.getFirst(start), startColumn = IntPair.getSecond(start);
+                final long oldEnd = positionAfter(startLine, startColumn, oldText, prefix, oldText.length() - suffix);
+                final long newEnd = positionAfter(startLine, startColumn, newText, prefix, newText.length() - suffix);
+                delete.startLine = insert.startLine = startLine;
+                delete.startColumn = insert.startColumn = startColumn;
+                delete.endLine = IntPair.getFirst(oldEnd);
+                delete.endColumn = IntPair.getSecond(oldEnd);
+                insert.endLine = IntPair.getFirst(newEnd);
+                insert.endColumn = IntPair.getSecond(newEnd);
+                delete.text = oldText.subSequence(prefix, oldText.length() - suffix).toString();
+                insert.text = newText.subSequence(prefix, newText.length() - suffix).toString();
+            }
+            ReplaceAction action = new ReplaceAction();
+            action._delete = delete;
+            action._insert = insert;
+            return action;
+        }
+
         @Override
         public void undo(Content content) {
             _insert.undo(content);
@@ -479,5 +660,10 @@ final class UndoManager implements ContentListener {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public int getMemoryUsage() {
+            return ACTION_OVERHEAD + _delete.getMemoryUsage() + _insert.getMemoryUsage();
+        }
+
     }
 }
@@ -37,7 +37,7 @@ abstract class AbstractLayout implements Layout {
         this.editor = editor;
         this.text = text;
         shadowPaint = new Paint(editor.getTextPaint());
-        fontCache = new FontCache();
+        fontCache = new FontCache(shadowPaint);
     }
 
     protected float measureText(CharSequence text, int start, int end) {
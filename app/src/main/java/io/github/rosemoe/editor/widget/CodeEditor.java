@@ -26,6 +26,7 @@ import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Picture;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Typeface;
@@ -64,9 +65,11 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.itsaky.androidide.R;
 import com.itsaky.androidide.app.StudioApp;
 import com.itsaky.androidide.databinding.LayoutDialogTextInputBinding;
+import com.itsaky.androidide.lsp.DocumentChangeBatcher;
 import com.itsaky.androidide.lsp.IDELanguageClientImpl;
 import com.itsaky.androidide.lsp.LSPProvider;
 import com.itsaky.androidide.lsp.providers.CodeActionProvider;
+import com.itsaky.androidide.lsp.providers.SemanticTokensProvider;
 import com.itsaky.androidide.syntax.colorschemes.SchemeAndroidIDE;
 import com.itsaky.androidide.utils.DialogUtils;
 import com.itsaky.androidide.utils.LSPUtils;
@@ -81,26 +84,24 @@ import io.github.rosemoe.editor.interfaces.EditorLanguage;
 import io.github.rosemoe.editor.interfaces.NewlineHandler;
 import io.github.rosemoe.editor.langs.AbstractEditorLanguage;
 import io.github.rosemoe.editor.langs.EmptyLanguage;
-import io.github.rosemoe.editor.struct.BlockLine;
-import io.github.rosemoe.editor.struct.Span;
+import io.github.rosemoe.editor.struct.BlockTree;
+import io.github.rosemoe.editor.struct.SpanLine;
 import io.github.rosemoe.editor.text.CharPosition;
 import io.github.rosemoe.editor.text.Content;
 import io.github.rosemoe.editor.text.ContentLine;
 import io.github.rosemoe.editor.text.ContentListener;
 import io.github.rosemoe.editor.text.Cursor;
+import io.github.rosemoe.editor.text.DiagnosticsContainer;
 import io.github.rosemoe.editor.text.FontCache;
 import io.github.rosemoe.editor.text.FormatThread;
 import io.github.rosemoe.editor.text.LineRemoveListener;
-import io.github.rosemoe.editor.text.SpanMapUpdater;
 import io.github.rosemoe.editor.text.TextAnalyzeResult;
 import io.github.rosemoe.editor.text.TextAnalyzer;
 import io.github.rosemoe.editor.util.IntPair;
 import io.github.rosemoe.editor.util.LongArrayList;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import org.eclipse.lsp4j.CodeAction;
 import org.eclipse.lsp4j.CodeActionOptions;
@@ -131,6 +132,8 @@ import org.eclipse.lsp4j.SignatureHelpTriggerKind;
 import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentItem;
+import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.TextDocumentSyncOptions;
 import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 
@@ -222,6 +225,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     private int mNonPrintableOptions;
     private int mCachedLineNumberWidth;
     private int mFileVersion = 0;
+    private TextDocumentSyncKind mTextSyncKind = TextDocumentSyncKind.Full;
     private float mDpUnit;
     private float mDividerWidth;
     private float mDividerMargin;
@@ -236,6 +240,8 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     private boolean mCharPaint;
     private boolean mAutoIndentEnabled;
     private boolean mWordwrap;
+    // Word wrap set by setWordwrap(), which is applied when deferred features are restored
+    private boolean mWordwrapPreferred;
     private boolean mUndoEnabled;
     private boolean mDisplayLnPanel;
     private boolean mOverScrollEnabled;
@@ -267,7 +273,19 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     private InputMethodManager mInputMethodManager;
     private Cursor mCursor;
     private Content mText;
+    private Content.LineStorage mLineStorage = Content.LineStorage.TREE;
     private TextAnalyzer mSpanner;
+    // State given by restoreState(), which is used for the next text set
+    private RetainedState mPendingState;
+    // State of current text, until its parts are used or the text is modified
+    private RetainedState mRestoredState;
+    private int mRestoredVersion;
+    private final LineRenderCache mRenderCache = new LineRenderCache();
+    private PerformanceMode mPerformanceMode = PerformanceMode.NORMAL;
+    // Whether features deferred by performance mode are restored
+    private boolean mDeferredFeaturesRestored = true;
+    // Spans of lines without spans, kept so that their rows can be cached
+    private final SpanLine mEmptySpans = new SpanLine(EditorColorScheme.TEXT_NORMAL);
     private Paint mPaint;
     private Paint mPaintOther;
     private Paint mPaintGraph;
@@ -281,6 +299,10 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     private IDELanguageServer mLanguageServer;
     private IDELanguageClientImpl mLanguageClient;
     private CodeActionProvider mCodeActionProvider;
+    private SemanticTokensProvider mSemanticTokensProvider;
+    private final DiagnosticsContainer mDiagnostics = new DiagnosticsContainer();
+    private final List<Diagnostic> mLineDiagnostics = new ArrayList<>();
+    private DocumentChangeBatcher mChangeBatcher;
     private long mLastMakeVisible = 0;
     private EditorAutoCompleteWindow mCompletionWindow;
     private EditorTouchEventHandler mEventHandler;
@@ -354,13 +376,24 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             ((AbstractEditorLanguage) mLanguage).setFile(file);
         }
         
-        if(mLanguageServer != null) {
+        openDocument();
+    }
+    
+    /**
+     * Send 'textDocument/didOpen' with current text, if there is a language server
+     */
+    private void openDocument() {
+        if(mLanguageServer != null && getFile() != null) {
+            // Changes made before opening the document are included in the text of the document
+            mChangeBatcher.clear();
+            
             TextDocumentItem item = new TextDocumentItem();
             item.setLanguageId(getLanguageIdForFile());
             item.setText(getText().toString());
-            item.setUri(file.toURI().toString());
+            item.setUri(getFile().toURI().toString());
             item.setVersion(mFileVersion = 0);
             mLanguageServer.getTextDocumentService().didOpen(new DidOpenTextDocumentParams(item));
+            requestSemanticTokens();
         }
     }
     
@@ -564,6 +597,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         mConnection = new EditorInputConnection(this);
         mCompletionWindow = new EditorAutoCompleteWindow(this);
         mCodeActionProvider = new CodeActionProvider();
+        mChangeBatcher = new DocumentChangeBatcher(new DocumentChangeReceiver());
         
         mVerticalEdgeGlow = new MaterialEdgeEffect();
         mHorizontalGlow = new MaterialEdgeEffect();
@@ -623,7 +657,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
         final int line = getCursor().getLeftLine();
         final int column = getCursor().getLeftColumn();
-        final Diagnostic diag = getEditorLanguage().getAnalyzer().findDiagnosticContaining(line, column);
+        final Diagnostic diag = findDiagnosticContaining(line, column);
         
         if(diag == null) {
             mLanguageClient.hideDiagnostics();
@@ -632,6 +666,49 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
     }
     
+    /**
+     * Set the diagnostics of current file, replacing old ones.
+     * Their ranges are shifted as the text is edited, until new diagnostics are set.
+     *
+     * @param diagnostics The diagnostics, or null for none
+     */
+    public void setDiagnostics(List<Diagnostic> diagnostics) {
+        mDiagnostics.setDiagnostics(diagnostics);
+        invalidate();
+    }
+    
+    /**
+     * Get the diagnostics of current file
+     */
+    public DiagnosticsContainer getDiagnostics() {
+        return mDiagnostics;
+    }
+    
+    /**
+     * Find the diagnostic containing the given position.
+     * Diagnostics from the analyzer (such as TODO comments) are used if none is set to this editor.
+     */
+    public Diagnostic findDiagnosticContaining(int line, int column) {
+        final Diagnostic diag = mDiagnostics.findDiagnosticContaining(line, column);
+        return diag != null ? diag : mLanguage.getAnalyzer().findDiagnosticContaining(line, column);
+    }
+    
+    /**
+     * Find all diagnostics overlapping the given line, including the ones from the analyzer
+     */
+    public List<Diagnostic> findDiagnosticsContainingLine(int line) {
+        return findDiagnosticsContainingLine(line, new ArrayList<>());
+    }
+    
+    private List<Diagnostic> findDiagnosticsContainingLine(int line, List<Diagnostic> dest) {
+        mDiagnostics.findDiagnosticsInRange(line, 0, line, Integer.MAX_VALUE, dest);
+        final List<Diagnostic> local = mLanguage.getAnalyzer().findDiagnosticsContainingLine(line);
+        if(local != null) {
+            dest.addAll(local);
+        }
+        return dest;
+    }
+    
     public void notifySpansChanged() {
         if(mSpanner != null) {
             mSpanner.analyze(getText());
@@ -752,7 +829,11 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             lang = new EmptyLanguage();
         }
         this.mLanguage = lang;
-        this.mLanguageServer = mLanguage.getLanguageServer();
+        if (mChangeBatcher != null) {
+            mChangeBatcher.flush();
+        }
+        // The document is opened with the language server when deferred features are restored
+        this.mLanguageServer = mDeferredFeaturesRestored ? mLanguage.getLanguageServer() : null;
         this.mLanguageClient = LSPProvider.getClient();
         
         // Update spanner
@@ -762,8 +843,16 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
         mSpanner = new TextAnalyzer(mLanguage);
         mSpanner.setCallback(this);
+        mSpanner.setFocused(hasFocus());
         if (mText != null) {
-            mSpanner.analyze(mText);
+            if (mLayout != null) {
+                mSpanner.setVisibleRange(getFirstVisibleLine(), getLastVisibleLine());
+            }
+            if (!restoreAnalyzeResult()) {
+                mSpanner.analyze(mText);
+            } else if (!mDeferredFeaturesRestored) {
+                post(this::restoreDeferredFeatures);
+            }
         }
         if (mCompletionWindow != null) {
             mCompletionWindow.hide();
@@ -793,11 +882,45 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     }
     
     public void setSemanticHighlights(SemanticHighlight highlights) {
+        if (!mDeferredFeaturesRestored) {
+            return;
+        }
         mLanguage.getAnalyzer().setSemanticHighlights(highlights);
         
         notifySpansChanged();
     }
     
+    /**
+     * Request the semantic tokens of current file from the language server, if it provides them.
+     * After the first response, only the changes to the tokens are requested.
+     */
+    public void requestSemanticTokens() {
+        final SemanticTokensProvider provider = mSemanticTokensProvider;
+        if(provider == null || mLanguageServer == null || getFile() == null || !mDeferredFeaturesRestored) {
+            return;
+        }
+        
+        final CompletableFuture<int[]> future = provider.semanticTokens(mLanguageServer, getDocumentIdentifier());
+        if(future == null) {
+            return;
+        }
+        
+        future.whenComplete((data, error) -> {
+            if(data == null) {
+                return;
+            }
+            
+            post(() -> {
+                // Language may have changed
+                if(mSemanticTokensProvider != provider) {
+                    return;
+                }
+                mLanguage.getAnalyzer().setSemanticTokens(data, provider.getLegend());
+                notifySpansChanged();
+            });
+        });
+    }
+    
     public EditorLanguage getEditorLanguage() {
         return mLanguage;
     }
@@ -825,14 +948,22 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * Sets up this editor according to the capabilities of the current language server
      */
     private void setupLanguageServerCapabilities() {
-        if(mLanguage == null || mLanguageServer == null) return;
+        if(mLanguage == null || mLanguageServer == null) {
+            mSemanticTokensProvider = null;
+            return;
+        }
         
         ServerCapabilities c = LSPProvider.getServerCapabilitiesForLanguage(mLanguage.getLanguageCode());
         if(c == null) {
             mAutoCompletionEnabled = mCodeActionsEnabled = mGotoDefinitionEnabled = mFindReferencesEnabled = false;
+            mTextSyncKind = TextDocumentSyncKind.Full;
+            mSemanticTokensProvider = null;
             return;
         }
         
+        mTextSyncKind = getTextSyncKind(c);
+        mSemanticTokensProvider = SemanticTokensProvider.create(c);
+        
         CompletionOptions completion =  c.getCompletionProvider();
         setAutoCompletionEnabled(completion != null);
         
@@ -881,6 +1012,34 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
     }
     
+    /**
+     * Find out how the server wants the document changes to be synced.
+     * Defaults to {@link TextDocumentSyncKind#Full} if the server did not specify it.
+     */
+    private TextDocumentSyncKind getTextSyncKind(ServerCapabilities c) {
+        final Either<TextDocumentSyncKind, TextDocumentSyncOptions> sync = c.getTextDocumentSync();
+        if(sync == null) {
+            return TextDocumentSyncKind.Full;
+        }
+        
+        TextDocumentSyncKind kind;
+        if(sync.isLeft()) {
+            kind = sync.getLeft();
+        } else {
+            final TextDocumentSyncOptions options = sync.getRight();
+            kind = options == null ? null : options.getChange();
+        }
+        
+        return kind == null ? TextDocumentSyncKind.Full : kind;
+    }
+    
+    /**
+     * Get the kind of document sync that is currently used with the language server
+     */
+    public TextDocumentSyncKind getTextSyncKind() {
+        return mTextSyncKind;
+    }
+    
     /**
      * Getter
      *
@@ -909,11 +1068,19 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     }
 
     /**
-     * Set whether text in editor should be wrapped to fit its size
+     * Set whether text in editor should be wrapped to fit its size.
+     * It is applied after features deferred by performance mode are restored.
      *
      * @param wordwrap Whether to wrap words
+     * @see #setPerformanceMode(PerformanceMode)
      */
     public void setWordwrap(boolean wordwrap) {
+        mWordwrapPreferred = wordwrap;
+        updateWordwrap();
+    }
+
+    private void updateWordwrap() {
+        final boolean wordwrap = mWordwrapPreferred && mDeferredFeaturesRestored;
         if (mWordwrap != wordwrap) {
             mWordwrap = wordwrap;
             createLayout();
@@ -950,6 +1117,23 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         invalidate();
     }
 
+    /**
+     * Set the data structure to store lines of text.
+     * It takes effect when text is set by {@link #setText(CharSequence)}.
+     *
+     * @param storage The line storage
+     */
+    public void setLineStorage(@NonNull Content.LineStorage storage) {
+        mLineStorage = storage;
+    }
+
+    /**
+     * @see CodeEditor#setLineStorage(Content.LineStorage)
+     */
+    public Content.LineStorage getLineStorage() {
+        return mLineStorage;
+    }
+
     /**
      * Set how will the editor present text actions
      */
@@ -1082,13 +1266,14 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * @param size Text size in pixel unit
      */
     void setTextSizePxDirect(float size) {
+        mRenderCache.clear();
         mPaint.setTextSize(size);
         mPaintOther.setTextSize(size);
         mPaintGraph.setTextSize(size * SCALE_MINI_GRAPH);
         mTextMetrics = mPaint.getFontMetricsInt();
         mLineNumberMetrics = mPaintOther.getFontMetricsInt();
         mGraphMetrics = mPaintGraph.getFontMetricsInt();
-        mFontCache.clearCache();
+        mFontCache.bind(mPaint);
     }
 
     /**
@@ -1099,7 +1284,6 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     private void drawView(Canvas canvas) {
         //record();
         //counter = 0;
-        mSpanner.notifyRecycle();
         if (mFormatThread != null) {
             String text = "Formatting your code...";
             float centerY = getHeight() / 2f;
@@ -1114,6 +1298,9 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
 
         getCursor().updateCache(getFirstVisibleLine());
+        if (mSpanner != null) {
+            mSpanner.setVisibleRange(getFirstVisibleLine(), getLastVisibleLine());
+        }
 
         EditorColorScheme color = mColors;
         drawColor(canvas, color.getColor(EditorColorScheme.WHOLE_BACKGROUND), mViewRect);
@@ -1190,7 +1377,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             }
         }
 
-        if (!isWordwrap() && isBlockLineEnabled()) {
+        if (!isWordwrap() && isBlockLineEnabled() && mDeferredFeaturesRestored) {
             drawBlockLines(canvas, textOffset);
         }
 
@@ -1247,8 +1434,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      */
     private void drawRows(Canvas canvas, float offset, LongArrayList postDrawLineNumbers, List<CursorPaintAction> postDrawCursor, LongArrayList postDrawCurrentLines, MutableInt requiredFirstLn) {
         RowIterator rowIterator = mLayout.obtainRowIterator(getFirstVisibleRow());
-        List<Span> temporaryEmptySpans = null;
-        List<List<Span>> spanMap = mSpanner.getResult().getSpanMap();
+        List<SpanLine> spanMap = mSpanner.getResult().getSpanMap();
         List<Integer> matchedPositions = new ArrayList<>();
         int currentLine = mCursor.isSelected() ? -1 : mCursor.getLeftLine();
         int currentLineBgColor = mColors.getColor(EditorColorScheme.CURRENT_LINE);
@@ -1334,46 +1520,58 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
                 postDrawCurrentLines.add(row);
             }
 
-            // Draw text here
-            {
-                // Get spans
-                List<Span> spans = null;
-                if (line < spanMap.size() && line >= 0) {
-                    spans = spanMap.get(line);
-                }
-                if (spans == null || spans.size() == 0) {
-                    if (temporaryEmptySpans == null) {
-                        temporaryEmptySpans = new LinkedList<>();
-                        temporaryEmptySpans.add(Span.obtain(line, 0, EditorColorScheme.TEXT_NORMAL));
-                    }
-                    spans = temporaryEmptySpans;
+            // Get spans
+            SpanLine spans = null;
+            if (line < spanMap.size() && line >= 0) {
+                spans = spanMap.get(line);
+            }
+            if (spans == null || spans.size() == 0) {
+                spans = mEmptySpans;
+            }
+
+            // Replay the recorded text of row if possible
+            // Text on selected lines has different colors, so it is not recorded
+            LineRenderCache.Entry recorded = null;
+            if (!(mCursor.isSelected() && line >= mCursor.getLeftLine() && line <= mCursor.getRightLine())
+                    && rowInf.endColumn - rowInf.startColumn <= LineRenderCache.MAX_ROW_LENGTH) {
+                recorded = mRenderCache.get(contentLine, rowInf.startColumn, rowInf.endColumn, spans);
+                if (recorded == null) {
+                    recorded = recordRow(contentLine, rowInf, spans, columnCount);
                 }
-                
+            }
+            if (recorded != null) {
+                canvas.save();
+                canvas.translate(offset, getRowTop(row) - getOffsetY());
+                canvas.drawPicture(recorded.picture);
+                canvas.restore();
+                paintingOffset = offset + recorded.width;
+            } else {
                 while (spanOffset + 1 < spans.size()) {
-                    if (spans.get(spanOffset + 1).column <= firstVisibleChar) {
+                    if (spans.getColumn(spanOffset + 1) <= firstVisibleChar) {
                         spanOffset++;
                     } else {
                         break;
                     }
                 }
-                Span span = spans.get(spanOffset);
+                int spanColumn = spans.getColumn(spanOffset);
                 // Draw by spans
-                while (lastVisibleChar > span.column) {
-                    int spanEnd = spanOffset + 1 >= spans.size() ? columnCount : spans.get(spanOffset + 1).column;
-                    int paintStart = Math.max(firstVisibleChar, span.column);
+                while (lastVisibleChar > spanColumn) {
+                    int spanEnd = spanOffset + 1 >= spans.size() ? columnCount : spans.getColumn(spanOffset + 1);
+                    int paintStart = Math.max(firstVisibleChar, spanColumn);
                     int paintEnd = Math.min(lastVisibleChar, spanEnd);
                     float width = measureText(mBuffer, paintStart, paintEnd - paintStart);
 
                     // Draw text
-                    drawRegionText(canvas, paintingOffset, getRowBaseline(row) - getOffsetY(), line, paintStart, paintEnd, columnCount, mColors.getColor(span.colorId));
+                    drawRegionText(canvas, paintingOffset, getRowBaseline(row) - getOffsetY(), line, paintStart, paintEnd, columnCount, mColors.getColor(spans.getColorId(spanOffset)));
                     
                     // Draw underline
-                    if (span.underlineColor != 0) {
+                    final int underlineColor = spans.getUnderlineColor(spanOffset);
+                    if (underlineColor != 0) {
                         mRect.bottom = getRowBottom(line) - getOffsetY() - (mDpUnit * 0.5f);
-                        mRect.top = mRect.bottom - getRowHeight() * span.underlineHeight;
+                        mRect.top = mRect.bottom - getRowHeight() * spans.getUnderlineHeight(spanOffset);
                         mRect.left = paintingOffset;
                         mRect.right = paintingOffset + width;
-                        drawColor(canvas, span.underlineColor, mRect);
+                        drawColor(canvas, underlineColor, mRect);
                     }
                     
                     paintingOffset += width;
@@ -1383,7 +1581,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
                     }
                     spanOffset++;
                     if (spanOffset < spans.size()) {
-                        span = spans.get(spanOffset);
+                        spanColumn = spans.getColumn(spanOffset);
                     } else {
                         spanOffset--;
                     }
@@ -1431,16 +1629,18 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
 
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setStrokeWidth(getDpUnit() * 1.4f);
-            final List<Diagnostic> diags = getEditorLanguage().getAnalyzer().findDiagnosticsContainingLine(line);
-            final int size = diags == null ? 0 : diags.size();
+            final List<Diagnostic> diags = mLineDiagnostics;
+            diags.clear();
+            findDiagnosticsContainingLine(line, diags);
+            final int size = diags.size();
             
             for(int i=0;i<size;i++) {
                 Diagnostic d = diags.get(i);
                 if(d == null) continue;
                 int startCol = d.getRange().getStart().getCharacter();
                 int endCol = d.getRange().getEnd().getCharacter();
-                startCol = line > d.getRange().getStart().getCharacter() ? 0 : startCol;
-                endCol = line > d.getRange().getEnd().getCharacter() ? 0 : endCol;
+                startCol = line > d.getRange().getStart().getLine() ? 0 : startCol;
+                endCol = line < d.getRange().getEnd().getLine() ? columnCount : endCol;
                 
                 if(startCol == endCol) {
                     endCol++;
@@ -1448,6 +1648,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
                 
                 final int paintStart = Math.max(firstVisibleChar, startCol);
                 final int paintEnd = Math.min(lastVisibleChar, endCol);
+                if(paintEnd <= paintStart) continue;
                 final float width = measureText(mBuffer, paintStart, paintEnd - paintStart);
                 
                 final RectF r = new RectF();
@@ -1483,6 +1684,48 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
     }
 
+    /**
+     * Record the text of row with its spans, from the start column at (0, 0).
+     * Characters of the line must have been read to mBuffer.
+     */
+    private LineRenderCache.Entry recordRow(ContentLine contentLine, Row rowInf, SpanLine spans, int columnCount) {
+        final int start = rowInf.startColumn;
+        final int end = rowInf.endColumn;
+        final float rowWidth = measureText(mBuffer, start, end - start);
+        final Picture picture = new Picture();
+        final Canvas canvas = picture.beginRecording((int) Math.ceil(rowWidth) + 1, getRowHeight());
+        final float baseline = getRowBaseline(0);
+        int index = 0;
+        while (index + 1 < spans.size() && spans.getColumn(index + 1) <= start) {
+            index++;
+        }
+        float x = 0;
+        for (; index < spans.size(); index++) {
+            final int paintStart = Math.max(start, spans.getColumn(index));
+            final int paintEnd = Math.min(end, index + 1 >= spans.size() ? columnCount : spans.getColumn(index + 1));
+            if (paintStart >= end) {
+                break;
+            }
+            if (paintEnd <= paintStart) {
+                continue;
+            }
+            final float width = measureText(mBuffer, paintStart, paintEnd - paintStart);
+            mPaint.setColor(mColors.getColor(spans.getColorId(index)));
+            drawText(canvas, mBuffer, paintStart, paintEnd - paintStart, x, baseline);
+            final int underlineColor = spans.getUnderlineColor(index);
+            if (underlineColor != 0) {
+                mRect.bottom = getRowHeight() - (mDpUnit * 0.5f);
+                mRect.top = mRect.bottom - getRowHeight() * spans.getUnderlineHeight(index);
+                mRect.left = x;
+                mRect.right = x + width;
+                drawColor(canvas, underlineColor, mRect);
+            }
+            x += width;
+        }
+        picture.endRecording();
+        return mRenderCache.put(contentLine, start, end, spans, picture, rowWidth);
+    }
+
     private void drawDiagnostics(final RectF rect, final Canvas canvas, final Paint paint) {
         final Path path = new Path();
         final float right = rect.right;
@@ -1521,48 +1764,43 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * @param offsetX The start x offset for text
      */
     private void drawBlockLines(Canvas canvas, float offsetX) {
-        List<BlockLine> blocks = mSpanner == null ? null : mSpanner.getResult().getBlocks();
-        if (blocks == null || blocks.isEmpty()) {
+        final BlockTree blocks = mSpanner == null ? null : mSpanner.getResult().getBlockTree();
+        if (blocks == null || blocks.size() == 0) {
             return;
         }
-        int first = getFirstVisibleRow();
-        int last = getLastVisibleRow();
-        boolean mark = false;
-        int invalidCount = 0;
-        int maxCount = Integer.MAX_VALUE;
-        if (mSpanner != null) {
-            TextAnalyzeResult colors = mSpanner.getResult();
-            if (colors != null) {
-                maxCount = colors.getSuppressSwitch();
+        final int first = getFirstVisibleRow();
+        final int last = getLastVisibleRow();
+        final int cursorIdx = mCursorPosition;
+        // Blocks around the first visible line
+        for (int curr = blocks.findBlockAroundLineStart(first); curr != -1; curr = blocks.getParent(curr)) {
+            drawBlockLine(canvas, offsetX, blocks, curr, curr == cursorIdx);
+        }
+        // Blocks starting on visible lines
+        for (int curr = blocks.findFirstBlockFrom(first); curr < blocks.size() && blocks.getStartLine(curr) <= last; curr++) {
+            if (blocks.isBlock(curr)) {
+                drawBlockLine(canvas, offsetX, blocks, curr, curr == cursorIdx);
             }
         }
-        int mm = binarySearchEndBlock(first, blocks);
-        int cursorIdx = mCursorPosition;
-        for (int curr = mm; curr < blocks.size(); curr++) {
-            BlockLine block = blocks.get(curr);
-            if (hasVisibleRegion(block.startLine, block.endLine, first, last)) {
-                try {
-                    CharSequence lineContent = mText.getLine(block.endLine);
-                    float offset1 = measureText(lineContent, 0, block.endColumn);
-                    lineContent = mText.getLine(block.startLine);
-                    float offset2 = measureText(lineContent, 0, block.startColumn);
-                    float offset = Math.min(offset1, offset2);
-                    float centerX = offset + offsetX;
-                    mRect.top = Math.max(0, getRowBottom(block.startLine) - getOffsetY());
-                    mRect.bottom = Math.min(getHeight(), getRowTop(block.endLine) - getOffsetY());
-                    mRect.left = centerX - mDpUnit * mBlockLineWidth / 2;
-                    mRect.right = centerX + mDpUnit * mBlockLineWidth / 2;
-                    drawColor(canvas, mColors.getColor(curr == cursorIdx ? EditorColorScheme.BLOCK_LINE_CURRENT : EditorColorScheme.BLOCK_LINE), mRect);
-                } catch (IndexOutOfBoundsException e) {
-                    //Ignored
-                    //Because the exception usually occurs when the content changed.
-                }
-                mark = true;
-            } else if (mark) {
-                if (invalidCount >= maxCount)
-                    break;
-                invalidCount++;
-            }
+    }
+
+    private void drawBlockLine(Canvas canvas, float offsetX, BlockTree blocks, int index, boolean current) {
+        final int startLine = blocks.getStartLine(index);
+        final int endLine = blocks.getEndLine(index);
+        try {
+            CharSequence lineContent = mText.getLine(endLine);
+            float offset1 = measureText(lineContent, 0, blocks.getEndColumn(index));
+            lineContent = mText.getLine(startLine);
+            float offset2 = measureText(lineContent, 0, blocks.getStartColumn(index));
+            float offset = Math.min(offset1, offset2);
+            float centerX = offset + offsetX;
+            mRect.top = Math.max(0, getRowBottom(startLine) - getOffsetY());
+            mRect.bottom = Math.min(getHeight(), getRowTop(endLine) - getOffsetY());
+            mRect.left = centerX - mDpUnit * mBlockLineWidth / 2;
+            mRect.right = centerX + mDpUnit * mBlockLineWidth / 2;
+            drawColor(canvas, mColors.getColor(current ? EditorColorScheme.BLOCK_LINE_CURRENT : EditorColorScheme.BLOCK_LINE), mRect);
+        } catch (IndexOutOfBoundsException e) {
+            //Ignored
+            //Because the exception usually occurs when the content changed.
         }
     }
     
@@ -2087,81 +2325,11 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * If cursor is not in any code block,just -1.
      */
     private int findCursorBlock() {
-        List<BlockLine> blocks = mSpanner == null ? null : mSpanner.getResult().getBlocks();
-        if (blocks == null || blocks.isEmpty()) {
+        final BlockTree blocks = mSpanner == null ? null : mSpanner.getResult().getBlockTree();
+        if (blocks == null || blocks.size() == 0) {
             return -1;
         }
-        return findCursorBlock(blocks);
-    }
-
-    /**
-     * Find the cursor code block internal
-     *
-     * @param blocks Current code blocks
-     * @return The smallest code block index.
-     * If cursor is not in any code block,just -1.
-     */
-    private int findCursorBlock(List<BlockLine> blocks) {
-        int line = mCursor.getLeftLine();
-        int min = binarySearchEndBlock(line, blocks);
-        int max = blocks.size() - 1;
-        int minDis = Integer.MAX_VALUE;
-        int found = -1;
-        int invalidCount = 0;
-        int maxCount = Integer.MAX_VALUE;
-        if (mSpanner != null) {
-            TextAnalyzeResult result = mSpanner.getResult();
-            if (result != null) {
-                maxCount = result.getSuppressSwitch();
-            }
-        }
-        for (int i = min; i <= max; i++) {
-            BlockLine block = blocks.get(i);
-            if (block.endLine >= line && block.startLine <= line) {
-                int dis = block.endLine - block.startLine;
-                if (dis < minDis) {
-                    minDis = dis;
-                    found = i;
-                }
-            } else if (minDis != Integer.MAX_VALUE) {
-                invalidCount++;
-                if (invalidCount >= maxCount) {
-                    break;
-                }
-            }
-        }
-        return found;
-    }
-
-    /**
-     * Find the first code block that maybe seen on screen
-     * Because the code blocks is sorted by its end line position
-     * we can use binary search to quicken this process in order to decrease
-     * the time we use on finding
-     *
-     * @param firstVis The first visible line
-     * @param blocks   Current code blocks
-     * @return The block we found.Always a valid index(Unless there is no block)
-     */
-    private int binarySearchEndBlock(int firstVis, List<BlockLine> blocks) {
-        //end > firstVis
-        int left = 0, right = blocks.size() - 1, mid, row;
-        int max = right;
-        while (left <= right) {
-            mid = (left + right) / 2;
-            if (mid < 0) return 0;
-            if (mid > max) return max;
-            row = blocks.get(mid).endLine;
-            if (row > firstVis) {
-                right = mid - 1;
-            } else if (row < firstVis) {
-                left = mid + 1;
-            } else {
-                left = mid;
-                break;
-            }
-        }
-        return Math.max(0, Math.min(left, max));
+        return blocks.findInnermostBlock(mCursor.getLeftLine());
     }
 
     /**
@@ -2413,17 +2581,38 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * Create layout for text
      */
     void createLayout() {
+        // Keep the first visible line at the top if the text is not changed
+        final int anchorLine = mLayout instanceof AbstractLayout && ((AbstractLayout) mLayout).text == mText ? getFirstVisibleLine() : -1;
         if (mLayout != null) {
             mLayout.destroyLayout();
         }
+        mRenderCache.clear();
+        // Reuse rows or line widths of a restored state, if text is measured in the same way
+        final RetainedState state = getRestoredState();
+        final boolean compatible = state != null && state.isLayoutCompatible(this);
+        int anchorDeltaY = 0;
         if (mWordwrap) {
             mCachedLineNumberWidth = (int) measureLineNumber();
-            mLayout = new WordwrapLayout(this, mText);
+            final WordwrapLayout layout = new WordwrapLayout(this, mText, compatible ? state.mLineBreaks : null,
+                    compatible ? state.mLineBreaksWidth : 0, Math.max(0, anchorLine));
+            if (compatible && layout.getWidth() == state.mLineBreaksWidth) {
+                state.mLineBreaks = null;
+            }
+            mLayout = layout;
+            if (anchorLine != -1 && mEventHandler != null) {
+                anchorDeltaY = layout.getRowForLine(anchorLine) * getRowHeight() - getOffsetY();
+            }
         } else {
-            mLayout = new LineBreakLayout(this, mText);
+            mLayout = new LineBreakLayout(this, mText, compatible ? state.mLineWidths : null);
+            if (compatible) {
+                state.mLineWidths = null;
+            }
+        }
+        if (state != null && state.isConsumed()) {
+            mRestoredState = null;
         }
         if (mEventHandler != null) {
-            mEventHandler.scrollBy(0, 0);
+            mEventHandler.scrollBy(0, anchorDeltaY);
         }
     }
 
@@ -2467,22 +2656,6 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     }
 
 
-    /**
-     * Whether span map is valid
-     */
-    private boolean isSpanMapPrepared(boolean insert, int delta) {
-        List<List<Span>> map = mSpanner.getResult().getSpanMap();
-        if (map != null) {
-            if (insert) {
-                return map.size() == getLineCount() - delta;
-            } else {
-                return map.size() == getLineCount() + delta;
-            }
-        } else {
-            return false;
-        }
-    }
-
     /**
      * Exit select mode after text changed
      */
@@ -2648,7 +2821,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * @see CodeEditor#setAutoCompletionEnabled(boolean)
      */
     public boolean isAutoCompletionEnabled() {
-        return mAutoCompletionEnabled;
+        return mAutoCompletionEnabled && mDeferredFeaturesRestored;
     }
     
     public boolean isCodeActionsEnabled() {
@@ -2925,6 +3098,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             throw new IllegalArgumentException("width can not be under 1");
         }
         mTabWidth = w;
+        mRenderCache.clear();
         if (mCursor != null) {
             mCursor.setTabWidth(mTabWidth);
         }
@@ -3237,7 +3411,8 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             typefaceText = Typeface.DEFAULT;
         }
         mPaint.setTypeface(typefaceText);
-        mFontCache.clearCache();
+        mFontCache.bind(mPaint);
+        mRenderCache.clear();
         if (2 * mPaint.measureText("/") != mPaint.measureText("//")) {
             mCharPaint = true;
         } else {
@@ -3310,6 +3485,15 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         return mLayout.getLineNumberForRow(getFirstVisibleRow());
     }
 
+    /**
+     * Get last visible line on screen
+     *
+     * @return last visible line
+     */
+    public int getLastVisibleLine() {
+        return mLayout.getLineNumberForRow(getLastVisibleRow());
+    }
+
     /**
      * Get first visible row on screen
      *
@@ -3645,7 +3829,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         
         if(mLanguageClient != null) {
             mLanguageClient.hideSignatureHelp();
-            mLanguageClient.showDiagnosticAtBottom(getFile(), getEditorLanguage().getAnalyzer().findDiagnosticContaining(getCursor().getLeftLine(), getCursor().getLeftColumn()), this);
+            mLanguageClient.showDiagnosticAtBottom(getFile(), findDiagnosticContaining(getCursor().getLeftLine(), getCursor().getLeftColumn()), this);
         }
         
         if(mListener != null) {
@@ -3816,6 +4000,20 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * @param text the new text you want to display
      */
     public void setText(@Nullable CharSequence text) {
+        setText(text, false);
+    }
+
+    /**
+     * Sets the text to be displayed.
+     * <p>
+     * If reuseContentObject is true and text is a {@link Content} created for this editor, it is used
+     * directly instead of being copied. This allows building the Content of a large file on another thread,
+     * such as by reading the file line by line, and only attaching it here.
+     *
+     * @param text               the new text you want to display
+     * @param reuseContentObject Whether to use the given Content object directly
+     */
+    public void setText(@Nullable CharSequence text, boolean reuseContentObject) {
         if (text == null) {
             text = "";
         }
@@ -3825,19 +4023,28 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             mText.setLineListener(null);
         }
         
-        // There should not be any tabs in the text
-        // This is needed for the JavaLanguageServer
-        String t = text.toString();
-        t = t.replace("\t", Symbols.createTabSpaces());
-        
-        mText = new Content(this, t);
+        if (reuseContentObject && text instanceof Content) {
+            // Tabs are already replaced when inserted into Content
+            mText = (Content) text;
+        } else {
+            // There should not be any tabs in the text
+            // This is needed for the JavaLanguageServer
+            String t = text.toString();
+            t = t.replace("\t", Symbols.createTabSpaces());
+            
+            mText = new Content(this, t);
+        }
         mCursor = mText.getCursor();
         mCursor.setAutoIndent(mAutoIndentEnabled);
+        mDiagnostics.clear();
         mCursor.setLanguage(mLanguage);
         mEventHandler.reset();
         mText.addContentListener(this);
         mText.setUndoEnabled(mUndoEnabled);
         mText.setLineListener(this);
+        mRestoredState = mPendingState != null && mPendingState.mLineCount == mText.getLineCount() ? mPendingState : null;
+        mRestoredVersion = mText.getDocumentVersion();
+        mPendingState = null;
 
         if (mSpanner != null) {
             mSpanner.setCallback(null);
@@ -3845,6 +4052,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         }
         mSpanner = new TextAnalyzer(mLanguage);
         mSpanner.setCallback(this);
+        mSpanner.setFocused(hasFocus());
 
         TextAnalyzeResult colors = mSpanner.getResult();
         colors.getSpanMap().clear();
@@ -3937,6 +4145,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     public void setColorScheme(@NonNull EditorColorScheme colors) {
         colors.attachEditor(this);
         mColors = colors;
+        mRenderCache.clear();
         if (mCompletionWindow != null) {
             mCompletionWindow.applyColorScheme();
         }
@@ -3961,6 +4170,127 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         return mSpanner.getResult();
     }
 
+    /**
+     * Save the work of this editor which can be reused by another editor showing the same text.
+     * This editor should not be used after it.
+     *
+     * @return The state, or null if text is still being analyzed
+     * @see #restoreState(RetainedState)
+     */
+    @Nullable
+    public RetainedState saveState() {
+        final TextAnalyzeResult result = getUpToDateAnalyzeResult();
+        if (result == null || mLayout == null || mLanguage.getAnalyzer() == null) {
+            return null;
+        }
+        int[] lineWidths = null;
+        int[][] lineBreaks = null;
+        int lineBreaksWidth = 0;
+        if (mLayout instanceof LineBreakLayout) {
+            lineWidths = ((LineBreakLayout) mLayout).getLineWidths();
+        } else if (mLayout instanceof WordwrapLayout) {
+            lineBreaks = ((WordwrapLayout) mLayout).getLineBreaks();
+            lineBreaksWidth = ((WordwrapLayout) mLayout).getWidth();
+        }
+        final SemanticTokensProvider provider = mSemanticTokensProvider;
+        final RetainedState state = new RetainedState(result, mLanguage.getAnalyzer().getClass().getName(),
+                provider == null ? null : provider.getData(), provider == null ? null : provider.getLegend(),
+                lineWidths, lineBreaks, lineBreaksWidth, mText.getLineCount());
+        state.mTextSize = getTextSizePx();
+        state.mTypeface = getTypefaceText();
+        state.mTabWidth = getTabWidth();
+        return state;
+    }
+
+    /**
+     * Reuse the work of another editor for the next text set to this editor, which must be the
+     * text of that editor. Analysis result is used when the language is set, if the language has
+     * the same analyzer. Layout is reused if text is measured in the same way.
+     * Parts that are not used before the text is modified are dropped.
+     *
+     * @param state State from {@link #saveState()}
+     */
+    public void restoreState(@Nullable RetainedState state) {
+        mPendingState = state;
+    }
+
+    /**
+     * Get the restored state if current text is not modified since it is set
+     */
+    private RetainedState getRestoredState() {
+        if (mRestoredState != null && (mText == null || mText.getDocumentVersion() != mRestoredVersion)) {
+            mRestoredState = null;
+        }
+        return mRestoredState;
+    }
+
+    /**
+     * Use the analysis result of restored state, if it is made by the analyzer of current language
+     *
+     * @return Whether the result is used
+     */
+    private boolean restoreAnalyzeResult() {
+        final RetainedState state = getRestoredState();
+        if (state == null || state.mResult == null || mLanguage.getAnalyzer() == null
+                || !mLanguage.getAnalyzer().getClass().getName().equals(state.mAnalyzer)) {
+            return false;
+        }
+        if (state.mSemanticTokens != null && state.mSemanticTokens.length > 0 && state.mSemanticTokensLegend != null
+                && mDeferredFeaturesRestored) {
+            mLanguage.getAnalyzer().setSemanticTokens(state.mSemanticTokens, state.mSemanticTokensLegend);
+        }
+        mSpanner.restoreResult(state.mResult, mText);
+        state.mResult = null;
+        state.mSemanticTokens = null;
+        if (state.isConsumed()) {
+            mRestoredState = null;
+        }
+        if (mHighlightCurrentBlock) {
+            mCursorPosition = findCursorBlock();
+        }
+        return true;
+    }
+
+    /**
+     * Get analyze result if it is complete and matches current text
+     *
+     * @return The result, or null if text is being analyzed
+     */
+    @Nullable
+    public TextAnalyzeResult getUpToDateAnalyzeResult() {
+        return mSpanner == null || mText == null ? null : mSpanner.getUpToDateResult(mText);
+    }
+
+    /**
+     * Get a snapshot of analyze result if it is complete and matches current text.
+     * It can be read on other threads while the text is edited.
+     *
+     * @return The snapshot, or null if text is being analyzed
+     */
+    @Nullable
+    public TextAnalyzeResult getUpToDateAnalyzeResultSnapshot() {
+        return mSpanner == null || mText == null ? null : mSpanner.getUpToDateSnapshot(mText);
+    }
+
+    /**
+     * Show a result restored from cache until current text is analyzed.
+     * This must be called after text and language are set.
+     *
+     * @param result Result of current text
+     * @return Whether the result is used
+     * @see TextAnalyzer#setCachedResult(TextAnalyzeResult, Content)
+     */
+    public boolean setCachedAnalyzeResult(@NonNull TextAnalyzeResult result) {
+        if (mSpanner == null || mText == null || !mSpanner.setCachedResult(result, mText)) {
+            return false;
+        }
+        if (mHighlightCurrentBlock) {
+            mCursorPosition = findCursorBlock();
+        }
+        invalidate();
+        return true;
+    }
+
     /**
      * Hide auto complete window if shown
      */
@@ -4123,6 +4453,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
                 mCompletionWindow.applyColorScheme();
             return;
         }
+        mRenderCache.clear();
         invalidate();
     }
 
@@ -4151,6 +4482,58 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         drawView(canvas);
     }
 
+    /**
+     * Set performance mode for the size of the text, before the text and language are set.
+     * Modes other than {@link PerformanceMode#NORMAL} defer word wrap, semantic highlights, block lines,
+     * auto completion and syncing with the language server.
+     * In {@link PerformanceMode#LARGE}, deferred features are restored when the text is analyzed.
+     *
+     * @see EditorEventListener#onPerformanceModeChanged(CodeEditor)
+     */
+    public void setPerformanceMode(@NonNull PerformanceMode mode) {
+        mPerformanceMode = mode;
+        mDeferredFeaturesRestored = mode == PerformanceMode.NORMAL;
+        updateWordwrap();
+        if (mode != PerformanceMode.NORMAL && mCompletionWindow != null) {
+            mCompletionWindow.hide();
+        }
+        if (mListener != null) {
+            mListener.onPerformanceModeChanged(this);
+        }
+        invalidate();
+    }
+
+    @NonNull
+    public PerformanceMode getPerformanceMode() {
+        return mPerformanceMode;
+    }
+
+    /**
+     * Whether features deferred by performance mode are restored
+     */
+    public boolean isDeferredFeaturesRestored() {
+        return mDeferredFeaturesRestored;
+    }
+
+    /**
+     * Restore features deferred in {@link PerformanceMode#LARGE}, and open the document with
+     * the language server, which requests semantic highlights
+     */
+    private void restoreDeferredFeatures() {
+        if (mDeferredFeaturesRestored || mPerformanceMode != PerformanceMode.LARGE || mLanguage == null) {
+            return;
+        }
+        mDeferredFeaturesRestored = true;
+        updateWordwrap();
+        mLanguageServer = mLanguage.getLanguageServer();
+        setupLanguageServerCapabilities();
+        openDocument();
+        if (mListener != null) {
+            mListener.onPerformanceModeChanged(this);
+        }
+        invalidate();
+    }
+
     @Override
     public AccessibilityNodeInfo createAccessibilityNodeInfo() {
         AccessibilityNodeInfo node = super.createAccessibilityNodeInfo();
@@ -4465,6 +4848,14 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         return super.onGenericMotionEvent(event);
     }
 
+    @Override
+    protected void onFocusChanged(boolean gainFocus, int direction, Rect previouslyFocusedRect) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+        if (mSpanner != null) {
+            mSpanner.setFocused(gainFocus);
+        }
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldWidth, int oldHeight) {
         super.onSizeChanged(w, h, oldWidth, oldHeight);
@@ -4578,6 +4969,8 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         final ProgressDialog pd = ProgressDialog.show(getContext(), null, getContext().getString(R.string.msg_finding_definition));
         
         try {
+            flushDocumentChanges();
+            
             final DefinitionParams params = new DefinitionParams();
             params.setTextDocument(getDocumentIdentifier());
             params.setPosition(getCursorAsLSPPosition());
@@ -4645,6 +5038,8 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         final ProgressDialog pd = ProgressDialog.show(getContext(), null, getContext().getString(R.string.msg_finding_references));
         
         try {
+            flushDocumentChanges();
+            
             ReferenceParams params = new ReferenceParams();
             params.setTextDocument(getDocumentIdentifier());
             params.setPosition(getCursorAsLSPPosition());
@@ -4691,6 +5086,8 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
            && mSignatureHelpTriggerChars != null
            && mSignatureHelpTriggerChars.size() > 0
            && mSignatureHelpTriggerChars.contains(insertedContent)) {
+            
+            flushDocumentChanges();
 
             SignatureHelpContext context = new SignatureHelpContext();
             context.setTriggerCharacter(insertedContent);
@@ -4737,12 +5134,14 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     
     public void didSave () {
         if(mLanguageServer != null && getFile() != null) {
+            flushDocumentChanges();
             mLanguageServer.getTextDocumentService().didSave(new DidSaveTextDocumentParams(new org.eclipse.lsp4j.TextDocumentIdentifier(getFile().toURI().toString())));
         }
     }
     
     public void close() {
         if(mLanguageServer != null && getFile() != null) {
+            flushDocumentChanges();
             mLanguageServer.getTextDocumentService().didClose(new DidCloseTextDocumentParams(new org.eclipse.lsp4j.TextDocumentIdentifier(getFile().toURI().toString())));
         }
     }
@@ -4753,11 +5152,12 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
      * @return A {@link CompletableFuture}. May return {@code null}.
      */
     public CompletableFuture<List<Either<Command, CodeAction>>> codeActions() {
-        return codeActions(getEditorLanguage().getAnalyzer().findDiagnosticsContainingLine(getCursor().getLeftLine()));
+        return codeActions(findDiagnosticsContainingLine(getCursor().getLeftLine()));
     }
      
     public CompletableFuture<List<Either<Command, CodeAction>>> codeActions(List<Diagnostic> diagnostics) {
         if(mLanguageServer == null || mLanguageClient == null) return null;
+        flushDocumentChanges();
         return mCodeActionProvider.codeActions(mLanguageServer, getDocumentIdentifier(), getCursorRange(), diagnostics);
     }
     
@@ -4780,24 +5180,22 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         final int line = getCursor().getLeftLine();
         final int column = getCursor().getLeftColumn();
         
-        final Map<Integer, List<Range>> stringMap = mSpanner == null ? null : mSpanner.getResult().getStringMap();
-        if(stringMap == null || stringMap.isEmpty()) {
+        if(mSpanner == null) {
             return false;
         }
         
-        return isInRanges(stringMap.get(line), line, column);
+        return isInRanges(mSpanner.getResult().getStringRanges(line), line, column);
     }
     
     private boolean isCursorInComment () {
         final int line = getCursor().getLeftLine();
         final int column = getCursor().getLeftColumn();
         
-        final Map<Integer, List<Range>> commentMap = mSpanner == null ? null : mSpanner.getResult().getCommentMap();
-        if(commentMap == null || commentMap.isEmpty()) {
+        if(mSpanner == null) {
             return false;
         }
         
-        return isInRanges(commentMap.get(line), line, column);
+        return isInRanges(mSpanner.getResult().getCommentRanges(line), line, column);
     }
     
     private boolean isInRanges (List<Range> ranges, int line, int column) {
@@ -4825,19 +5223,17 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
 
     @Override
     public void afterInsert(Content content, int startLine, int startColumn, int endLine, int endColumn, CharSequence insertedContent) {
-        notifyChanged();
+        notifyChanged(startLine, startColumn, startLine, startColumn, insertedContent);
         
         if(mLanguageClient != null)
             mLanguageClient.hideDiagnostics();
         
         // Update spans
-        if (isSpanMapPrepared(true, endLine - startLine)) {
-            if (startLine == endLine) {
-                SpanMapUpdater.shiftSpansOnSingleLineInsert(mSpanner.getResult().getSpanMap(), startLine, startColumn, endColumn);
-            } else {
-                SpanMapUpdater.shiftSpansOnMultiLineInsert(mSpanner.getResult().getSpanMap(), startLine, startColumn, endLine, endColumn);
-            }
-        }
+        mSpanner.shiftSpansOnInsert(content, startLine, startColumn, endLine, endColumn);
+        mDiagnostics.shiftOnInsert(startLine, startColumn, endLine, endColumn);
+        // Lines after the start line are new, except the last one which takes the rest of the start line
+        mRenderCache.invalidate(content.getLine(startLine));
+        mRenderCache.invalidate(content.getLine(endLine));
 
         mCursorBlink.onSelectionChanged();
         mLayout.afterInsert(content, startLine, startColumn, endLine, endColumn, insertedContent);
@@ -4881,7 +5277,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         updateCursorAnchor();
         ensureSelectionVisible();
         // Notify to update highlight
-        mSpanner.analyze(mText);
+        mSpanner.analyzeIncrementally(mText);
         mEventHandler.hideInsertHandle();
         
         // Notify listener
@@ -4894,18 +5290,15 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
     
     @Override
     public void afterDelete(Content content, int startLine, int startColumn, int endLine, int endColumn, CharSequence deletedContent) {
-        notifyChanged();
+        notifyChanged(startLine, startColumn, endLine, endColumn, "");
         
         if(mLanguageClient != null)
             mLanguageClient.hideDiagnostics();
         
-        if (isSpanMapPrepared(false, endLine - startLine)) {
-            if (startLine == endLine) {
-                SpanMapUpdater.shiftSpansOnSingleLineDelete(mSpanner.getResult().getSpanMap(), startLine, startColumn, endColumn);
-            } else {
-                SpanMapUpdater.shiftSpansOnMultiLineDelete(mSpanner.getResult().getSpanMap(), startLine, startColumn, endLine, endColumn);
-            }
-        }
+        mSpanner.shiftSpansOnDelete(content, startLine, startColumn, endLine, endColumn);
+        mDiagnostics.shiftOnDelete(startLine, startColumn, endLine, endColumn);
+        // Other lines are removed, see onRemove()
+        mRenderCache.invalidate(content.getLine(startLine));
 
         mCursorBlink.onSelectionChanged();
         mLayout.afterDelete(content, startLine, startColumn, endLine, endColumn, deletedContent);
@@ -4934,7 +5327,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         if (!mWait) {
             updateCursorAnchor();
             ensureSelectionVisible();
-            mSpanner.analyze(mText);
+            mSpanner.analyzeIncrementally(mText);
             mEventHandler.hideInsertHandle();
         }
         
@@ -4953,6 +5346,7 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
 
     @Override
     public void onRemove(Content content, ContentLine line) {
+        mRenderCache.invalidate(line);
         mLayout.onRemove(content, line);
     }
 
@@ -4981,21 +5375,54 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
             if (mHighlightCurrentBlock) {
                 mCursorPosition = findCursorBlock();
             }
+            if (!mDeferredFeaturesRestored && !provider.getResult().isPartial()) {
+                post(this::restoreDeferredFeatures);
+            }
             postInvalidate();
         }
     }
     
-    private void notifyChanged() {
-        if(mLanguageServer != null) {
+    /**
+     * Notify the language server that the text in the given region has been replaced with the given text.
+     * The positions are the positions in the document <strong>before</strong> the change was applied.
+     */
+    private void notifyChanged(int startLine, int startColumn, int endLine, int endColumn, CharSequence text) {
+        if(mLanguageServer != null && getFile() != null && mTextSyncKind != TextDocumentSyncKind.None) {
             mLastEdited = System.currentTimeMillis();
-            DidChangeTextDocumentParams p = didChangeParams();
-            if(p != null) {
-                mLanguageServer.getTextDocumentService().didChange(p);
+            if(mTextSyncKind == TextDocumentSyncKind.Incremental) {
+                mChangeBatcher.addChange(createChangeEvent(startLine, startColumn, endLine, endColumn, text));
+            } else {
+                mChangeBatcher.requestFullSync();
             }
         }
     }
+    
+    /**
+     * Send the document changes which have not been sent to the language server yet.
+     * This must be called before sending any request whose result depends on the content of the document.
+     */
+    public void flushDocumentChanges() {
+        mChangeBatcher.flush();
+    }
+    
+    /**
+     * Set the time window in which the document changes are collected before they are sent
+     * to the language server in a single notification.
+     *
+     * @param millis The time in milliseconds. Zero or negative to send every change immediately.
+     */
+    public void setDocumentSyncDelay(long millis) {
+        mChangeBatcher.setBatchWindow(millis);
+    }
+    
+    /**
+     * @see CodeEditor#setDocumentSyncDelay(long)
+     */
+    public long getDocumentSyncDelay() {
+        return mChangeBatcher.getBatchWindow();
+    }
 
-    protected DidChangeTextDocumentParams didChangeParams() {
+    protected DidChangeTextDocumentParams didChangeParams(List<TextDocumentContentChangeEvent> events) {
         if(getFile() == null) {
             return null;
         }
@@ -5005,17 +5432,44 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
         doc.setUri(getFile().toURI().toString());
         DidChangeTextDocumentParams p = new DidChangeTextDocumentParams();
         p.setTextDocument(doc);
-        p.setContentChanges(createChangeEvents());
+        p.setContentChanges(events);
 
         return p;
     }
 
-    private List<TextDocumentContentChangeEvent> createChangeEvents() {
-        final List<TextDocumentContentChangeEvent> events = new ArrayList<>();
+    private TextDocumentContentChangeEvent createChangeEvent(int startLine, int startColumn, int endLine, int endColumn, CharSequence text) {
         TextDocumentContentChangeEvent event = new TextDocumentContentChangeEvent();
-        event.setText(getText().toString());
-        events.add(event);
-        return events;
+        event.setRange(new Range(new Position(startLine, startColumn), new Position(endLine, endColumn)));
+        event.setText(text.toString());
+        return event;
+    }
+    
+    /**
+     * Sends the changes collected by {@link DocumentChangeBatcher} to the language server.
+     * The version of the document is incremented only when the changes are actually sent.
+     */
+    private class DocumentChangeReceiver implements DocumentChangeBatcher.ChangeReceiver {
+        
+        @Override
+        public void sendChanges(List<TextDocumentContentChangeEvent> changes) {
+            if(mLanguageServer == null) {
+                return;
+            }
+            
+            DidChangeTextDocumentParams p = didChangeParams(changes);
+            if(p != null) {
+                mLanguageServer.getTextDocumentService().didChange(p);
+                requestSemanticTokens();
+            }
+        }
+        
+        @Override
+        public TextDocumentContentChangeEvent createFullSyncEvent() {
+            // Fallback to full document sync
+            TextDocumentContentChangeEvent event = new TextDocumentContentChangeEvent();
+            event.setText(getText().toString());
+            return event;
+        }
     }
 
     public void onEndTextSelect() {
@@ -5050,6 +5504,29 @@ public class CodeEditor extends View implements ContentListener, TextAnalyzer.Ca
 
     }
 
+    /**
+     * Modes trading features for speed, for texts of different sizes
+     *
+     * @see #setPerformanceMode(PerformanceMode)
+     */
+    public enum PerformanceMode {
+
+        /**
+         * All features are enabled
+         */
+        NORMAL,
+        /**
+         * Word wrap and semantic highlights are disabled. Other features needing the whole text
+         * are restored after the text is analyzed
+         */
+        LARGE,
+        /**
+         * Word wrap, semantic highlights, block lines, auto completion and language server stay disabled
+         */
+        HUGE
+
+    }
+
 
     /**
      * Interface for various ways to present text action panel
@@ -284,6 +284,8 @@ public class EditorAutoCompleteWindow extends EditorBasePopupWindow {
         setLoading(true);
         mLastPrefix = prefix;
         mRequestTime = System.currentTimeMillis();
+        // Completion results depend on the document state known to the server
+        mEditor.flushDocumentChanges();
         new MatchThread(mRequestTime, prefix).start();
     }
 
@@ -336,7 +338,7 @@ public class EditorAutoCompleteWindow extends EditorBasePopupWindow {
             mTime = requestTime;
             mPrefix = prefix;
             mFileUri = mEditor.getFile() != null ? mEditor.getFile().toURI().toString() : null;
-            mContent = mEditor.getText();
+            mContent = mEditor.getText().createSnapshot();
             mColors = mEditor.getTextAnalyzeResult();
             mIndex = mEditor.getCursor().getLeft();
             mLine = mEditor.getCursor().getLeftLine();
@@ -72,6 +72,7 @@ public class EditorSearcher {
         checkState();
         final ProgressDialog progressDialog = ProgressDialog.show(mEditor.getContext(), "Replacing", "Editor is now replacing texts, please wait", true, false);
         final String searchText = mSearchText;
+        final Content snapshot = mEditor.getText().createSnapshot();
         new Thread() {
 
             @Override
@@ -79,7 +80,7 @@ public class EditorSearcher {
                 String text = null;
                 Exception ex = null;
                 try {
-                    text = mEditor.getText().toString().replace(searchText, newText);
+                    text = snapshot.toString().replace(searchText, newText);
                 } catch (Exception e) {
                     e.printStackTrace();
                     ex = e;
@@ -25,16 +25,80 @@ import io.github.rosemoe.editor.util.IntPair;
 /**
  * Layout implementation of editor
  * This layout is never broke unless there is actually a newline character
+ * <p>
+ * Widths of lines in large text are measured lazily. Visible lines are measured when they
+ * are drawn, and the others are measured in small chunks posted to the editor. Until all
+ * lines are measured, layout width is estimated from the longest line.
  *
  * @author Rose
  */
 class LineBreakLayout extends AbstractLayout {
 
+    /**
+     * Text with fewer lines is measured when the layout is created
+     */
+    private static final int MIN_LAZY_LINE_COUNT = 2000;
+
+    /**
+     * Max time of measuring lines in a chunk, in nanoseconds
+     */
+    private static final long CHUNK_TIME = 4_000_000;
+
+    private final Runnable chunkRunnable = this::measureChunk;
+
     private BinaryHeap widthMaintainer;
+    /**
+     * Lines before it are measured, if not all lines are measured
+     */
+    private int chunkLine;
+    private boolean chunkScheduled;
+    private boolean allMeasured;
+    /**
+     * Width of the longest line estimated from its length, used until all lines are measured
+     */
+    private int estimatedWidth;
 
     LineBreakLayout(CodeEditor editor, Content text) {
+        this(editor, text, null);
+    }
+
+    /**
+     * Create the layout with line widths measured before, such as the ones of {@link #getLineWidths()}
+     *
+     * @param widths Widths of all lines, or null to measure them
+     */
+    LineBreakLayout(CodeEditor editor, Content text, int[] widths) {
         super(editor, text);
-        measureAllLines();
+        if (widths != null && text != null && widths.length == text.getLineCount()) {
+            widthMaintainer = new BinaryHeap();
+            widthMaintainer.ensureCapacity(widths.length);
+            for (int i = 0; i < widths.length; i++) {
+                ContentLine line = text.getLine(i);
+                line.setWidth(widths[i]);
+                line.setId(widthMaintainer.push(widths[i]));
+            }
+            allMeasured = true;
+        } else if (text != null && text.getLineCount() >= MIN_LAZY_LINE_COUNT) {
+            prepareLazyMeasure();
+        } else {
+            measureAllLines();
+        }
+    }
+
+    /**
+     * Get widths of all lines
+     *
+     * @return The widths, or null if not all lines are measured
+     */
+    int[] getLineWidths() {
+        if (!allMeasured) {
+            return null;
+        }
+        final int[] widths = new int[text.getLineCount()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = text.getLine(i).getWidth();
+        }
+        return widths;
     }
 
     private void measureAllLines() {
@@ -49,6 +113,39 @@ class LineBreakLayout extends AbstractLayout {
             line.setWidth(width);
             line.setId(widthMaintainer.push(width));
         }
+        allMeasured = true;
+    }
+
+    /**
+     * Mark all lines not measured, and estimate layout width from their lengths
+     */
+    private void prepareLazyMeasure() {
+        widthMaintainer = new BinaryHeap();
+        widthMaintainer.ensureCapacity(text.getLineCount());
+        int maxLength = 0;
+        for (int i = 0; i < text.getLineCount(); i++) {
+            ContentLine line = text.getLine(i);
+            // Lines may have ids in heap of previous layout
+            line.setId(-1);
+            line.setWidth(0);
+            maxLength = Math.max(maxLength, line.length());
+        }
+        estimatedWidth = (int) (maxLength * fontCache.measureChar('x', shadowPaint));
+        chunkLine = 0;
+        scheduleChunk();
+    }
+
+    private void measureLine(ContentLine line) {
+        int width = (int) measureText(line, 0, line.length());
+        if (line.getId() != -1) {
+            if (line.getWidth() != width) {
+                widthMaintainer.update(line.getId(), width);
+                line.setWidth(width);
+            }
+            return;
+        }
+        line.setId(widthMaintainer.push(width));
+        line.setWidth(width);
     }
 
     private void measureLines(int startLine, int endLine) {
@@ -56,23 +153,50 @@ class LineBreakLayout extends AbstractLayout {
             return;
         }
         while (startLine <= endLine && startLine < text.getLineCount()) {
-            ContentLine line = text.getLine(startLine);
-            int width = (int) measureText(line, 0, line.length());
-            if (line.getId() != -1) {
-                if (line.getWidth() == width) {
-                    startLine++;
-                    continue;
-                }
-                widthMaintainer.update(line.getId(), width);
-                startLine++;
-                continue;
-            }
-            line.setId(widthMaintainer.push(width));
-            line.setWidth(width);
+            measureLine(text.getLine(startLine));
             startLine++;
         }
     }
 
+    private void scheduleChunk() {
+        if (!chunkScheduled && !allMeasured && editor != null) {
+            chunkScheduled = true;
+            editor.post(chunkRunnable);
+        }
+    }
+
+    /**
+     * Measure lines not measured for a short time
+     */
+    private void measureChunk() {
+        chunkScheduled = false;
+        if (editor == null || editor.mLayout != this) {
+            return;
+        }
+        final long deadline = System.nanoTime() + CHUNK_TIME;
+        final int lineCount = text.getLineCount();
+        while (chunkLine < lineCount) {
+            ContentLine line = text.getLine(chunkLine);
+            if (line.getId() == -1) {
+                measureLine(line);
+            }
+            chunkLine++;
+            if ((chunkLine & 63) == 0 && System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        if (chunkLine >= lineCount) {
+            allMeasured = true;
+            estimatedWidth = 0;
+            if (editor.getOffsetX() > editor.getScrollMaxX()) {
+                editor.getScroller().startScroll(editor.getOffsetX(), editor.getOffsetY(), editor.getScrollMaxX() - editor.getOffsetX(), 0, 0);
+            }
+            editor.invalidate();
+        } else {
+            scheduleChunk();
+        }
+    }
+
     @Override
     public RowIterator obtainRowIterator(int initialRow) {
         return new LineBreakLayoutRowItr(initialRow);
@@ -85,11 +209,17 @@ class LineBreakLayout extends AbstractLayout {
 
     @Override
     public void afterInsert(Content content, int startLine, int startColumn, int endLine, int endColumn, CharSequence insertedContent) {
+        if (chunkLine > startLine) {
+            chunkLine += endLine - startLine;
+        }
         measureLines(startLine, endLine);
     }
 
     @Override
     public void afterDelete(Content content, int startLine, int startColumn, int endLine, int endColumn, CharSequence deletedContent) {
+        if (chunkLine > startLine) {
+            chunkLine = Math.max(startLine, chunkLine - (endLine - startLine));
+        }
         measureLines(startLine, startLine);
     }
 
@@ -100,6 +230,9 @@ class LineBreakLayout extends AbstractLayout {
 
     @Override
     public void destroyLayout() {
+        if (editor != null) {
+            editor.removeCallbacks(chunkRunnable);
+        }
         super.destroyLayout();
         widthMaintainer = null;
     }
@@ -111,7 +244,7 @@ class LineBreakLayout extends AbstractLayout {
 
     @Override
     public int getLayoutWidth() {
-        return widthMaintainer.top();
+        return allMeasured ? widthMaintainer.top() : Math.max(widthMaintainer.top(), estimatedWidth);
     }
 
     @Override
@@ -156,6 +289,11 @@ class LineBreakLayout extends AbstractLayout {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
+            ContentLine line = text.getLine(currentRow);
+            if (line.getId() == -1) {
+                // Measure visible lines first
+                measureLine(line);
+            }
             result.lineIndex = currentRow;
             result.endColumn = text.getColumnCount(currentRow++);
             return result;
@@ -0,0 +1,120 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.widget;
+
+import android.graphics.Picture;
+import io.github.rosemoe.editor.struct.SpanLine;
+import io.github.rosemoe.editor.text.ContentLine;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recorded text of rows, so that rows whose text, spans and style are not changed are replayed
+ * instead of being measured and drawn again on every frame.
+ * <p>
+ * Entries are keyed by the line object, which moves with the line when lines are inserted or
+ * removed above it, and the start column of row. They are recorded with the spans of the line,
+ * so a new analysis result of the line is noticed by identity. Changes of the line itself and
+ * of style are reported by the editor. Least recently used lines are dropped.
+ */
+class LineRenderCache {
+
+    /**
+     * Longer rows are drawn directly, since only their visible part is drawn
+     */
+    static final int MAX_ROW_LENGTH = 512;
+
+    private static final int MAX_LINES = 256;
+
+    private final Map<ContentLine, Entry> mEntries = new LinkedHashMap<ContentLine, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ContentLine, Entry> eldest) {
+            return size() > MAX_LINES;
+        }
+    };
+
+    /**
+     * Get the recorded row
+     *
+     * @return The entry, or null if the row is not recorded with the spans
+     */
+    Entry get(ContentLine line, int startColumn, int endColumn, SpanLine spans) {
+        for (Entry entry = mEntries.get(line); entry != null; entry = entry.next) {
+            if (entry.startColumn == startColumn) {
+                if (entry.endColumn == endColumn && entry.spans == spans) {
+                    return entry;
+                }
+                break;
+            }
+        }
+        return null;
+    }
+
+    Entry put(ContentLine line, int startColumn, int endColumn, SpanLine spans, Picture picture, float width) {
+        Entry head = mEntries.get(line);
+        // Drop the old recording of the row
+        Entry previous = null;
+        for (Entry entry = head; entry != null; previous = entry, entry = entry.next) {
+            if (entry.startColumn == startColumn) {
+                if (previous == null) {
+                    head = entry.next;
+                } else {
+                    previous.next = entry.next;
+                }
+                break;
+            }
+        }
+        final Entry entry = new Entry(startColumn, endColumn, spans, picture, width);
+        entry.next = head;
+        mEntries.put(line, entry);
+        return entry;
+    }
+
+    /**
+     * Drop the rows of the line, after it is modified or removed
+     */
+    void invalidate(ContentLine line) {
+        mEntries.remove(line);
+    }
+
+    /**
+     * Drop all rows, after style of text is changed
+     */
+    void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Recorded text of a row, drawn from its start column at (0, 0) of row
+     */
+    static class Entry {
+
+        final int startColumn;
+        final int endColumn;
+        final SpanLine spans;
+        final Picture picture;
+        final float width;
+        Entry next;
+
+        Entry(int startColumn, int endColumn, SpanLine spans, Picture picture, float width) {
+            this.startColumn = startColumn;
+            this.endColumn = endColumn;
+            this.spans = spans;
+            this.picture = picture;
+            this.width = width;
+        }
+    }
+}
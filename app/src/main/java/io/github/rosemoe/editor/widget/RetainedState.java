@@ -0,0 +1,109 @@
+/*
+ *   Copyright 2020-2021 Rosemoe
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.github.rosemoe.editor.widget;
+
+import android.graphics.Typeface;
+import io.github.rosemoe.editor.struct.SpanLine;
+import io.github.rosemoe.editor.text.TextAnalyzeResult;
+import org.eclipse.lsp4j.SemanticTokensLegend;
+
+/**
+ * Work of an editor that can be reused by another editor showing the same text, such as
+ * analysis result, line widths or line breaks of layout and semantic tokens.
+ * <p>
+ * It is created by {@link CodeEditor#saveState()} and given to another editor by
+ * {@link CodeEditor#restoreState(RetainedState)}. The parts are taken by the editor when
+ * they are used, so a state must not be restored to more than one editor.
+ */
+public class RetainedState {
+
+    TextAnalyzeResult mResult;
+    String mAnalyzer;
+    int[] mSemanticTokens;
+    SemanticTokensLegend mSemanticTokensLegend;
+
+    // Layout, valid only if text is measured in the same way
+    int[] mLineWidths;
+    int[][] mLineBreaks;
+    int mLineBreaksWidth;
+    float mTextSize;
+    Typeface mTypeface;
+    int mTabWidth;
+
+    int mLineCount;
+    private final long mRetainedBytes;
+
+    RetainedState(TextAnalyzeResult result, String analyzer, int[] semanticTokens, SemanticTokensLegend legend,
+                  int[] lineWidths, int[][] lineBreaks, int lineBreaksWidth, int lineCount) {
+        mResult = result;
+        mAnalyzer = analyzer;
+        mSemanticTokens = semanticTokens;
+        mSemanticTokensLegend = legend;
+        mLineWidths = lineWidths;
+        mLineBreaks = lineBreaks;
+        mLineBreaksWidth = lineBreaksWidth;
+        mLineCount = lineCount;
+        mRetainedBytes = estimateBytes();
+    }
+
+    /**
+     * Whether text measured by the editor has the same widths as the saved layout
+     */
+    boolean isLayoutCompatible(CodeEditor editor) {
+        return mTextSize == editor.getTextSizePx() && mTypeface == editor.getTypefaceText()
+                && mTabWidth == editor.getTabWidth();
+    }
+
+    /**
+     * Whether all parts are taken
+     */
+    boolean isConsumed() {
+        return mResult == null && mLineWidths == null && mLineBreaks == null;
+    }
+
+    /**
+     * Get approximate count of bytes retained by this state, when it is created
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    private long estimateBytes() {
+        long bytes = 64;
+        if (mResult != null) {
+            for (SpanLine line : mResult.getSpanMap()) {
+                // Span and underline, object headers and array header
+                bytes += line == null ? 8 : 48 + line.size() * 16L;
+            }
+            if (mResult.getCheckpoints() != null) {
+                bytes += mResult.getCheckpoints().size() * 64L;
+            }
+            bytes += mResult.getBlockTree().size() * 32L;
+        }
+        if (mSemanticTokens != null) {
+            bytes += mSemanticTokens.length * 4L;
+        }
+        if (mLineWidths != null) {
+            bytes += mLineWidths.length * 4L;
+        }
+        if (mLineBreaks != null) {
+            for (int[] breaks : mLineBreaks) {
+                bytes += breaks == null || breaks.length == 0 ? 8 : 24 + breaks.length * 4L;
+            }
+        }
+        return bytes;
+    }
+}
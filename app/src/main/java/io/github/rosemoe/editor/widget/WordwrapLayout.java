@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import io.github.rosemoe.editor.struct.BTreeList;
 import io.github.rosemoe.editor.text.Content;
 import io.github.rosemoe.editor.text.ContentLine;
 import io.github.rosemoe.editor.util.IntPair;
@@ -28,82 +29,207 @@ import io.github.rosemoe.editor.util.IntPair;
  * <p>
  * This layout will not let character displayed outside the editor's width
  * <p>
- * However, using this can be power-costing because we will have to recreate this layout in various
- * conditions, such as when the line number increases and its width grows or when the text size has changed
+ * Lines are broken lazily. Lines near the viewport are broken when the layout is created,
+ * lines accessed later are broken on demand, and the others are broken in small chunks
+ * posted to the editor. Until a line is broken, its row count is estimated from its length.
+ * <p>
+ * Lines are kept in a tree weighted by their row counts, so that converting row to line,
+ * converting line to row, and adding or removing lines cost O(log n) time.
  *
  * @author Rose
  */
 class WordwrapLayout extends AbstractLayout {
 
-    private final List<RowRegion> rowTable;
+    /**
+     * Max time of breaking lines in a chunk, in nanoseconds
+     */
+    private static final long CHUNK_TIME = 4_000_000;
+
+    /**
+     * Edits on more lines than this break the lines in chunks, except the first and last one
+     */
+    private static final int MAX_EAGER_LINES = 64;
+
+    private static final int[] SINGLE_ROW = new int[0];
+
     private final int width;
+    private final List<Integer> breakpoints = new ArrayList<>();
+    private final Runnable chunkRunnable = this::breakChunk;
+
+    /**
+     * Start columns of rows except the first one of each line, or null if the line is not broken.
+     * Weights are row counts of lines, estimated if the line is not broken.
+     */
+    private BTreeList<int[]> lines;
+    /**
+     * Lines before it are broken, except the ones changed later
+     */
+    private int chunkLine;
+    private boolean chunkScheduled;
 
     WordwrapLayout(CodeEditor editor, Content text) {
+        this(editor, text, null, 0, 0);
+    }
+
+    /**
+     * Create the layout with lines broken before, such as the ones of {@link #getLineBreaks()}
+     *
+     * @param breaks     Breaks of all lines, or null to break lines
+     * @param breakWidth Width the lines are broken with. Lines are broken again if it is not the width of this layout.
+     * @param anchorLine Lines from it to the bottom of viewport are broken before others
+     */
+    WordwrapLayout(CodeEditor editor, Content text, int[][] breaks, int breakWidth, int anchorLine) {
         super(editor, text);
-        rowTable = new ArrayList<>();
         width = editor.getWidth() - (int) editor.measureTextRegionOffset() - (int) editor.getDpUnit() * 5;
-        breakAllLines();
+        final int lineCount = text.getLineCount();
+        if (breaks == null || breakWidth != width || breaks.length != lineCount) {
+            breaks = null;
+        }
+        lines = new BTreeList<>();
+        for (int i = 0; i < lineCount; i++) {
+            final int[] lineBreaks = breaks != null ? breaks[i] : null;
+            lines.add(i, lineBreaks, lineBreaks != null ? lineBreaks.length + 1 : estimateRowCount(i));
+        }
+        anchorLine = Math.max(0, Math.min(anchorLine, lineCount - 1));
+        final int visibleRows = editor.getHeight() / Math.max(1, editor.getRowHeight()) + 1;
+        for (int i = anchorLine, rows = 0; i < lineCount && rows < visibleRows; i++) {
+            ensureLineBroken(i);
+            rows += lines.getWeight(i);
+        }
+        scheduleChunk();
+    }
+
+    /**
+     * Get breaks of all lines, which may be null for lines not broken
+     */
+    int[][] getLineBreaks() {
+        final int[][] breaks = new int[lines.size()][];
+        System.arraycopy(lines.toArray(), 0, breaks, 0, breaks.length);
+        return breaks;
+    }
+
+    /**
+     * Get width lines are broken with
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the first row of the given line
+     */
+    int getRowForLine(int line) {
+        return lines.getWeightBefore(Math.max(0, Math.min(line, lines.size())));
+    }
+
+    /**
+     * Get the line containing the given row, which must be in [0, row count)
+     */
+    private int findLine(int row) {
+        return lines.findByWeight(row);
+    }
+
+    private int estimateRowCount(int line) {
+        final float charWidth = fontCache.measureChar('x', shadowPaint);
+        final int length = text.getColumnCount(line);
+        return Math.max(1, (int) Math.ceil(length * charWidth / Math.max(1, width)));
+    }
+
+    private void markLineNotBroken(int line) {
+        lines.set(line, null);
+        lines.setWeight(line, estimateRowCount(line));
+        chunkLine = Math.min(chunkLine, line);
     }
 
-    private void breakAllLines() {
-        List<Integer> breakpoints = new ArrayList<>();
-        for (int i = 0; i < text.getLineCount(); i++) {
-            breakLine(i, breakpoints);
-            for (int j = -1; j < breakpoints.size(); j++) {
-                int start = j == -1 ? 0 : breakpoints.get(j);
-                int end = j + 1 < breakpoints.size() ? breakpoints.get(j + 1) : text.getColumnCount(i);
-                rowTable.add(new RowRegion(i, start, end));
+    private void ensureLineBroken(int line) {
+        if (lines.get(line) != null) {
+            return;
+        }
+        breakLine(line, breakpoints);
+        int[] breaks = SINGLE_ROW;
+        if (!breakpoints.isEmpty()) {
+            breaks = new int[breakpoints.size()];
+            for (int i = 0; i < breaks.length; i++) {
+                breaks[i] = breakpoints.get(i);
             }
             breakpoints.clear();
         }
+        lines.set(line, breaks);
+        lines.setWeight(line, breaks.length + 1);
     }
 
-    private int findRow(int line) {
-        int index = 0;
-        while (index < rowTable.size()) {
-            if (rowTable.get(index).line < line) {
-                index++;
-            } else {
-                if (rowTable.get(index).line > line) {
-                    index--;
-                }
-                break;
-            }
+    /**
+     * Insert lines not broken
+     */
+    private void insertLines(int index, int count) {
+        if (chunkLine > index) {
+            chunkLine += count;
+        }
+        for (int i = index; i < index + count; i++) {
+            lines.add(i, null, estimateRowCount(i));
         }
-        return index;
+        chunkLine = Math.min(chunkLine, index);
     }
 
-    private void breakLines(int startLine, int endLine) {
-        int insertPosition = 0;
-        while (insertPosition < rowTable.size()) {
-            if (rowTable.get(insertPosition).line < startLine) {
-                insertPosition++;
-            } else {
-                break;
-            }
+    private void removeLines(int index, int count) {
+        for (int i = 0; i < count; i++) {
+            lines.remove(index);
         }
-        while (insertPosition < rowTable.size()) {
-            int line = rowTable.get(insertPosition).line;
-            if (line >= startLine && line <= endLine) {
-                rowTable.remove(insertPosition);
-            } else {
+        if (chunkLine > index) {
+            chunkLine = Math.max(index, chunkLine - count);
+        }
+    }
+
+    private void scheduleChunk() {
+        if (!chunkScheduled && chunkLine < lines.size() && editor != null) {
+            chunkScheduled = true;
+            editor.post(chunkRunnable);
+        }
+    }
+
+    /**
+     * Break lines not broken for a short time. If row counts of lines above the viewport
+     * change, the editor is scrolled so that the visible text stays in place.
+     */
+    private void breakChunk() {
+        chunkScheduled = false;
+        if (editor == null || editor.mLayout != this) {
+            return;
+        }
+        final long deadline = System.nanoTime() + CHUNK_TIME;
+        final int firstVisibleLine = editor.getFirstVisibleLine();
+        int rowDelta = 0;
+        while (chunkLine < lines.size()) {
+            if (lines.get(chunkLine) == null) {
+                final int oldRowCount = lines.getWeight(chunkLine);
+                ensureLineBroken(chunkLine);
+                if (chunkLine < firstVisibleLine) {
+                    rowDelta += lines.getWeight(chunkLine) - oldRowCount;
+                }
+            }
+            chunkLine++;
+            if ((chunkLine & 31) == 0 && System.nanoTime() > deadline) {
                 break;
             }
         }
-        List<Integer> breakpoints = new ArrayList<>();
-        for (int i = startLine; i <= endLine; i++) {
-            breakLine(i, breakpoints);
-            for (int j = -1; j < breakpoints.size(); j++) {
-                int start = j == -1 ? 0 : breakpoints.get(j);
-                int end = j + 1 < breakpoints.size() ? breakpoints.get(j + 1) : text.getColumnCount(i);
-                rowTable.add(insertPosition++, new RowRegion(i, start, end));
-            }
-            breakpoints.clear();
+        if (rowDelta != 0 && editor.getScroller().isFinished()) {
+            editor.getScroller().startScroll(editor.getOffsetX(), editor.getOffsetY(), 0, rowDelta * editor.getRowHeight(), 0);
         }
+        editor.invalidate();
+        scheduleChunk();
     }
 
     private void breakLine(int line, List<Integer> breakpoints) {
         ContentLine sequence = text.getLine(line);
+        final float monoWidth = fontCache.getMonospaceWidth(shadowPaint);
+        if (monoWidth > 0 && isPrintableAscii(sequence)) {
+            // All characters have the same width, so all rows have the same length
+            final int rowLength = Math.max(1, (int) (width / monoWidth));
+            for (int i = rowLength; i < sequence.length(); i += rowLength) {
+                breakpoints.add(i);
+            }
+            return;
+        }
         float currentWidth = 0;
         for (int i = 0; i < sequence.length(); i++) {
             char ch = sequence.charAt(i);
@@ -129,6 +255,30 @@ class WordwrapLayout extends AbstractLayout {
         }
     }
 
+    private static boolean isPrintableAscii(CharSequence sequence) {
+        for (int i = 0; i < sequence.length(); i++) {
+            char ch = sequence.charAt(i);
+            if (ch < 0x20 || ch >= 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Break lines changed by an edit, in chunks if there are many
+     */
+    private void breakChangedLines(int startLine, int endLine) {
+        final boolean eager = endLine - startLine < MAX_EAGER_LINES;
+        for (int i = startLine; i <= endLine; i++) {
+            markLineNotBroken(i);
+            if (eager || i == startLine || i == endLine) {
+                ensureLineBroken(i);
+            }
+        }
+        scheduleChunk();
+    }
+
     @Override
     public void beforeReplace(Content content) {
         // Intentionally empty
@@ -136,35 +286,18 @@ class WordwrapLayout extends AbstractLayout {
 
     @Override
     public void afterInsert(Content content, int startLine, int startColumn, int endLine, int endColumn, CharSequence insertedContent) {
-        // Update line numbers
-        int delta = endLine - startLine;
-        if (delta != 0) {
-            for (int row = findRow(startLine + 1); row < rowTable.size(); row++) {
-                rowTable.get(row).line += delta;
-            }
+        if (endLine > startLine) {
+            insertLines(startLine + 1, endLine - startLine);
         }
-        // Re-break
-        breakLines(startLine, endLine);
+        breakChangedLines(startLine, endLine);
     }
 
     @Override
     public void afterDelete(Content content, int startLine, int startColumn, int endLine, int endColumn, CharSequence deletedContent) {
-        int delta = endLine - startLine;
-        if (delta != 0) {
-            int startRow = findRow(startLine);
-            while (startRow < rowTable.size()) {
-                int line = rowTable.get(startRow).line;
-                if (line >= startLine && line <= endLine) {
-                    rowTable.remove(startRow);
-                } else {
-                    break;
-                }
-            }
-            for (int row = findRow(endLine + 1); row < rowTable.size(); row++) {
-                rowTable.get(row).line -= delta;
-            }
+        if (endLine > startLine) {
+            removeLines(startLine + 1, endLine - startLine);
         }
-        breakLines(startLine, startLine);
+        breakChangedLines(startLine, startLine);
     }
 
     @Override
@@ -174,13 +307,16 @@ class WordwrapLayout extends AbstractLayout {
 
     @Override
     public void destroyLayout() {
+        if (editor != null) {
+            editor.removeCallbacks(chunkRunnable);
+        }
         super.destroyLayout();
-        rowTable.clear();
+        lines = null;
     }
 
     @Override
     public int getLineNumberForRow(int row) {
-        return row >= rowTable.size() ? rowTable.get(rowTable.size() - 1).line : rowTable.get(row).line;
+        return findLine(Math.max(0, Math.min(row, lines.getTotalWeight() - 1)));
     }
 
     @Override
@@ -195,16 +331,42 @@ class WordwrapLayout extends AbstractLayout {
 
     @Override
     public int getLayoutHeight() {
-        return rowTable.size() * editor.getRowHeight();
+        return lines.getTotalWeight() * editor.getRowHeight();
+    }
+
+    /**
+     * Break the line containing the given row
+     *
+     * @return Packed IntPair of the line and the index of row in the line
+     */
+    private long breakLineForRow(int row) {
+        row = Math.max(0, Math.min(row, lines.getTotalWeight() - 1));
+        int line = findLine(row);
+        ensureLineBroken(line);
+        // Row counts may be changed by breaking
+        row = Math.min(row, lines.getTotalWeight() - 1);
+        line = findLine(row);
+        ensureLineBroken(line);
+        final int rowInLine = Math.max(0, Math.min(row - getRowForLine(line), lines.get(line).length));
+        return IntPair.pack(line, rowInLine);
+    }
+
+    private int getRowStart(int line, int rowInLine) {
+        return rowInLine == 0 ? 0 : lines.get(line)[rowInLine - 1];
+    }
+
+    private int getRowEnd(int line, int rowInLine) {
+        final int[] breaks = lines.get(line);
+        return rowInLine < breaks.length ? breaks[rowInLine] : text.getColumnCount(line);
     }
 
     @Override
     public long getCharPositionForLayoutOffset(float xOffset, float yOffset) {
-        int row = (int) (yOffset / editor.getRowHeight());
-        row = Math.max(0, Math.min(row, rowTable.size() - 1));
-        RowRegion region = rowTable.get(row);
-        int column = (int) orderedFindCharIndex(xOffset, text.getLine(region.line), region.startColumn, region.endColumn)[0];
-        return IntPair.pack(region.line, column);
+        final long pos = breakLineForRow((int) (yOffset / editor.getRowHeight()));
+        final int line = IntPair.getFirst(pos);
+        final int rowInLine = IntPair.getSecond(pos);
+        int column = (int) orderedFindCharIndex(xOffset, text.getLine(line), getRowStart(line, rowInLine), getRowEnd(line, rowInLine))[0];
+        return IntPair.pack(line, column);
     }
 
     @Override
@@ -212,52 +374,37 @@ class WordwrapLayout extends AbstractLayout {
         if (dest == null || dest.length < 2) {
             dest = new float[2];
         }
-        int row = findRow(line);
-        if (row < rowTable.size()) {
-            RowRegion region = rowTable.get(row);
-            if (region.line != line) {
-                dest[0] = dest[1] = 0;
-                return dest;
-            }
-            while (region.startColumn < column && row + 1 < rowTable.size()) {
-                row++;
-                region = rowTable.get(row);
-                if (region.line != line) {
-                    row--;
-                    region = rowTable.get(row);
-                    break;
-                }
+        if (line >= 0 && line < lines.size()) {
+            ensureLineBroken(line);
+            final int[] breaks = lines.get(line);
+            // The last row starting at or before the column
+            int rowInLine = 0;
+            while (rowInLine < breaks.length && breaks[rowInLine] <= column) {
+                rowInLine++;
             }
-            dest[0] = editor.getRowHeight() * (row + 1);
-            dest[1] = measureText(text.getLine(region.line), region.startColumn, column);
+            dest[0] = editor.getRowHeight() * (getRowForLine(line) + rowInLine + 1);
+            dest[1] = measureText(text.getLine(line), getRowStart(line, rowInLine), column);
         } else {
             dest[0] = dest[1] = 0;
         }
         return dest;
     }
 
-    static class RowRegion {
-
-        final int startColumn;
-        final int endColumn;
-        int line;
-
-        RowRegion(int line, int start, int end) {
-            this.line = line;
-            startColumn = start;
-            endColumn = end;
-        }
-
-    }
-
     class WordwrapLayoutRowItr implements RowIterator {
 
         final Row result;
-        int currentRow;
+        int currentLine;
+        int currentRowInLine;
 
         WordwrapLayoutRowItr(int initialRow) {
-            currentRow = initialRow;
             result = new Row();
+            if (initialRow < 0 || initialRow >= lines.getTotalWeight()) {
+                currentLine = lines.size();
+            } else {
+                final long pos = breakLineForRow(initialRow);
+                currentLine = IntPair.getFirst(pos);
+                currentRowInLine = IntPair.getSecond(pos);
+            }
         }
 
         @Override
@@ -265,18 +412,23 @@ class WordwrapLayout extends AbstractLayout {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            RowRegion region = rowTable.get(currentRow);
-            result.lineIndex = region.line;
-            result.startColumn = region.startColumn;
-            result.endColumn = region.endColumn;
-            result.isLeadingRow = currentRow <= 0 || rowTable.get(currentRow - 1).line != region.line;
-            currentRow++;
+            ensureLineBroken(currentLine);
+            result.lineIndex = currentLine;
+            result.startColumn = getRowStart(currentLine, currentRowInLine);
+            result.endColumn = getRowEnd(currentLine, currentRowInLine);
+            result.isLeadingRow = currentRowInLine == 0;
+            if (currentRowInLine < lines.get(currentLine).length) {
+                currentRowInLine++;
+            } else {
+                currentLine++;
+                currentRowInLine = 0;
+            }
             return result;
         }
 
         @Override
         public boolean hasNext() {
-            return currentRow >= 0 && currentRow < rowTable.size();
+            return currentLine >= 0 && currentLine < lines.size();
         }
 
     }
@@ -43,6 +43,10 @@ public class PreferenceManager {
     public static final String KEY_EDITOR_FONT_SIZE = "idepref_editor_fontSize";
     public static final String KEY_EDITOR_PRINTABLE_CHARS = "idepref_editor_nonPrintableFlags";
     public static final String KEY_EDITOR_TAB_SIZE = "idepref_editor_tabSize";
+    public static final String KEY_EDITOR_TREE_LINE_STORAGE = "idepref_editor_treeLineStorage";
+    public static final String KEY_EDITOR_LARGE_FILE_LINES = "idepref_editor_largeFileLines";
+    public static final String KEY_EDITOR_LARGE_FILE_SIZE = "idepref_editor_largeFileSize";
+    public static final String KEY_EDITOR_LARGE_FILE_LINE_LENGTH = "idepref_editor_largeFileLineLength";
     
     public static final String KEY_GRADLE_CURRENT_DIR = "idepref_customGradle_currentFolder";
     public static final String KEY_GRADLE_FILENAMES = "idepref_customGradle_folderNames";
@@ -178,6 +182,18 @@ public class PreferenceManager {
         return getInt(KEY_EDITOR_TAB_SIZE, 4);
     }
     
+    public int getLargeFileLineCount() {
+        return getInt(KEY_EDITOR_LARGE_FILE_LINES, 20000);
+    }
+    
+    public int getLargeFileSize() {
+        return getInt(KEY_EDITOR_LARGE_FILE_SIZE, 1024 * 1024);
+    }
+    
+    public int getLargeFileLineLength() {
+        return getInt(KEY_EDITOR_LARGE_FILE_LINE_LENGTH, 10000);
+    }
+    
     public boolean autoOpenProject() {
         return getBoolean(KEY_OPEN_PROJECTS, true);
     }